@@ -0,0 +1,362 @@
+package at.jku.fim.phonykeyboard.evaluation;
+
+import at.jku.fim.phonykeyboard.latin.biometrics.BiometricsManager;
+import at.jku.fim.phonykeyboard.latin.utils.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The acquisitions of a study file parsed with all touch properties and sensors (see
+ * StatisticalClassifierEvaluation.readCsvFile()), and their binary file, which holds them in columns that are copied out
+ * of the mapped file instead of being parsed. It is written next to the study file by the -c mode and used instead of
+ * it as long as it is up to date.
+ *
+ * The file starts with a little-endian header (magic, format version, number of acquisitions, number of keypresses of
+ * each acquisition, number of sensors and their index in SENSOR_TYPES), followed by a column of each acquisition
+ * header value, a column of each touch property with the values of all keypresses and a column of each sensor, which
+ * is preceded by whether each acquisition has data for it.
+ */
+final class CorpusFile {
+    private static final String TAG = "CorpusFile";
+    private static final int MAGIC = 0x50524F43;    // "CORP"
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 5 * 4;
+    private static final int TOUCH_PROPERTIES = 7;
+    private static final int SENSOR_VALUES = 3;
+    private static final int WRITE_BUFFER_SIZE = 1 << 16;
+    private static final String FILE_EXTENSION = ".corpus";
+
+    private final List<Acquisition> acquisitions;
+    private final List<String> sensorTypes;
+
+    /**
+     * @param acquisitions acquisitions with the same number of keypresses, whose sensor data is null for sensors
+     *                     without data
+     * @param sensorTypes the sensors of the acquisitions, in the order of their sensor data
+     */
+    CorpusFile(List<Acquisition> acquisitions, List<String> sensorTypes) {
+        this.acquisitions = acquisitions;
+        this.sensorTypes = sensorTypes;
+    }
+
+    /**
+     * @return the acquisitions, whose sensor data is null for sensors without data
+     */
+    List<Acquisition> getAcquisitions() {
+        return acquisitions;
+    }
+
+    /**
+     * @return the sensors of the acquisitions, in the order of their sensor data
+     */
+    List<String> getSensorTypes() {
+        return sensorTypes;
+    }
+
+    /**
+     * @return the binary file of a study file, which doesn't have to exist
+     */
+    static File getFile(String csvFile) {
+        String path = csvFile.endsWith(".csv") ? csvFile.substring(0, csvFile.length() - 4) : csvFile;
+        return new File(path + FILE_EXTENSION);
+    }
+
+    /**
+     * @return true if the binary file of a study file exists and isn't older than the study file
+     */
+    static boolean isCurrent(String csvFile) {
+        File file = getFile(csvFile);
+        return file.exists() && file.lastModified() >= new File(csvFile).lastModified();
+    }
+
+    /**
+     * Maps a binary file and copies its acquisitions out of it
+     * @return the file's content, or null if the file was written in another format or is truncated or corrupt
+     */
+    static CorpusFile read(File file) throws IOException {
+        Reader reader = Reader.open(file);
+        if (reader == null) {
+            return null;
+        }
+
+        List<Acquisition> acquisitions = new ArrayList<>(reader.getCount());
+        for (int a = 0; a < reader.getCount(); a++) {
+            acquisitions.add(reader.read(a));
+        }
+        return new CorpusFile(acquisitions, reader.getSensorTypes());
+    }
+
+    /**
+     * Writes the acquisitions to a new binary file, which replaces the file only after it has been written completely.
+     * The columns are written through a small buffer, so that the file can be larger than the memory.
+     */
+    void write(File file) throws IOException {
+        int count = acquisitions.size();
+        int keypressCount = count > 0 ? acquisitions.get(0).getKeypresses().length : 0;
+        for (Acquisition acquisition : acquisitions) {
+            if (acquisition.getKeypresses().length != keypressCount) {
+                throw new IllegalArgumentException(String.format("ID %d: Acquisitions must have %d keypresses", acquisition.getTryId(), keypressCount));
+            }
+        }
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC);
+            buffer.putInt(FORMAT_VERSION);
+            buffer.putInt(count);
+            buffer.putInt(keypressCount);
+            buffer.putInt(sensorTypes.size());
+            for (String sensor : sensorTypes) {
+                ensureRemaining(channel, buffer, 4).putInt(Arrays.asList(BiometricsManager.SENSOR_TYPES).indexOf(sensor));
+            }
+
+            for (Acquisition acquisition : acquisitions) {
+                ensureRemaining(channel, buffer, 4).putInt(acquisition.getTryId());
+            }
+            for (Acquisition acquisition : acquisitions) {
+                ensureRemaining(channel, buffer, 8).putLong(acquisition.getTimestamp());
+            }
+            for (Acquisition acquisition : acquisitions) {
+                ensureRemaining(channel, buffer, 4).putInt(acquisition.getScreenOrientation());
+            }
+            for (Acquisition acquisition : acquisitions) {
+                ensureRemaining(channel, buffer, 4).putInt(acquisition.getSituation());
+            }
+            for (Acquisition acquisition : acquisitions) {
+                ensureRemaining(channel, buffer, 4).putInt(acquisition.getInputMethod());
+            }
+
+            for (int property = 0; property < TOUCH_PROPERTIES; property++) {
+                for (Acquisition acquisition : acquisitions) {
+                    for (Keypress keypress : acquisition.getKeypresses()) {
+                        ensureRemaining(channel, buffer, 4).putFloat(getTouchProperty(keypress, property));
+                    }
+                }
+            }
+
+            for (int s = 0; s < sensorTypes.size(); s++) {
+                for (Acquisition acquisition : acquisitions) {
+                    ensureRemaining(channel, buffer, 1).put((byte)(acquisition.getKeypresses()[0].getSensorData().get(s) != null ? 1 : 0));
+                }
+                for (Acquisition acquisition : acquisitions) {
+                    for (Keypress keypress : acquisition.getKeypresses()) {
+                        float[] data = keypress.getSensorData().get(s);
+                        ensureRemaining(channel, buffer, SENSOR_VALUES * 4);
+                        for (int v = 0; v < SENSOR_VALUES; v++) {
+                            buffer.putFloat(data != null ? data[v] : 0);
+                        }
+                    }
+                }
+            }
+            ensureRemaining(channel, buffer, buffer.capacity());
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Writes the buffer to the channel if it has less than the given number of bytes left
+     * @return the buffer, which has room for at least this many bytes
+     */
+    private static ByteBuffer ensureRemaining(FileChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+        return buffer;
+    }
+
+    /**
+     * @return the size of a binary file with these numbers of acquisitions, keypresses and sensors
+     */
+    private static long getSize(long count, long keypressCount, int sensorCount) {
+        long values = count * keypressCount;
+        return HEADER_SIZE + sensorCount * 4L + count * (4 + 8 + 3 * 4) + values * TOUCH_PROPERTIES * 4 + sensorCount * (count + values * SENSOR_VALUES * 4);
+    }
+
+    /**
+     * @param property the index of the touch property column: down and up distance, x, y, size, orientation, pressure
+     */
+    private static float getTouchProperty(Keypress keypress, int property) {
+        switch (property) {
+            case 0:
+                return keypress.getDownDistance();
+            case 1:
+                return keypress.getUpDistance();
+            case 2:
+                return keypress.getX();
+            case 3:
+                return keypress.getY();
+            case 4:
+                return keypress.getSize();
+            case 5:
+                return keypress.getOrientation();
+            default:
+                return keypress.getPressure();
+        }
+    }
+
+    /**
+     * A binary file whose acquisitions are copied out of it one at a time. Each column is mapped on its own, so that the
+     * file can be larger than 2 GB as long as each column is smaller.
+     */
+    static final class Reader {
+        private final File file;
+        private final int count, keypressCount;
+        private final List<String> sensorTypes;
+        private final ByteBuffer tryIds, timestamps, screenOrientations, situations, inputMethods;
+        private final ByteBuffer[] touchProperties = new ByteBuffer[TOUCH_PROPERTIES];
+        private final ByteBuffer[] sensorPresent, sensorData;
+        private long position;  // Start of the next column to be mapped
+
+        private Reader(File file, FileChannel channel, int count, int keypressCount, List<String> sensorTypes) throws IOException {
+            this.file = file;
+            this.count = count;
+            this.keypressCount = keypressCount;
+            this.sensorTypes = sensorTypes;
+
+            long values = (long)count * keypressCount;
+            position = HEADER_SIZE + sensorTypes.size() * 4L;
+            tryIds = map(channel, count * 4L);
+            timestamps = map(channel, count * 8L);
+            screenOrientations = map(channel, count * 4L);
+            situations = map(channel, count * 4L);
+            inputMethods = map(channel, count * 4L);
+            for (int property = 0; property < TOUCH_PROPERTIES; property++) {
+                touchProperties[property] = map(channel, values * 4);
+            }
+            sensorPresent = new ByteBuffer[sensorTypes.size()];
+            sensorData = new ByteBuffer[sensorTypes.size()];
+            for (int s = 0; s < sensorTypes.size(); s++) {
+                sensorPresent[s] = map(channel, count);
+                sensorData[s] = map(channel, values * SENSOR_VALUES * 4);
+            }
+        }
+
+        /**
+         * Checks the header of a binary file against its size and maps its columns
+         * @return the reader, or null if the file was written in another format or is truncated or corrupt
+         * @throws IOException if the file can't be read, or a column is too large to be mapped
+         */
+        static Reader open(File file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long size = channel.size();
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                if (size < HEADER_SIZE || !readFully(channel, header, 0) || header.getInt() != MAGIC || header.getInt() != FORMAT_VERSION) {
+                    return null;
+                }
+
+                int count = header.getInt();
+                int keypressCount = header.getInt();
+                int sensorCount = header.getInt();
+                // Every keypress takes more than one byte, which also keeps getSize() from overflowing
+                if (count < 0 || keypressCount < 0 || (long)count * keypressCount > size || sensorCount < 0 || sensorCount > BiometricsManager.SENSOR_TYPES.length) {
+                    Log.e(TAG, String.format("%s has an invalid header", file.getPath()));
+                    return null;
+                }
+                if (size != getSize(count, keypressCount, sensorCount)) {
+                    Log.e(TAG, String.format("%s has %d bytes instead of %d, it is truncated or corrupt", file.getPath(), size, getSize(count, keypressCount, sensorCount)));
+                    return null;
+                }
+
+                ByteBuffer indexes = ByteBuffer.allocate(sensorCount * 4).order(ByteOrder.LITTLE_ENDIAN);
+                readFully(channel, indexes, HEADER_SIZE);
+                List<String> sensorTypes = new ArrayList<>(sensorCount);
+                for (int i = 0; i < sensorCount; i++) {
+                    int index = indexes.getInt();
+                    if (index < 0 || index >= BiometricsManager.SENSOR_TYPES.length || sensorTypes.contains(BiometricsManager.SENSOR_TYPES[index])) {
+                        Log.e(TAG, String.format("%s has an invalid sensor index %d", file.getPath(), index));
+                        return null;
+                    }
+                    sensorTypes.add(BiometricsManager.SENSOR_TYPES[index]);
+                }
+                return new Reader(file, channel, count, keypressCount, sensorTypes);
+            }
+        }
+
+        /**
+         * @return the number of acquisitions
+         */
+        int getCount() {
+            return count;
+        }
+
+        /**
+         * @return the sensors of the acquisitions, in the order of their sensor data
+         */
+        List<String> getSensorTypes() {
+            return sensorTypes;
+        }
+
+        /**
+         * @param a the index of the acquisition in the file
+         * @return the acquisition, whose sensor data is null for sensors without data
+         */
+        Acquisition read(int a) {
+            Keypress[] keypresses = new Keypress[keypressCount];
+            for (int k = 0; k < keypressCount; k++) {
+                int i = a * keypressCount + k;
+                keypresses[k] = new Keypress(getTouchProperty(2, i), getTouchProperty(3, i), getTouchProperty(4, i), getTouchProperty(5, i), getTouchProperty(6, i),
+                        getTouchProperty(0, i), getTouchProperty(1, i), sensorTypes.size());
+                for (int s = 0; s < sensorTypes.size(); s++) {
+                    float[] data = null;
+                    if (sensorPresent[s].get(a) != 0) {
+                        data = new float[SENSOR_VALUES];
+                        for (int v = 0; v < SENSOR_VALUES; v++) {
+                            data[v] = sensorData[s].getFloat((i * SENSOR_VALUES + v) * 4);
+                        }
+                    }
+                    keypresses[k].addSensorData(data);
+                }
+            }
+            return new Acquisition(tryIds.getInt(a * 4), timestamps.getLong(a * 8), screenOrientations.getInt(a * 4), situations.getInt(a * 4),
+                    inputMethods.getInt(a * 4), keypresses, sensorTypes.size());
+        }
+
+        /**
+         * @param property the index of the touch property column, see CorpusFile.getTouchProperty()
+         */
+        private float getTouchProperty(int property, int i) {
+            return touchProperties[property].getFloat(i * 4);
+        }
+
+        /**
+         * Maps the next column of the file
+         */
+        private ByteBuffer map(FileChannel channel, long size) throws IOException {
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(String.format("%s has a column of %d bytes, which is too large to be mapped", file.getPath(), size));
+            }
+            ByteBuffer column = channel.map(FileChannel.MapMode.READ_ONLY, position, size).order(ByteOrder.LITTLE_ENDIAN);
+            position += size;
+            return column;
+        }
+
+        /**
+         * Reads from a position of the channel until the buffer is full, and flips it
+         * @return false if the end of the file has been reached before
+         */
+        private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    return false;
+                }
+            }
+            buffer.flip();
+            return true;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package at.jku.fim.phonykeyboard.evaluation;
 
 import at.jku.fim.phonykeyboard.latin.biometrics.BiometricsManager;
+import at.jku.fim.phonykeyboard.latin.biometrics.data.BiometricsDbHelper;
 
 import java.util.Collections;
 import java.util.HashSet;
@@ -39,6 +40,23 @@ public class EvaluationParams {
      */
     public static int classificationFunction = 0;
 
+    /**
+     * Calculates the distances between templates for each feature in parallel, if the template set is large enough,
+     * and scores batches of acquisitions that aren't enrolled in parallel
+     */
+    public static boolean parallelFeatures = false;
+
+    /**
+     * Where the biometrics database is stored, FILE keeps enrolled templates between runs
+     */
+    public static BiometricsDbHelper.StorageMode storageMode = BiometricsDbHelper.StorageMode.MEMORY;
+
+    /**
+     * Keeps the classifier's data in an InMemoryTemplateStore instead of the biometrics database, which avoids the
+     * overhead of JDBC for evaluations that don't need to keep it
+     */
+    public static boolean inMemoryTemplateStore = true;
+
     /**
      * Touch properties to use for authenticating users
      */
@@ -11,7 +11,6 @@ import com.google.common.primitives.Floats;
 import com.panayotis.gnuplot.style.FillStyle;
 import com.panayotis.gnuplot.style.Style;
 
-import java.io.File;
 import java.util.*;
 
 public class RawDataPlots {
@@ -20,14 +19,12 @@ public class RawDataPlots {
     private static final String[] SITUATIONS = new String[] { "Sitting", "Standing", "Lying", "Walking", "Moving" };
     private static final String[] INPUTMETHODS = new String[] { "RT", "LT", "BT", "RL", "LR", "O" };
 
-    private String csvFilePath;
-    private String[] csvFiles;
+    private StudyCorpus corpus;
     private List<Acquisition>[] participants;
 
     RawDataPlots(String csvFilePath) {
-        this.csvFilePath = csvFilePath;
-        csvFiles = new File(csvFilePath).list((dir, name) -> name.endsWith(".csv") && !name.endsWith(".old.csv") && !name.contains(".random.") && !name.contains(".cg.csv"));
-        participants = new List[csvFiles.length];
+        corpus = new StudyCorpus(csvFilePath);
+        participants = new List[corpus.getParticipantCount()];
 
         getAcquisitions(true);
     }
@@ -288,19 +285,13 @@ public class RawDataPlots {
 
     private void getAcquisitions(boolean loadAllSensors) {
         Log.setSilent(true);
-        Set<String> sensors = null;
+        Set<String> sensors = new HashSet<>(EvaluationParams.usedSensors);
         if (loadAllSensors) {
-            sensors = new HashSet<>(EvaluationParams.usedSensors);
-            Collections.addAll(EvaluationParams.usedSensors, BiometricsManager.SENSOR_TYPES);
+            Collections.addAll(sensors, BiometricsManager.SENSOR_TYPES);
         }
-        for (int i = 0; i < csvFiles.length; i++) {
-            List<Acquisition> acquisitions = new ArrayList<>(162);
-            StatisticalClassifierEvaluation.processCsvFile(makeAbsolute(csvFiles[i]), acquisitions::add);
-            ((BiometricsManagerImpl)BiometricsManager.getInstance()).getClassifier().clearData();
-            participants[i] = acquisitions;
-        }
-        if (loadAllSensors) {
-            EvaluationParams.usedSensors = sensors;
+        corpus.load();
+        for (int i = 0; i < corpus.getParticipantCount(); i++) {
+            participants[i] = corpus.getParticipant(i).getAcquisitions(EvaluationParams.usedTouchProperties, sensors);
         }
         Log.setSilent(false);
     }
@@ -308,11 +299,11 @@ public class RawDataPlots {
     private void evaluate(List<Double> p, List<Double> n) {
         Log.setSilent(true);
         System.out.println();
-        for (int i = 0; i < csvFiles.length; i++) {
-            StatisticalClassifierEvaluation.processCsvFile(makeAbsolute(csvFiles[i]), false, false, score -> addScore(p, score));
-            for (int j = 0; j < csvFiles.length; j++) {
+        for (int i = 0; i < corpus.getParticipantCount(); i++) {
+            StatisticalClassifierEvaluation.processAcquisitions(corpus.getParticipant(i).getAcquisitions(), false, false, score -> addScore(p, score));
+            for (int j = 0; j < corpus.getParticipantCount(); j++) {
                 if (j == i) continue;
-                StatisticalClassifierEvaluation.processCsvFile(makeAbsolute(csvFiles[j]), true, false, score -> addScore(n, score));
+                StatisticalClassifierEvaluation.processAcquisitions(corpus.getParticipant(j).getAcquisitions(), true, false, score -> addScore(n, score));
             }
             ((BiometricsManagerImpl)BiometricsManager.getInstance()).getClassifier().clearData();
         }
@@ -325,10 +316,6 @@ public class RawDataPlots {
         }
     }
 
-    private String makeAbsolute(String fileName) {
-        return String.format("%s%s%s", csvFilePath, File.separator, fileName);
-    }
-
     private void setParticipantColors(Plot<?> plot) {
         plot.setProperty("linetype 1", "linecolor rgb \"#990080ff\"");
         plot.setProperty("linetype 2", "linecolor rgb \"#9900a000\"");
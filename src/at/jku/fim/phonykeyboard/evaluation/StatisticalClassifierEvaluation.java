@@ -4,25 +4,24 @@ import at.jku.fim.phonykeyboard.latin.biometrics.BiometricsEntry;
 import at.jku.fim.phonykeyboard.latin.biometrics.BiometricsManager;
 import at.jku.fim.phonykeyboard.latin.biometrics.BiometricsManagerImpl;
 import at.jku.fim.phonykeyboard.latin.biometrics.classifiers.StatisticalClassifier;
-import at.jku.fim.phonykeyboard.latin.biometrics.data.StatisticalClassifierContract;
+import at.jku.fim.phonykeyboard.latin.biometrics.data.BiometricsDbHelper;
 import at.jku.fim.phonykeyboard.latin.utils.CsvUtils;
 import at.jku.fim.phonykeyboard.latin.utils.Log;
 import com.opencsv.CSVReader;
 import org.apache.commons.cli.*;
 
 import java.io.*;
+import java.sql.SQLException;
 import java.util.*;
-import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 public class StatisticalClassifierEvaluation {
     private static final String TAG = "StatisticalClassifierEvaluation";
-    private static final int NUM_STATIC_COLUMNS = 9;
-    private static final int NUM_EVALUATION_KEYPRESSES = 6;
-    private static final int SENSOR_DATA_ROUNDING_FACTOR = 0;
-    private static final Map<String, Integer> columnMapping = new HashMap<>();
-
-    private static final Pattern entryPattern = Pattern.compile(";");
-    private static final Pattern arrayPattern = Pattern.compile("\\|");
+    static final int NUM_STATIC_COLUMNS = 9;
+    static final int NUM_EVALUATION_KEYPRESSES = 6;
+    static final int SENSOR_DATA_ROUNDING_FACTOR = 0;
+    private static final int SHUFFLE_BUFFER_SIZE = 10000;    // Study files are shuffled completely, longer exports only locally
+    private static final int EVALUATION_BATCH_SIZE = 1000;
 
     public static void main(String[] args) {
         CommandLine cmd = parseArgs(args);
@@ -35,13 +34,46 @@ public class StatisticalClassifierEvaluation {
             findOptimumParams(cmd.getOptionValue("p"), cmd.hasOption("s"));
         } else if (cmd.hasOption("g")) {
             plotData(cmd.getOptionValue("g"));
+        } else if (cmd.hasOption("c")) {
+            convertCsvFiles(cmd.getOptionValue("c"));
         } else {
+            StatisticalClassifier classifier = (StatisticalClassifier)manager.getClassifier();
+            File snapshotFile = new File(StatisticalClassifier.SNAPSHOT_FILE_NAME);
+            boolean useSnapshot = EvaluationParams.storageMode == BiometricsDbHelper.StorageMode.FILE;    // Templates of the in-memory database aren't kept
+            if (useSnapshot) {
+                loadSnapshot(classifier, snapshotFile);
+            }
+
             if (cmd.hasOption("o")) {
                 processCsvFile(cmd.getOptionValue("o"), false, false, null);
             }
             if (cmd.hasOption("e")) {
                 processCsvFile(cmd.getOptionValue("e"), true, false, null);
             }
+
+            if (useSnapshot) {
+                saveSnapshot(classifier, snapshotFile);
+            }
+        }
+    }
+
+    private static void loadSnapshot(StatisticalClassifier classifier, File file) {
+        try {
+            if (classifier.loadSnapshot(file)) {
+                Log.i(TAG, String.format("Restored template sets from %s", file.getPath()));
+            } else if (file.exists()) {
+                Log.i(TAG, String.format("Template snapshot %s is outdated, reading template sets from the database", file.getPath()));
+            }
+        } catch (IOException | SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void saveSnapshot(StatisticalClassifier classifier, File file) {
+        try {
+            classifier.saveSnapshot(file);
+        } catch (IOException | SQLException e) {
+            e.printStackTrace();
         }
     }
 
@@ -52,9 +84,12 @@ public class StatisticalClassifierEvaluation {
         group.addOption(Option.builder("o").hasArg().type(String.class).desc("Ordered mode, evaluate one user as given in file").build());
         group.addOption(Option.builder("p").hasArg().type(String.class).desc("Parameter optimization mode, does magic").build());
         group.addOption(Option.builder("g").hasArg().type(String.class).desc("Plot graphs for data").build());
+        group.addOption(Option.builder("c").hasArg().type(String.class).desc("Convert a study file or all study files of a directory to binary files, which are read instead of them").build());
         options.addOption("d", "Only output data to STDOUT instead of full log");
         options.addOption("e", true, "A file that should be evaluated using the original mode's data");
         options.addOption("s", "Skip data of control group participants in optimization mode");
+        options.addOption("t", "Calculate the features of large template sets and score impostor batches in parallel");
+        options.addOption("f", "Store the biometrics database in " + BiometricsDbHelper.DATABASE_NAME + " instead of memory");
         options.addOptionGroup(group);
 
         CommandLineParser parser = new DefaultParser();
@@ -64,6 +99,13 @@ public class StatisticalClassifierEvaluation {
             if (cmd.hasOption("d")) {
                 Log.setDataOnly(true);
             }
+            if (cmd.hasOption("t")) {
+                EvaluationParams.parallelFeatures = true;
+            }
+            if (cmd.hasOption("f")) {
+                EvaluationParams.storageMode = BiometricsDbHelper.StorageMode.FILE;
+                EvaluationParams.inMemoryTemplateStore = false;  // The templates have to be stored in the file
+            }
             if (cmd.hasOption("o")) {
                 ensureFileExists(cmd.getOptionValue("o"));
             }
@@ -76,6 +118,9 @@ public class StatisticalClassifierEvaluation {
             if (cmd.hasOption("e")) {
                 ensureFileExists(cmd.getOptionValue("e"));
             }
+            if (cmd.hasOption("c")) {
+                ensurePathExists(cmd.getOptionValue("c"));
+            }
 
             return cmd;
         } catch (ParseException e) {
@@ -98,6 +143,29 @@ public class StatisticalClassifierEvaluation {
         }
     }
 
+    private static void ensurePathExists(String path) {
+        File file = new File(path);
+        if (!file.exists()) {
+            throw new IllegalArgumentException(String.format("The file or directory \"%s\" does not exist.", file.getAbsolutePath()));
+        }
+    }
+
+    private static void convertCsvFiles(String path) {
+        File file = new File(path);
+        String[] csvFiles = file.isDirectory() ? StudyStream.listStudyFiles(file) : new String[] { file.getName() };
+        File directory = file.isDirectory() ? file : file.getAbsoluteFile().getParentFile();
+        for (String csvFile : csvFiles) {
+            String csvPath = new File(directory, csvFile).getPath();
+            File corpusFile = CorpusFile.getFile(csvPath);
+            Log.i(TAG, String.format("Converting %s to %s", csvPath, corpusFile.getPath()));
+            try {
+                readCsvFile(csvPath).write(corpusFile);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
     private static void findOptimumParams(String csvFilePath, boolean skipControlGroup) {
         Log.i(TAG, "Finding optimum parameters, this might take a while");
         StatisticalClassifierOptimizer optimizer = new StatisticalClassifierOptimizer(csvFilePath, !skipControlGroup);
@@ -150,160 +218,122 @@ public class StatisticalClassifierEvaluation {
         processCsvFile(csvFile, false, false, null, processor);
     }
 
+    /**
+     * Streams the acquisitions of a study file (or of the study files of a directory), so that only a single line, the
+     * shuffle buffer or a batch of evaluation mode acquisitions is held in memory at a time
+     */
     private static void processCsvFile(String csvFile, boolean evaluationMode, boolean randomize, ScoreListener listener, CSVLineProcessor processor) {
-        CSVReader reader = null;
-        try {
-            reader = new CSVReader(new BufferedReader(new FileReader(csvFile)), CsvUtils.COMMA, CsvUtils.QUOTE);
-        } catch (FileNotFoundException e) {
-            // Shouldn't happen, because file existence is checked in advance
+        try (Stream<Acquisition> acquisitions = randomize ? StudyStream.shuffle(StudyStream.of(csvFile), SHUFFLE_BUFFER_SIZE, new Random()) : StudyStream.of(csvFile)) {
+            if (processor != null) {
+                acquisitions.forEachOrdered(processor::process);
+            } else if (evaluationMode) {
+                // Evaluation mode never changes the template set, so acquisitions can be scored in batches
+                List<Acquisition> batch = new ArrayList<>(EVALUATION_BATCH_SIZE);
+                acquisitions.forEachOrdered(acquisition -> {
+                    batch.add(acquisition);
+                    if (batch.size() == EVALUATION_BATCH_SIZE) {
+                        calcScoresAndFire(batch, listener);
+                        batch.clear();
+                    }
+                });
+                if (!batch.isEmpty()) {
+                    calcScoresAndFire(batch, listener);
+                }
+            } else {
+                acquisitions.forEachOrdered(acquisition -> calcScoreAndFire(acquisition, false, listener));
+            }
+        } catch (UncheckedIOException | NullPointerException e) {
             e.printStackTrace();
         }
+    }
 
-        ArrayList<Acquisition> acquisitions = new ArrayList<>(162);
-        try {
+    /**
+     * Scores acquisitions that have already been parsed, like processCsvFile() does with the acquisitions of a file
+     */
+    static void processAcquisitions(List<Acquisition> acquisitions, boolean evaluationMode, boolean randomize, ScoreListener listener) {
+        if (randomize) {
+            acquisitions = new ArrayList<>(acquisitions);
+            Collections.shuffle(acquisitions);
+        }
+        if (evaluationMode) {
+            // Evaluation mode never changes the template set, so all acquisitions can be scored at once
+            calcScoresAndFire(acquisitions, listener);
+            return;
+        }
+        for (Acquisition acquisition : acquisitions) {
+            calcScoreAndFire(acquisition, evaluationMode, listener);
+        }
+    }
+
+    /**
+     * Parses the acquisitions of a study file with all touch properties and sensors, for selecting the used ones later
+     * @return the acquisitions, whose sensor data is null for sensors without data or with malformed data
+     */
+    static CorpusFile readCsvFile(String csvFile) {
+        Set<String> touchProperties = new HashSet<>(Arrays.asList(EvaluationParams.TOUCH_PROPERTIES));
+        Set<String> sensors = new HashSet<>(Arrays.asList(BiometricsManager.SENSOR_TYPES));
+        List<Acquisition> acquisitions = new ArrayList<>(162);
+        StudyRowParser parser = null;
+        try (CSVReader reader = new CSVReader(new BufferedReader(new FileReader(csvFile)), CsvUtils.COMMA, CsvUtils.QUOTE)) {
             String[] line = reader.readNext();
             while (line != null) {
                 if (line.length < NUM_STATIC_COLUMNS) {
                     Log.e(TAG, String.format("Line %d has not enough elements", reader.getLinesRead()));
-                    line = reader.readNext();
-                    continue;
-                }
-                if (reader.getRecordsRead() > 1) {
-                    Log.i(TAG, String.format("Processing entry %d", reader.getRecordsRead()));
-                    Acquisition acquisition = processLine(line, evaluationMode, randomize, listener);
-                    if ((randomize || processor != null) && acquisition != null) {
+                } else if (reader.getRecordsRead() > 1) {
+                    Acquisition acquisition = parser.parse(line, touchProperties, sensors, true);
+                    if (acquisition != null) {
                         acquisitions.add(acquisition);
                     }
                 } else {
-                    Log.i(TAG, "Creating column index mapping");
-                    for (int i = 0; i < line.length; i++) {
-                        columnMapping.put(line[i], i);
-                    }
+                    parser = new StudyRowParser(new StudySchema(line));
                 }
                 line = reader.readNext();
             }
-
-            reader.close();
-        } catch (IOException | NullPointerException e) {
+        } catch (IOException e) {
             e.printStackTrace();
         }
+        return new CorpusFile(acquisitions, parser != null ? parser.getSchema().getSensorTypes() : Collections.emptyList());
+    }
 
-        if (randomize || processor != null) {
-            if (randomize) {
-                Collections.shuffle(acquisitions);
-            }
-            for (Acquisition acquisition : acquisitions) {
-                if (processor != null) {
-                    processor.process(acquisition);
-                } else {
-                    calcScoreAndFire(acquisition, evaluationMode, listener);
-                }
-            }
+    private static void calcScoreAndFire(Acquisition acquisition, boolean evaluationMode, ScoreListener listener) {
+        double score = calcScore(acquisition, evaluationMode);
+        if (listener != null) {
+            listener.onScoreCalculated(score);
         }
     }
 
-    private static Acquisition processLine(String[] line, boolean evaluationMode, boolean randomize, ScoreListener listener) {
-        int id = toInt(line[columnMapping.get(StatisticalClassifierContract.StatisticalClassifierData._ID)]);
-        long timestamp = toLong(line[columnMapping.get(StatisticalClassifierContract.CaptureClassifierData.COLUMN_TIMESTAMP)]);
-        int screenOrientation = toInt(line[columnMapping.get(StatisticalClassifierContract.StatisticalClassifierData.COLUMN_SCREEN_ORIENTATION)]);
-
-        String[] key = new String[0];
-        int inputmethod = -1;
-        int situation = -1;
-        if (columnMapping.containsKey(StatisticalClassifierContract.CaptureClassifierData.COLUMN_KEY)) {
-            // Support both old and new study files
-            key = entryPattern.split(line[columnMapping.get(StatisticalClassifierContract.CaptureClassifierData.COLUMN_KEY)]);
-            inputmethod = toInt(line[columnMapping.get(StatisticalClassifierContract.CaptureClassifierData.COLUMN_INPUTMETHOD)]);
-            situation = toInt(line[columnMapping.get(StatisticalClassifierContract.CaptureClassifierData.COLUMN_SITUATION)]);
-        }
+    /**
+     * Scores acquisitions that are never added to the template set in batches of equal screen orientation, so the
+     * templates are only loaded once per batch
+     */
+    private static void calcScoresAndFire(List<Acquisition> acquisitions, ScoreListener listener) {
+        BiometricsManagerImpl manager = (BiometricsManagerImpl)BiometricsManager.getInstance();
+        StatisticalClassifier classifier = (StatisticalClassifier)manager.getClassifier();
+        classifier.onCreate();
 
-        String[] downDistances = entryPattern.split(line[columnMapping.get(StatisticalClassifierContract.StatisticalClassifierData.COLUMN_KEY_DOWNDOWN)]);
-        String[] upDistances = entryPattern.split(line[columnMapping.get(StatisticalClassifierContract.StatisticalClassifierData.COLUMN_KEY_DOWNUP)]);
-        String[] positions = entryPattern.split(line[columnMapping.get(StatisticalClassifierContract.StatisticalClassifierData.COLUMN_POSITION)]);
-        String[] sizes = entryPattern.split(line[columnMapping.get(StatisticalClassifierContract.StatisticalClassifierData.COLUMN_SIZE)]);
-        String[] orientations = entryPattern.split(line[columnMapping.get(StatisticalClassifierContract.StatisticalClassifierData.COLUMN_ORIENTATION)]);
-        String[] pressures = entryPattern.split(line[columnMapping.get(StatisticalClassifierContract.StatisticalClassifierData.COLUMN_PRESSURE)]);
-
-        List<String[]> sensors = new ArrayList<>(line.length - NUM_STATIC_COLUMNS);
-        for (String sensor : BiometricsManager.SENSOR_TYPES) {
-            if (EvaluationParams.usedSensors.contains(sensor) && columnMapping.containsKey(sensor)) {
-                sensors.add(entryPattern.split(line[columnMapping.get(sensor)]));
+        int start = 0;
+        while (start < acquisitions.size()) {
+            int screenOrientation = acquisitions.get(start).getScreenOrientation();
+            int end = start + 1;
+            while (end < acquisitions.size() && acquisitions.get(end).getScreenOrientation() == screenOrientation) {
+                end++;
             }
-        }
 
-        Log.i(TAG, String.format("Processing study id %d", id));
-        if (upDistances.length != NUM_EVALUATION_KEYPRESSES || downDistances.length != upDistances.length - 1) {
-            Log.e(TAG, String.format("ID %d: Invalid number of keypresses, skipping try", id));
-            return null;
-        }
-        if (upDistances.length != positions.length || positions.length != sizes.length || sizes.length != orientations.length
-                || orientations.length != pressures.length) {
-            Log.e(TAG, String.format("ID %d: Unequal number of data points, skipping try", id));
-            return null;
-        }
-
-        Keypress[] keypresses = new Keypress[upDistances.length];
-        for (int i = 0; i < upDistances.length; i++) {
-            float downDistance = 0;
-            if (i > 0) {
-                downDistance = toFloat(downDistances[i-1]);
-            }
-            float upDistance = toFloat(upDistances[i]);
-            float[] position;
-            if (EvaluationParams.usedTouchProperties.contains("position")) {
-                position = toFloatArray(positions[i], 0);
-            } else {
-                position = new float[] { 0f, 0f };
+            List<BiometricsEntry[]> inputs = new ArrayList<>(end - start);
+            for (int i = start; i < end; i++) {
+                inputs.add(toEntries(acquisitions.get(i)));
             }
-            float size;
-            if (EvaluationParams.usedTouchProperties.contains("size")) {
-                size = toFloat(sizes[i]);
-            } else {
-                size = 0;
-            }
-            float orientation;
-            if (EvaluationParams.usedTouchProperties.contains("orientation")) {
-                orientation = toFloat(orientations[i]);
-            } else {
-                orientation = 0;
-            }
-            float pressure;
-            if (EvaluationParams.usedTouchProperties.contains("pressure")) {
-                pressure = toFloat(pressures[i]);
-            } else {
-                pressure = 0;
-            }
-            keypresses[i] = new Keypress(position[0], position[1], size, orientation, pressure, downDistance, upDistance, sensors.size());
-
-            if (i > 0) {
-                for (String[] sensor : sensors) {
-                    if (sensor.length > 0) {
-                        keypresses[i].addSensorData(toFloatArray(sensor[i - 1], 3, true));
-                    } else {
-                        Log.e(TAG, String.format("ID %d: A sensor has no data for keypress %d, skipping try", id, i + 1));
-                        return null;
-                    }
+            manager.setScreenOrientation(screenOrientation);
+            double[] scores = classifier.getScores(manager.getBiometricsContext(), inputs, EvaluationParams.parallelFeatures);
+            for (int i = 0; i < scores.length; i++) {
+                logScore(acquisitions.get(start + i), scores[i]);
+                if (listener != null) {
+                    listener.onScoreCalculated(scores[i]);
                 }
             }
+            start = end;
         }
-
-        // Add zero sensor data to first keypress, because no absolute value is available from reports
-        for (int i = 0; i < sensors.size(); i++) {
-            keypresses[0].addSensorData(new float[keypresses[1].getSensorData().get(i).length]);
-        }
-
-        Acquisition acquisition = new Acquisition(id, timestamp, screenOrientation, situation, inputmethod, keypresses, sensors.size());
-        if (!randomize) {
-            calcScoreAndFire(acquisition, evaluationMode, listener);
-        }
-        return acquisition;
-    }
-
-    private static void calcScoreAndFire(Acquisition acquisition, boolean evaluationMode, ScoreListener listener) {
-        double score = calcScore(acquisition, evaluationMode);
-        if (listener != null) {
-            listener.onScoreCalculated(score);
-        }
+        classifier.onDestroy();
     }
 
     private static double calcScore(Acquisition acquisition, boolean evaluationMode) {
@@ -313,6 +343,19 @@ public class StatisticalClassifierEvaluation {
         classifier.onCreate();
 
         classifier.onStartInput(manager.getBiometricsContext(), false);
+        for (BiometricsEntry entry : toEntries(acquisition)) {
+            classifier.onKeyEvent(entry);
+        }
+        classifier.onFinishInput(true, evaluationMode);
+
+        double score = classifier.getScore(evaluationMode);
+        logScore(acquisition, score);
+        classifier.onDestroy();
+        return score;
+    }
+
+    private static BiometricsEntry[] toEntries(Acquisition acquisition) {
+        BiometricsEntry[] entries = new BiometricsEntry[acquisition.getKeypresses().length * 2];
         long entryTimestamp = acquisition.getTimestamp();
         for (int i = 0; i < acquisition.getKeypresses().length; i++) {
             Keypress keypress = acquisition.getKeypresses()[i];
@@ -321,12 +364,13 @@ public class StatisticalClassifierEvaluation {
                 BiometricsEntry entry = new BiometricsEntry(acquisition.getSensorCount());
                 entry.setProperties(i, downOrUp, entryTimestamp + (int)keypress.getUpDistance() * downOrUp, keypress.getX(), keypress.getY(), keypress.getSize(), keypress.getOrientation(), keypress.getPressure(), acquisition.getScreenOrientation());
                 entry.setSensorData(keypress.getSensorData());
-                classifier.onKeyEvent(entry);
+                entries[i * 2 + downOrUp] = entry;
             }
         }
-        classifier.onFinishInput(true, evaluationMode);
+        return entries;
+    }
 
-        double score = classifier.getScore(evaluationMode);
+    private static void logScore(Acquisition acquisition, double score) {
         if (score == BiometricsManager.SCORE_CAPTURING_ERROR) {
             Log.e(TAG, String.format("ID %d: Capturing error, check data", acquisition.getTryId()));
         } else if (score == BiometricsManager.SCORE_NOT_ENOUGH_DATA) {
@@ -335,46 +379,6 @@ public class StatisticalClassifierEvaluation {
             Log.i(TAG, String.format("Score: %f", score));
         }
         Log.data(String.format("%d\t%f", acquisition.getTryId(), score));
-        classifier.onDestroy();
-        return score;
-    }
-
-    private static int toInt(String value) {
-        if (value.isEmpty()) {
-            return 0;
-        }
-        return Integer.valueOf(value);
-    }
-
-    private static long toLong(String value) {
-        if (value.isEmpty()) {
-            return 0;
-        }
-        return Long.valueOf(value);
-    }
-
-    private static float toFloat(String value) {
-        if (value.isEmpty()) {
-            return 0;
-        }
-        return Float.valueOf(value);
-    }
-
-    private static float[] toFloatArray(String value, int limit, boolean allowRounding) {
-        String[] values = arrayPattern.split(value);
-        int max = limit <= 0 ? values.length : limit;
-        float[] floats = new float[max];
-        for (int i = 0; i < limit; i++) {
-            floats[i] = toFloat(values[i]);
-            if (allowRounding && SENSOR_DATA_ROUNDING_FACTOR >= 1) {
-                floats[i] = (int)(floats[i] * SENSOR_DATA_ROUNDING_FACTOR) / (float)SENSOR_DATA_ROUNDING_FACTOR;
-            }
-        }
-        return floats;
-    }
-
-    private static float[] toFloatArray(String value, int limit) {
-        return toFloatArray(value, limit, false);
     }
 
     public interface CSVLineProcessor {
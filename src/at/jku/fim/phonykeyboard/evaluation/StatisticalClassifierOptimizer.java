@@ -6,7 +6,6 @@ import at.jku.fim.phonykeyboard.latin.biometrics.BiometricsManagerImpl;
 import at.jku.fim.phonykeyboard.latin.utils.Log;
 import com.google.common.collect.Sets;
 
-import java.io.File;
 import java.util.*;
 
 class StatisticalClassifierOptimizer {
@@ -22,15 +21,11 @@ class StatisticalClassifierOptimizer {
     static final double THRESHOLD_INCREMENT = 0.01;
     private static final double OPTIMUM_THRESHOLD = 1.09;
 
-    private String csvFilePath;
-    private String[] csvFiles;
-    private String[] controlGroupFiles;
+    private StudyCorpus corpus;
     private boolean controlGroupOptimization;
 
     StatisticalClassifierOptimizer(String csvFilePath, boolean optimizeControlGroup) {
-        this.csvFilePath = csvFilePath;
-        csvFiles = new File(csvFilePath).list((dir, name) -> name.endsWith(".csv") && !name.endsWith(".old.csv") && !name.endsWith(".cg.csv") && !name.contains(".random."));
-        controlGroupFiles = new File(csvFilePath).list((dir, name) -> name.endsWith("cg.csv") && !name.contains(".random."));
+        corpus = new StudyCorpus(csvFilePath);
         controlGroupOptimization = optimizeControlGroup;
     }
 
@@ -320,14 +315,16 @@ class StatisticalClassifierOptimizer {
     private double processFiles() {
         Log.setSilent(true);
         double eer = 0, far = 0, frr = 0;
+        corpus.load();
         for (int r = 0; r < NUM_OPTIMIZATION_RUNS; r++) {
             List<Double> p = new ArrayList<>();
             List<Double> n = new ArrayList<>();
-            for (int i = 0; i < csvFiles.length; i++) {
-                StatisticalClassifierEvaluation.processCsvFile(makeAbsolute(csvFiles[i]), false, RANDOM_OPTIMIZATION, score -> addScore(p, score));
-                for (int j = 0; controlGroupOptimization ? j < controlGroupFiles.length : j < csvFiles.length; j++) {
+            for (int i = 0; i < corpus.getParticipantCount(); i++) {
+                StatisticalClassifierEvaluation.processAcquisitions(corpus.getParticipant(i).getAcquisitions(), false, RANDOM_OPTIMIZATION, score -> addScore(p, score));
+                for (int j = 0; controlGroupOptimization ? j < corpus.getControlGroupCount() : j < corpus.getParticipantCount(); j++) {
                     if (!controlGroupOptimization && j == i) continue;
-                    StatisticalClassifierEvaluation.processCsvFile(makeAbsolute(controlGroupOptimization ? controlGroupFiles[j] : csvFiles[j]), true, RANDOM_OPTIMIZATION, score -> addScore(n, score));
+                    StudyCorpus.StudyFile file = controlGroupOptimization ? corpus.getControlGroup(j) : corpus.getParticipant(j);
+                    StatisticalClassifierEvaluation.processAcquisitions(file.getAcquisitions(), true, RANDOM_OPTIMIZATION, score -> addScore(n, score));
                 }
                 ((BiometricsManagerImpl) BiometricsManager.getInstance()).getClassifier().clearData();
             }
@@ -352,10 +349,6 @@ class StatisticalClassifierOptimizer {
         }
     }
 
-    private String makeAbsolute(String fileName) {
-        return String.format("%s%s%s", csvFilePath, File.separator, fileName);
-    }
-
     private void addScore(List<Double> scores, double score) {
         if (score != BiometricsManager.SCORE_NOT_ENOUGH_DATA && score != BiometricsManager.SCORE_CAPTURING_ERROR) {
             scores.add(score);
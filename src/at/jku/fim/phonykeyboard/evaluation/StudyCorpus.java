@@ -0,0 +1,193 @@
+package at.jku.fim.phonykeyboard.evaluation;
+
+import at.jku.fim.phonykeyboard.latin.utils.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * The study files of a directory, whose acquisitions are parsed only once. Each file is parsed with all touch
+ * properties and sensors when it is first used, and the touch properties and sensors in EvaluationParams are selected
+ * from the parsed acquisitions afterwards, so that changing them doesn't require parsing the files again. Study files
+ * that have been converted to a CorpusFile are read from it instead.
+ */
+public class StudyCorpus {
+    private static final String TAG = "StudyCorpus";
+
+    private final StudyFile[] participants;
+    private final StudyFile[] controlGroups;
+
+    public StudyCorpus(String path) {
+        String[] participantFiles = new File(path).list((dir, name) -> name.endsWith(".csv") && !name.endsWith(".old.csv") && !name.endsWith(".cg.csv") && !name.contains(".random."));
+        String[] controlGroupFiles = new File(path).list((dir, name) -> name.endsWith("cg.csv") && !name.contains(".random."));
+        participants = toStudyFiles(path, participantFiles);
+        controlGroups = toStudyFiles(path, controlGroupFiles);
+    }
+
+    /**
+     * @param fileNames the study files, which are sorted by their name so that participants are always in the same order
+     */
+    private static StudyFile[] toStudyFiles(String path, String[] fileNames) {
+        Arrays.sort(fileNames);
+        StudyFile[] files = new StudyFile[fileNames.length];
+        for (int i = 0; i < fileNames.length; i++) {
+            files[i] = new StudyFile(String.format("%s%s%s", path, File.separator, fileNames[i]));
+        }
+        return files;
+    }
+
+    /**
+     * Parses all study files that haven't been parsed yet in parallel, instead of one after another when they are first
+     * used
+     */
+    public void load() {
+        Stream.concat(Arrays.stream(participants), Arrays.stream(controlGroups)).parallel().forEach(StudyFile::load);
+    }
+
+    public int getParticipantCount() {
+        return participants.length;
+    }
+
+    public StudyFile getParticipant(int i) {
+        return participants[i];
+    }
+
+    /**
+     * @return the number of control group participants (.cg.csv files)
+     */
+    public int getControlGroupCount() {
+        return controlGroups.length;
+    }
+
+    public StudyFile getControlGroup(int i) {
+        return controlGroups[i];
+    }
+
+    /**
+     * The acquisitions of a single study file
+     */
+    public static class StudyFile {
+        private final String path;
+        private List<Acquisition> acquisitions;   // With all touch properties and sensors
+        private List<String> sensorTypes;   // Sensors of the acquisitions, in the order of their sensor data
+
+        // Acquisitions selected last, which are reused as long as the used touch properties and sensors don't change
+        private Set<String> selectedTouchProperties, selectedSensors;
+        private List<Acquisition> selected;
+
+        StudyFile(String path) {
+            this.path = path;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @return the acquisitions with the touch properties and sensors of EvaluationParams
+         */
+        public List<Acquisition> getAcquisitions() {
+            return getAcquisitions(EvaluationParams.usedTouchProperties, EvaluationParams.usedSensors);
+        }
+
+        /**
+         * @param touchProperties the touch properties to use, all others are 0 like in StatisticalClassifierEvaluation
+         * @param sensors the sensors to use
+         * @return the acquisitions that have data for all of these sensors, which must not be modified
+         */
+        public synchronized List<Acquisition> getAcquisitions(Set<String> touchProperties, Set<String> sensors) {
+            load();
+            if (selected == null || !touchProperties.equals(selectedTouchProperties) || !sensors.equals(selectedSensors)) {
+                selectedTouchProperties = new HashSet<>(touchProperties);
+                selectedSensors = new HashSet<>(sensors);
+                selected = select(touchProperties, sensors);
+            }
+            return selected;
+        }
+
+        /**
+         * Reads the binary version of the study file if it is up to date, and parses the study file otherwise
+         */
+        synchronized void load() {
+            if (acquisitions != null) return;
+
+            CorpusFile corpusFile = null;
+            if (CorpusFile.isCurrent(path)) {
+                try {
+                    corpusFile = CorpusFile.read(CorpusFile.getFile(path));
+                    if (corpusFile == null) {
+                        Log.e(TAG, String.format("%s has an unknown format or is corrupt, parsing %s instead", CorpusFile.getFile(path).getPath(), path));
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (corpusFile == null) {
+                corpusFile = StatisticalClassifierEvaluation.readCsvFile(path);
+            }
+            sensorTypes = corpusFile.getSensorTypes();
+            acquisitions = corpusFile.getAcquisitions();
+        }
+
+        private List<Acquisition> select(Set<String> touchProperties, Set<String> sensors) {
+            int[] sensorIndexes = getSensorIndexes(sensorTypes, sensors);
+            List<Acquisition> selected = new ArrayList<>(acquisitions.size());
+            for (Acquisition acquisition : acquisitions) {
+                Acquisition selectedAcquisition = select(acquisition, touchProperties, sensorIndexes);
+                if (selectedAcquisition != null) {
+                    selected.add(selectedAcquisition);
+                }
+            }
+            return selected;
+        }
+
+        /**
+         * @param sensorTypes the sensors of the parsed acquisitions, in the order of their sensor data
+         * @param sensors the sensors to use
+         * @return the indexes of the used sensors in the sensor data of the parsed acquisitions
+         */
+        static int[] getSensorIndexes(List<String> sensorTypes, Set<String> sensors) {
+            int[] sensorIndexes = new int[sensors.size()];
+            int sensorCount = 0;
+            for (int s = 0; s < sensorTypes.size(); s++) {
+                if (sensors.contains(sensorTypes.get(s))) {
+                    sensorIndexes[sensorCount++] = s;
+                }
+            }
+            return Arrays.copyOf(sensorIndexes, sensorCount);
+        }
+
+        /**
+         * @param acquisition an acquisition parsed with all touch properties and sensors
+         * @param touchProperties the touch properties to use, all others are 0
+         * @param sensorIndexes the used sensors, see getSensorIndexes()
+         * @return the acquisition with only these touch properties and sensors, or null if it has no data for one of
+         * the sensors
+         */
+        static Acquisition select(Acquisition acquisition, Set<String> touchProperties, int[] sensorIndexes) {
+            Keypress[] keypresses = acquisition.getKeypresses();
+            for (int sensorIndex : sensorIndexes) {
+                if (keypresses[0].getSensorData().get(sensorIndex) == null) {
+                    Log.e(TAG, String.format("ID %d: A sensor has no data for keypress 2, skipping try", acquisition.getTryId()));
+                    return null;
+                }
+            }
+
+            int sensorCount = sensorIndexes.length;
+            Keypress[] selectedKeypresses = new Keypress[keypresses.length];
+            for (int i = 0; i < keypresses.length; i++) {
+                Keypress keypress = keypresses[i];
+                selectedKeypresses[i] = new Keypress(touchProperties.contains("position") ? keypress.getX() : 0, touchProperties.contains("position") ? keypress.getY() : 0,
+                        touchProperties.contains("size") ? keypress.getSize() : 0, touchProperties.contains("orientation") ? keypress.getOrientation() : 0,
+                        touchProperties.contains("pressure") ? keypress.getPressure() : 0, keypress.getDownDistance(), keypress.getUpDistance(), sensorCount);
+                for (int s = 0; s < sensorCount; s++) {
+                    selectedKeypresses[i].addSensorData(keypress.getSensorData().get(sensorIndexes[s]));
+                }
+            }
+            return new Acquisition(acquisition.getTryId(), acquisition.getTimestamp(), acquisition.getScreenOrientation(), acquisition.getSituation(),
+                    acquisition.getInputMethod(), selectedKeypresses, sensorCount);
+        }
+    }
+}
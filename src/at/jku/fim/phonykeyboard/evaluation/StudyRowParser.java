@@ -0,0 +1,321 @@
+package at.jku.fim.phonykeyboard.evaluation;
+
+import at.jku.fim.phonykeyboard.latin.biometrics.data.StatisticalClassifierContract;
+import at.jku.fim.phonykeyboard.latin.utils.Log;
+
+import java.util.Set;
+
+/**
+ * Parses the lines of a study file into acquisitions. The ;-separated entries and |-separated values of a field are
+ * scanned in place and parsed into primitives, instead of splitting them into strings and parsing them with
+ * Float.valueOf(). Entries are counted like String.split() does, so malformed lines are skipped as before.
+ *
+ * A parser reuses its buffers for every line, so it must not be shared between threads.
+ */
+final class StudyRowParser {
+    private static final String TAG = "StudyRowParser";
+    private static final char ENTRY_SEPARATOR = ';';
+    private static final char VALUE_SEPARATOR = '|';
+    private static final int KEYPRESSES = StatisticalClassifierEvaluation.NUM_EVALUATION_KEYPRESSES;
+    private static final int SENSOR_VALUES = 3;
+
+    // Powers of ten that are exact doubles, see parseFloat()
+    private static final double[] POWERS_OF_TEN = new double[23];
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private final StudySchema schema;
+    private final int idColumn, timestampColumn, screenOrientationColumn, inputMethodColumn, situationColumn;
+    private final int downDistanceColumn, upDistanceColumn, positionColumn, sizeColumn, orientationColumn, pressureColumn;
+    private final int[] sensorColumns;    // Columns of the sensors of schema.getSensorTypes()
+
+    private final float[] downDistances = new float[KEYPRESSES - 1];
+    private final float[] upDistances = new float[KEYPRESSES];
+    private final float[] sizes = new float[KEYPRESSES];
+    private final float[] orientations = new float[KEYPRESSES];
+    private final float[] pressures = new float[KEYPRESSES];
+    private final int[] selectedSensors;    // Indexes of the parsed sensors in sensorColumns
+    private final float[][] sensorData;   // sensor<[keypress - 1][values]>
+
+    StudyRowParser(StudySchema schema) {
+        this.schema = schema;
+        idColumn = schema.getIndex(StatisticalClassifierContract.StatisticalClassifierData._ID);
+        timestampColumn = schema.getIndex(StatisticalClassifierContract.CaptureClassifierData.COLUMN_TIMESTAMP);
+        screenOrientationColumn = schema.getIndex(StatisticalClassifierContract.StatisticalClassifierData.COLUMN_SCREEN_ORIENTATION);
+        if (schema.hasColumn(StatisticalClassifierContract.CaptureClassifierData.COLUMN_KEY)) {
+            // Support both old and new study files
+            inputMethodColumn = schema.getIndex(StatisticalClassifierContract.CaptureClassifierData.COLUMN_INPUTMETHOD);
+            situationColumn = schema.getIndex(StatisticalClassifierContract.CaptureClassifierData.COLUMN_SITUATION);
+        } else {
+            inputMethodColumn = situationColumn = -1;
+        }
+        downDistanceColumn = schema.getIndex(StatisticalClassifierContract.StatisticalClassifierData.COLUMN_KEY_DOWNDOWN);
+        upDistanceColumn = schema.getIndex(StatisticalClassifierContract.StatisticalClassifierData.COLUMN_KEY_DOWNUP);
+        positionColumn = schema.getIndex(StatisticalClassifierContract.StatisticalClassifierData.COLUMN_POSITION);
+        sizeColumn = schema.getIndex(StatisticalClassifierContract.StatisticalClassifierData.COLUMN_SIZE);
+        orientationColumn = schema.getIndex(StatisticalClassifierContract.StatisticalClassifierData.COLUMN_ORIENTATION);
+        pressureColumn = schema.getIndex(StatisticalClassifierContract.StatisticalClassifierData.COLUMN_PRESSURE);
+
+        sensorColumns = new int[schema.getSensorTypes().size()];
+        for (int s = 0; s < sensorColumns.length; s++) {
+            sensorColumns[s] = schema.getIndex(schema.getSensorTypes().get(s));
+        }
+        selectedSensors = new int[sensorColumns.length];
+        sensorData = new float[sensorColumns.length][(KEYPRESSES - 1) * SENSOR_VALUES];
+    }
+
+    StudySchema getSchema() {
+        return schema;
+    }
+
+    /**
+     * @param touchProperties the touch properties to parse, all others are 0
+     * @param sensorTypes the sensors to parse, if the file contains them
+     * @param keepMissingSensors adds null sensor data for sensors without data or with malformed data instead of skipping
+     * the acquisition or throwing a NumberFormatException
+     * @return the acquisition, or null if the line is invalid
+     */
+    Acquisition parse(String[] line, Set<String> touchProperties, Set<String> sensorTypes, boolean keepMissingSensors) {
+        int id = parseInt(line[idColumn]);
+        long timestamp = parseLong(line[timestampColumn]);
+        int screenOrientation = parseInt(line[screenOrientationColumn]);
+        int inputmethod = inputMethodColumn >= 0 ? parseInt(line[inputMethodColumn]) : -1;
+        int situation = situationColumn >= 0 ? parseInt(line[situationColumn]) : -1;
+
+        Log.i(TAG, String.format("Processing study id %d", id));
+        String upField = line[upDistanceColumn];
+        int keypresses = countEntries(upField);
+        if (keypresses != KEYPRESSES || countEntries(line[downDistanceColumn]) != keypresses - 1) {
+            Log.e(TAG, String.format("ID %d: Invalid number of keypresses, skipping try", id));
+            return null;
+        }
+        if (countEntries(line[positionColumn]) != keypresses || countEntries(line[sizeColumn]) != keypresses
+                || countEntries(line[orientationColumn]) != keypresses || countEntries(line[pressureColumn]) != keypresses) {
+            Log.e(TAG, String.format("ID %d: Unequal number of data points, skipping try", id));
+            return null;
+        }
+
+        parseEntries(line[downDistanceColumn], downDistances);
+        parseEntries(upField, upDistances);
+        // Positions have never been used, parsing them always returned (0, 0)
+        parseEntries(line[sizeColumn], sizes, touchProperties.contains("size"));
+        parseEntries(line[orientationColumn], orientations, touchProperties.contains("orientation"));
+        parseEntries(line[pressureColumn], pressures, touchProperties.contains("pressure"));
+
+        int sensorCount = 0;
+        for (int s = 0; s < sensorColumns.length; s++) {
+            if (!sensorTypes.contains(schema.getSensorTypes().get(s))) continue;
+
+            String field = line[sensorColumns[s]];
+            int sensor = sensorCount++;
+            selectedSensors[sensor] = s;
+            if ((keepMissingSensors && field.isEmpty()) || countEntries(field) == 0) {
+                if (!keepMissingSensors) {
+                    Log.e(TAG, String.format("ID %d: A sensor has no data for keypress 2, skipping try", id));
+                    return null;
+                }
+                selectedSensors[sensor] = -1;
+                continue;
+            }
+            if (!keepMissingSensors) {
+                parseSensorEntries(field, sensorData[s]);
+                continue;
+            }
+            try {
+                parseSensorEntries(field, sensorData[s]);
+            } catch (NumberFormatException e) {
+                // Keep the acquisition, like for sensors without data, because the sensor may never be used
+                Log.e(TAG, String.format("ID %d: Sensor %s has malformed data, treating it as missing: %s", id, schema.getSensorTypes().get(s), e.getMessage()));
+                selectedSensors[sensor] = -1;
+            }
+        }
+
+        Keypress[] keypressArray = new Keypress[keypresses];
+        for (int i = 0; i < keypresses; i++) {
+            keypressArray[i] = new Keypress(0, 0, sizes[i], orientations[i], pressures[i], i > 0 ? downDistances[i - 1] : 0, upDistances[i], sensorCount);
+            for (int sensor = 0; sensor < sensorCount; sensor++) {
+                int s = selectedSensors[sensor];
+                if (s < 0) {
+                    keypressArray[i].addSensorData(null);
+                } else if (i == 0) {
+                    // Add zero sensor data to first keypress, because no absolute value is available from reports
+                    keypressArray[i].addSensorData(new float[SENSOR_VALUES]);
+                } else {
+                    float[] data = new float[SENSOR_VALUES];
+                    System.arraycopy(sensorData[s], (i - 1) * SENSOR_VALUES, data, 0, SENSOR_VALUES);
+                    keypressArray[i].addSensorData(data);
+                }
+            }
+        }
+        return new Acquisition(id, timestamp, screenOrientation, situation, inputmethod, keypressArray, sensorCount);
+    }
+
+    /**
+     * @return the number of entries of a field like String.split(";") counts them: an empty field has one entry, but
+     * empty entries at the end aren't counted
+     */
+    private static int countEntries(String field) {
+        return countEntries(field, 0, field.length(), ENTRY_SEPARATOR);
+    }
+
+    private static int countEntries(String field, int start, int end, char separator) {
+        if (start == end) return 1;
+        while (end > start && field.charAt(end - 1) == separator) {
+            end--;
+        }
+        if (end == start) return 0;
+
+        int count = 1;
+        for (int i = start; i < end; i++) {
+            if (field.charAt(i) == separator) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static void parseEntries(String field, float[] values) {
+        parseEntries(field, values, true);
+    }
+
+    /**
+     * @param parse whether the entries are parsed, otherwise they are all 0
+     */
+    private static void parseEntries(String field, float[] values, boolean parse) {
+        int start = 0;
+        for (int i = 0; i < values.length; i++) {
+            int end = indexOf(field, ENTRY_SEPARATOR, start, field.length());
+            values[i] = parse ? parseFloat(field, start, end) : 0;
+            start = end + 1;
+        }
+    }
+
+    /**
+     * Parses the first values of an entry of each keypress except the first one
+     */
+    private static void parseSensorEntries(String field, float[] data) {
+        int start = 0;
+        for (int i = 0; i < KEYPRESSES - 1; i++) {
+            if (start > field.length()) {
+                throw new NumberFormatException(String.format("Sensor data \"%s\" has less than %d entries", field, KEYPRESSES - 1));
+            }
+            int end = indexOf(field, ENTRY_SEPARATOR, start, field.length());
+            if (countEntries(field, start, end, VALUE_SEPARATOR) < SENSOR_VALUES) {
+                throw new NumberFormatException(String.format("Sensor data \"%s\" has less than %d values", field.substring(start, end), SENSOR_VALUES));
+            }
+
+            int valueStart = start;
+            for (int v = 0; v < SENSOR_VALUES; v++) {
+                int valueEnd = indexOf(field, VALUE_SEPARATOR, valueStart, end);
+                float value = parseFloat(field, valueStart, valueEnd);
+                if (StatisticalClassifierEvaluation.SENSOR_DATA_ROUNDING_FACTOR >= 1) {
+                    value = (int)(value * StatisticalClassifierEvaluation.SENSOR_DATA_ROUNDING_FACTOR) / (float)StatisticalClassifierEvaluation.SENSOR_DATA_ROUNDING_FACTOR;
+                }
+                data[i * SENSOR_VALUES + v] = value;
+                valueStart = valueEnd + 1;
+            }
+            start = end + 1;
+        }
+    }
+
+    private static int indexOf(String field, char separator, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (field.charAt(i) == separator) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private static int parseInt(String value) {
+        if (value.isEmpty()) {
+            return 0;
+        }
+        return (int)parseLong(value, 9);
+    }
+
+    private static long parseLong(String value) {
+        if (value.isEmpty()) {
+            return 0;
+        }
+        return parseLong(value, 18);
+    }
+
+    /**
+     * @param maxDigits the number of digits that can't overflow, longer values are parsed by Long.parseLong()
+     */
+    private static long parseLong(String value, int maxDigits) {
+        boolean negative = value.charAt(0) == '-';
+        int start = negative ? 1 : 0;
+        if (value.length() == start || value.length() - start > maxDigits) {
+            return maxDigits > 9 ? Long.parseLong(value) : Integer.parseInt(value);
+        }
+
+        long result = 0;
+        for (int i = start; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return maxDigits > 9 ? Long.parseLong(value) : Integer.parseInt(value);
+            }
+            result = result * 10 + (c - '0');
+        }
+        return negative ? -result : result;
+    }
+
+    /**
+     * Parses a decimal number like Float.valueOf(), but an empty value is 0. Numbers with at most 15 significant digits
+     * and 22 decimal places are exact doubles after a single division, so rounding them to a float gives the same
+     * result as Float.valueOf(), unless the double lies exactly between two floats. Everything else is parsed by
+     * Float.parseFloat().
+     */
+    static float parseFloat(String field, int start, int end) {
+        if (start == end) {
+            return 0;
+        }
+
+        boolean negative = field.charAt(start) == '-';
+        int i = negative ? start + 1 : start;
+        long mantissa = 0;
+        int digits = 0, decimals = -1;
+        for (; i < end; i++) {
+            char c = field.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (mantissa > 0 || c != '0') {
+                    digits++;
+                }
+                mantissa = mantissa * 10 + (c - '0');
+                if (decimals >= 0) {
+                    decimals++;
+                }
+            } else if (c == '.' && decimals < 0) {
+                decimals = 0;
+            } else {
+                break;
+            }
+        }
+
+        int firstDigit = negative ? start + 1 : start;
+        boolean noDigits = end - firstDigit == (decimals >= 0 ? 1 : 0);
+        if (i < end || noDigits || digits > 15 || decimals > 22) {
+            return Float.parseFloat(field.substring(start, end));
+        }
+
+        double value = decimals > 0 ? mantissa / POWERS_OF_TEN[decimals] : mantissa;
+        float result = (float)value;
+        if (mantissa != 0) {
+            if (Float.isInfinite(result) || Math.abs(result) < Float.MIN_NORMAL) {
+                return Float.parseFloat(field.substring(start, end));
+            }
+            // value lies exactly between two floats if it is as far from result as from the float on its other side
+            float other = value > result ? Math.nextUp(result) : Math.nextDown(result);
+            if (value != result && value - result == other - value) {
+                return Float.parseFloat(field.substring(start, end));
+            }
+        }
+        return negative ? -result : result;
+    }
+}
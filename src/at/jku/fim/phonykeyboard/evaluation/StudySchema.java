@@ -0,0 +1,49 @@
+package at.jku.fim.phonykeyboard.evaluation;
+
+import at.jku.fim.phonykeyboard.latin.biometrics.BiometricsManager;
+
+import java.util.*;
+
+/**
+ * The columns of a single study file, as given by its header line. Study files are parsed with their own schema, so
+ * files with different headers can be parsed concurrently.
+ */
+final class StudySchema {
+    private final Map<String, Integer> columns;
+    private final List<String> sensorTypes;
+
+    StudySchema(String[] header) {
+        Map<String, Integer> columns = new HashMap<>(header.length * 2);
+        for (int i = 0; i < header.length; i++) {
+            columns.put(header[i], i);
+        }
+        this.columns = Collections.unmodifiableMap(columns);
+
+        List<String> sensorTypes = new ArrayList<>(BiometricsManager.SENSOR_TYPES.length);
+        for (String sensor : BiometricsManager.SENSOR_TYPES) {
+            if (columns.containsKey(sensor)) {
+                sensorTypes.add(sensor);
+            }
+        }
+        this.sensorTypes = Collections.unmodifiableList(sensorTypes);
+    }
+
+    boolean hasColumn(String column) {
+        return columns.containsKey(column);
+    }
+
+    /**
+     * @return the index of a column in the lines of the study file
+     * @throws NullPointerException if the study file doesn't have the column
+     */
+    int getIndex(String column) {
+        return columns.get(column);
+    }
+
+    /**
+     * @return the sensors of SENSOR_TYPES that are in the study file, in the order of their sensor data
+     */
+    List<String> getSensorTypes() {
+        return sensorTypes;
+    }
+}
@@ -0,0 +1,284 @@
+package at.jku.fim.phonykeyboard.evaluation;
+
+import at.jku.fim.phonykeyboard.latin.utils.CsvUtils;
+import at.jku.fim.phonykeyboard.latin.utils.Log;
+import com.opencsv.CSVReader;
+
+import java.io.*;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Streams of the acquisitions of study files, which are parsed one line at a time while the stream is consumed instead
+ * of being collected first, so that the memory used doesn't grow with the size of the study files. Binary files are
+ * decoded one acquisition at a time in the same way. Streams of study files that aren't consumed completely must be
+ * closed to close the files.
+ */
+final class StudyStream {
+    private static final String TAG = "StudyStream";
+
+    private StudyStream() {
+    }
+
+    /**
+     * @return the acquisitions with the touch properties and sensors of EvaluationParams
+     */
+    static Stream<Acquisition> of(String path) {
+        return of(path, EvaluationParams.usedTouchProperties, EvaluationParams.usedSensors);
+    }
+
+    /**
+     * @param path a study file, or a directory whose study files are streamed one after another in the order of their name
+     * @param touchProperties the touch properties to use, all others are 0
+     * @param sensors the sensors to use
+     * @return the acquisitions that have data for all of these sensors, in the order of the study files
+     */
+    static Stream<Acquisition> of(String path, Set<String> touchProperties, Set<String> sensors) {
+        File file = new File(path);
+        FileSpliterator spliterator;
+        if (file.isDirectory()) {
+            // Not flatMap(), whose spliterator buffers each study file completely in Java 8
+            String[] fileNames = listStudyFiles(file);
+            String[] paths = new String[fileNames.length];
+            for (int i = 0; i < fileNames.length; i++) {
+                paths[i] = new File(file, fileNames[i]).getPath();
+            }
+            spliterator = new DirectorySpliterator(paths, touchProperties, sensors);
+        } else {
+            spliterator = openFile(path, touchProperties, sensors);
+        }
+        return StreamSupport.stream(spliterator, false).onClose(spliterator::close);
+    }
+
+    /**
+     * @return the names of the study files of a directory (including control groups), sorted by their name
+     */
+    static String[] listStudyFiles(File directory) {
+        String[] fileNames = directory.list((dir, name) -> name.endsWith(".csv") && !name.endsWith(".old.csv") && !name.contains(".random."));
+        Arrays.sort(fileNames);
+        return fileNames;
+    }
+
+    /**
+     * Opens the binary file of a study file if it is up to date and valid like StudyCorpus does, and the study file
+     * otherwise
+     */
+    private static FileSpliterator openFile(String csvFile, Set<String> touchProperties, Set<String> sensors) {
+        if (CorpusFile.isCurrent(csvFile)) {
+            File file = CorpusFile.getFile(csvFile);
+            try {
+                CorpusFile.Reader reader = CorpusFile.Reader.open(file);
+                if (reader != null) {
+                    // Selecting the used touch properties and sensors from the binary file is the same as parsing only them
+                    Log.i(TAG, String.format("Reading %s instead of parsing %s", file.getPath(), csvFile));
+                    return new CorpusSpliterator(reader, touchProperties, sensors);
+                }
+                Log.e(TAG, String.format("%s has an unknown format or is corrupt, parsing %s instead", file.getPath(), csvFile));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        CSVReader reader;
+        try {
+            reader = new CSVReader(new BufferedReader(new FileReader(csvFile)), CsvUtils.COMMA, CsvUtils.QUOTE);
+        } catch (FileNotFoundException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new LineSpliterator(reader, touchProperties, sensors);
+    }
+
+    /**
+     * Shuffles a stream with a buffer of a fixed number of acquisitions: once the buffer is full, each following
+     * acquisition replaces a random acquisition of the buffer, which is passed on instead, and the buffer is emptied in
+     * random order at the end. Streams that fit into the buffer are shuffled uniformly like with Collections.shuffle(),
+     * longer streams are only shuffled within the range of the buffer.
+     */
+    static Stream<Acquisition> shuffle(Stream<Acquisition> acquisitions, int bufferSize, Random random) {
+        return StreamSupport.stream(new ShuffleSpliterator(acquisitions.spliterator(), bufferSize, random), false).onClose(acquisitions::close);
+    }
+
+    /**
+     * The acquisitions of a file, which must be closed if they aren't consumed completely
+     */
+    private abstract static class FileSpliterator extends Spliterators.AbstractSpliterator<Acquisition> {
+        FileSpliterator() {
+            super(Long.MAX_VALUE, ORDERED | NONNULL);
+        }
+
+        void close() {
+        }
+    }
+
+    /**
+     * Streams the study files of a directory one after another, opening each file only when the previous one has been
+     * consumed and closing it right after
+     */
+    private static class DirectorySpliterator extends FileSpliterator {
+        private final String[] paths;
+        private final Set<String> touchProperties, sensors;
+        private int next;
+        private FileSpliterator current;
+
+        DirectorySpliterator(String[] paths, Set<String> touchProperties, Set<String> sensors) {
+            this.paths = paths;
+            this.touchProperties = touchProperties;
+            this.sensors = sensors;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Acquisition> action) {
+            while (true) {
+                if (current == null) {
+                    if (next == paths.length) return false;
+                    current = openFile(paths[next++], touchProperties, sensors);
+                }
+                if (current.tryAdvance(action)) {
+                    return true;
+                }
+                current.close();
+                current = null;
+            }
+        }
+
+        @Override
+        void close() {
+            if (current != null) {
+                current.close();
+                current = null;
+            }
+            next = paths.length;
+        }
+    }
+
+    /**
+     * Decodes the acquisitions of a binary file when they are requested, and selects the touch properties and sensors
+     * like StudyCorpus does
+     */
+    private static class CorpusSpliterator extends FileSpliterator {
+        private final CorpusFile.Reader reader;
+        private final Set<String> touchProperties;
+        private final int[] sensorIndexes;
+        private int next;
+
+        CorpusSpliterator(CorpusFile.Reader reader, Set<String> touchProperties, Set<String> sensors) {
+            this.reader = reader;
+            this.touchProperties = touchProperties;
+            sensorIndexes = StudyCorpus.StudyFile.getSensorIndexes(reader.getSensorTypes(), sensors);
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Acquisition> action) {
+            while (next < reader.getCount()) {
+                Acquisition acquisition = StudyCorpus.StudyFile.select(reader.read(next++), touchProperties, sensorIndexes);
+                if (acquisition != null) {
+                    action.accept(acquisition);
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Parses the lines of a study file with its header when they are requested, and closes the file after the last line
+     */
+    private static class LineSpliterator extends FileSpliterator {
+        private final CSVReader reader;
+        private final Set<String> touchProperties, sensors;
+        private StudyRowParser parser;
+        private boolean closed;
+
+        LineSpliterator(CSVReader reader, Set<String> touchProperties, Set<String> sensors) {
+            this.reader = reader;
+            this.touchProperties = touchProperties;
+            this.sensors = sensors;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Acquisition> action) {
+            if (closed) return false;
+
+            try {
+                String[] line;
+                while ((line = reader.readNext()) != null) {
+                    if (line.length < StatisticalClassifierEvaluation.NUM_STATIC_COLUMNS) {
+                        Log.e(TAG, String.format("Line %d has not enough elements", reader.getLinesRead()));
+                    } else if (reader.getRecordsRead() > 1) {
+                        Log.i(TAG, String.format("Processing entry %d", reader.getRecordsRead()));
+                        Acquisition acquisition = parser.parse(line, touchProperties, sensors, false);
+                        if (acquisition != null) {
+                            action.accept(acquisition);
+                            return true;
+                        }
+                    } else {
+                        Log.i(TAG, "Creating column index mapping");
+                        parser = new StudyRowParser(new StudySchema(line));
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            close();
+            return false;
+        }
+
+        @Override
+        void close() {
+            if (closed) return;
+
+            closed = true;
+            try {
+                reader.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private static class ShuffleSpliterator extends Spliterators.AbstractSpliterator<Acquisition> {
+        private final Spliterator<Acquisition> source;
+        private final int bufferSize;
+        private final Random random;
+        private final List<Acquisition> buffer;
+        private boolean sourceEmpty;
+        private Acquisition next;
+
+        ShuffleSpliterator(Spliterator<Acquisition> source, int bufferSize, Random random) {
+            super(source.estimateSize(), source.characteristics() & (SIZED | NONNULL));
+            if (bufferSize < 1) {
+                throw new IllegalArgumentException("The buffer must hold at least one acquisition");
+            }
+            this.source = source;
+            this.bufferSize = bufferSize;
+            this.random = random;
+            buffer = new ArrayList<>(Math.min(bufferSize, 1024));
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Acquisition> action) {
+            while (!sourceEmpty && buffer.size() < bufferSize) {
+                sourceEmpty = !source.tryAdvance(buffer::add);
+            }
+            if (!sourceEmpty) {
+                if (source.tryAdvance(acquisition -> next = acquisition)) {
+                    action.accept(buffer.set(random.nextInt(bufferSize), next));
+                    next = null;
+                    return true;
+                }
+                sourceEmpty = true;
+            }
+            if (buffer.isEmpty()) return false;
+
+            // Remove a random acquisition by moving the last one into its place
+            int i = random.nextInt(buffer.size());
+            Acquisition acquisition = buffer.get(i);
+            buffer.set(i, buffer.get(buffer.size() - 1));
+            buffer.remove(buffer.size() - 1);
+            action.accept(acquisition);
+            return true;
+        }
+    }
+}
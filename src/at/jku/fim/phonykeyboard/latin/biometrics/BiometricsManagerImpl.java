@@ -1,5 +1,6 @@
 package at.jku.fim.phonykeyboard.latin.biometrics;
 
+import at.jku.fim.phonykeyboard.evaluation.EvaluationParams;
 import at.jku.fim.phonykeyboard.latin.biometrics.classifiers.Classifier;
 import at.jku.fim.phonykeyboard.latin.biometrics.classifiers.StatisticalClassifier;
 import at.jku.fim.phonykeyboard.latin.biometrics.data.BiometricsDbHelper;
@@ -13,7 +14,7 @@ public class BiometricsManagerImpl extends BiometricsManager {
         super.init();
 
         classifier = new StatisticalClassifier(this);
-        dbHelper = new BiometricsDbHelper(classifier.getDatabaseContract());
+        dbHelper = new BiometricsDbHelper(classifier.getDatabaseContract(), EvaluationParams.storageMode, BiometricsDbHelper.DATABASE_NAME);
     }
 
     public BiometricsDbHelper getDb() {
@@ -0,0 +1,118 @@
+package at.jku.fim.phonykeyboard.latin.biometrics.classifiers;
+
+/**
+ * Implementation of the D(.,.) function in Maiorana, et al. 2011 for whole acquisitions of a feature, stored as
+ * consecutive samples in flat arrays (see FeatureTensor). The distance of each sample is summed in sample order and the
+ * total is divided by the number of samples, so all kernels produce the same results as the per-sample
+ * DistanceMeasure implementations of commons-math.
+ */
+interface DistanceKernel {
+    DistanceKernel MANHATTAN = new ManhattanKernel();
+    DistanceKernel SQUARED_EUCLIDEAN = new SquaredEuclideanKernel();
+
+    /**
+     * @param distanceFunction the distance function as configured in EvaluationParams.distanceFunction
+     * @return the kernel implementing the distance function
+     */
+    static DistanceKernel forFunction(int distanceFunction) {
+        switch (distanceFunction) {
+            case 1:
+                return SQUARED_EUCLIDEAN;
+            default:
+            case 0:
+                return MANHATTAN;
+        }
+    }
+
+    /**
+     * @param f1 array containing Fu,e
+     * @param offset1 index of the first value of Fu,e in f1
+     * @param f2 array containing Fu,i
+     * @param offset2 index of the first value of Fu,i in f2
+     * @param samples number of samples of Fu,e
+     * @param values number of values per sample
+     * @return D(.,.)
+     */
+    double distance(double[] f1, int offset1, double[] f2, int offset2, int samples, int values);
+
+    /**
+     * Sum of absolute differences of each sample. Features with one (timing, touch properties), two (position) and
+     * three (sensors) values per sample get unrolled loops.
+     */
+    final class ManhattanKernel implements DistanceKernel {
+        @Override
+        public double distance(double[] f1, int offset1, double[] f2, int offset2, int samples, int values) {
+            double distance = 0;
+            int end = offset1 + samples * values;
+            switch (values) {
+                case 1:
+                    for (; offset1 < end; offset1++, offset2++) {
+                        distance += Math.abs(f1[offset1] - f2[offset2]);
+                    }
+                    break;
+                case 2:
+                    for (; offset1 < end; offset1 += 2, offset2 += 2) {
+                        distance += Math.abs(f1[offset1] - f2[offset2]) + Math.abs(f1[offset1 + 1] - f2[offset2 + 1]);
+                    }
+                    break;
+                case 3:
+                    for (; offset1 < end; offset1 += 3, offset2 += 3) {
+                        distance += Math.abs(f1[offset1] - f2[offset2]) + Math.abs(f1[offset1 + 1] - f2[offset2 + 1]) + Math.abs(f1[offset1 + 2] - f2[offset2 + 2]);
+                    }
+                    break;
+                default:
+                    for (; offset1 < end; offset1 += values, offset2 += values) {
+                        double sum = 0;
+                        for (int i = 0; i < values; i++) {
+                            sum += Math.abs(f1[offset1 + i] - f2[offset2 + i]);
+                        }
+                        distance += sum;
+                    }
+                    break;
+            }
+            return distance / samples;
+        }
+    }
+
+    /**
+     * Sum of squared differences of each sample, with the same unrolled loops as ManhattanKernel
+     */
+    final class SquaredEuclideanKernel implements DistanceKernel {
+        @Override
+        public double distance(double[] f1, int offset1, double[] f2, int offset2, int samples, int values) {
+            double distance = 0;
+            int end = offset1 + samples * values;
+            switch (values) {
+                case 1:
+                    for (; offset1 < end; offset1++, offset2++) {
+                        final double dp = f1[offset1] - f2[offset2];
+                        distance += dp * dp;
+                    }
+                    break;
+                case 2:
+                    for (; offset1 < end; offset1 += 2, offset2 += 2) {
+                        final double dp0 = f1[offset1] - f2[offset2], dp1 = f1[offset1 + 1] - f2[offset2 + 1];
+                        distance += dp0 * dp0 + dp1 * dp1;
+                    }
+                    break;
+                case 3:
+                    for (; offset1 < end; offset1 += 3, offset2 += 3) {
+                        final double dp0 = f1[offset1] - f2[offset2], dp1 = f1[offset1 + 1] - f2[offset2 + 1], dp2 = f1[offset1 + 2] - f2[offset2 + 2];
+                        distance += dp0 * dp0 + dp1 * dp1 + dp2 * dp2;
+                    }
+                    break;
+                default:
+                    for (; offset1 < end; offset1 += values, offset2 += values) {
+                        double sum = 0;
+                        for (int i = 0; i < values; i++) {
+                            final double dp = f1[offset1 + i] - f2[offset2 + i];
+                            sum += dp * dp;
+                        }
+                        distance += sum;
+                    }
+                    break;
+            }
+            return distance / samples;
+        }
+    }
+}
@@ -0,0 +1,481 @@
+package at.jku.fim.phonykeyboard.latin.biometrics.classifiers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import at.jku.fim.phonykeyboard.latin.biometrics.BiometricsEntry;
+import at.jku.fim.phonykeyboard.latin.biometrics.BiometricsManager;
+import at.jku.fim.phonykeyboard.latin.biometrics.data.FeatureTensor;
+import at.jku.fim.phonykeyboard.latin.utils.Log;
+
+/**
+ * The captured data of one input, which is scored against a TemplateModel. A session only reads its model, so sessions
+ * of the same or different models can be used in different threads at once, while a single session must only be used
+ * by one thread at a time. Sessions started by StatisticalClassifier.newSession() also know the template set they were
+ * loaded from, to which their input is enrolled.
+ */
+public class InputSession {
+    private static final String TAG = "InputSession";
+
+    private final TemplateModel model;
+    private final StatisticalClassifier.TemplateKey key;  // The template set the input is enrolled to, or null
+    private final TemplateCache.Entry templates;
+    private final Classifier.ActiveBiometricsEntries activeEntries = new Classifier.ActiveBiometricsEntries();
+    private final List<List<double[]>> currentData;   // feature<sample<[values]>>
+    private final double[][] probe;   // feature<[sample * values]>, currentData in the layout of a FeatureTensor row
+    private final double[][] partialDistances;    // feature<[e]>, distances of the samples captured so far to each template
+
+    private boolean invalidData;
+    /** Set to true when calcScore() was successful **/
+    private boolean calculatedScore;
+    private double score = BiometricsManager.SCORE_NOT_ENOUGH_DATA;
+
+    InputSession(TemplateModel model) {
+        this(model, null, null);
+    }
+
+    InputSession(TemplateModel model, StatisticalClassifier.TemplateKey key, TemplateCache.Entry templates) {
+        this.model = model;
+        this.key = key;
+        this.templates = templates;
+        currentData = new ArrayList<>(model.getFeatureCount());
+        for (int i = 0; i < model.getFeatureCount(); i++) {
+            currentData.add(new ArrayList<>());
+        }
+        probe = new double[model.getFeatureCount()][0];
+        partialDistances = new double[model.getFeatureCount()][model.getTemplateCount()];
+    }
+
+    public TemplateModel getModel() {
+        return model;
+    }
+
+    /**
+     * @return false if the session was created by TemplateModel.newSession(), so its input can't be enrolled
+     */
+    public boolean canEnroll() {
+        return key != null;
+    }
+
+    StatisticalClassifier.TemplateKey getKey() {
+        return key;
+    }
+
+    /**
+     * @return the template set the model was created from, which is changed by enrolling the input
+     */
+    TemplateCache.Entry getTemplates() {
+        return templates;
+    }
+
+    /**
+     * Extracts the features of a DOWN or UP event of the input
+     */
+    public void addEntry(BiometricsEntry entry) {
+        if (entry.getEvent() == BiometricsEntry.EVENT_UP) {
+            BiometricsEntry downEntry = activeEntries.getDownEntry(entry.getPointerId());
+            if (downEntry == null) {
+                Log.e(TAG, "BUG: Got UP event, but no matching DOWN event found");
+            } else {
+                addSample(StatisticalClassifier.INDEX_DOWNUP, new double[] { entry.getTimestamp() - downEntry.getTimestamp() });
+            }
+            addSample(StatisticalClassifier.INDEX_POSITION, new double[] { entry.getX(), entry.getY() });
+            activeEntries.removeById(entry.getPointerId());
+        } else {
+            BiometricsEntry prevEntry = activeEntries.getLastDownEntry(entry.getTimestamp());
+            if (prevEntry != null) {
+                addSample(StatisticalClassifier.INDEX_DOWNDOWN, new double[] { entry.getTimestamp() - prevEntry.getTimestamp() });
+                for (int i = 0; i < entry.getSensorData().size(); i++) {
+                    if (!model.isUsed(StatisticalClassifier.INDEX_SENSOR_START + i)) break;
+
+                    float[] prevData = prevEntry.getSensorData().get(i);
+                    double[] sensorData = new double[prevData.length];
+                    for (int j = 0; j < sensorData.length; j++) {
+                        //sensorData[j] = entry.getSensorData().get(i)[j] - prevData[j];
+                        // NOTE: Because this is the evaluation, all sensor data already contains relative numbers
+                        sensorData[j] = entry.getSensorData().get(i)[j];
+                    }
+                    addSample(StatisticalClassifier.INDEX_SENSOR_START + i, sensorData);
+                }
+            }
+            addSample(StatisticalClassifier.INDEX_SIZE, new double[] { entry.getSize() });
+            addSample(StatisticalClassifier.INDEX_ORIENTATION, new double[] { entry.getOrientation() });
+            addSample(StatisticalClassifier.INDEX_PRESSURE, new double[] { entry.getPressure() });
+            activeEntries.add(entry);
+        }
+    }
+
+    /**
+     * @return the score of the captured input, which is calculated only once
+     */
+    public double getScore() {
+        if (!calculatedScore) {
+            calcScore();
+        }
+        return score;
+    }
+
+    /**
+     * Decides whether the input is accepted (score < threshold), stopping as soon as the score is guaranteed to reach
+     * the threshold
+     */
+    public ThresholdDecision getDecision(double threshold) {
+        if (calculatedScore) {
+            return new ThresholdDecision(score < threshold, score, 0, 0);
+        }
+        return calcDecision(threshold);
+    }
+
+    /**
+     * Discards the captured input and its score, so that the session can be used for the next input
+     */
+    public void reset() {
+        clearCapturedData();
+        calculatedScore = false;
+        score = BiometricsManager.SCORE_NOT_ENOUGH_DATA;
+    }
+
+    /**
+     * Discards the captured input, but keeps its score
+     */
+    void clearCapturedData() {
+        invalidData = false;
+        for (List<double[]> data : currentData) {
+            data.clear();
+        }
+        for (double[] distances : partialDistances) {
+            Arrays.fill(distances, 0);
+        }
+        activeEntries.clear();
+    }
+
+    boolean hasScore() {
+        return calculatedScore;
+    }
+
+    boolean isInvalid() {
+        return invalidData;
+    }
+
+    void invalidate() {
+        invalidData = true;
+    }
+
+    List<List<double[]>> getCurrentData() {
+        return currentData;
+    }
+
+    /**
+     * Copies the captured samples of a feature to its probe buffer, which has the same layout as a FeatureTensor row.
+     * The buffer is kept for subsequent inputs and only grows if more samples were captured.
+     * @param delta the feature index
+     * @return the probe buffer, of which only the first currentData.get(delta).size() samples are valid
+     */
+    double[] getCurrentSample(int delta) {
+        List<double[]> data = currentData.get(delta);
+        if (data.isEmpty()) return probe[delta];
+
+        int values = data.get(0).length;
+        if (probe[delta].length < data.size() * values) {
+            probe[delta] = new double[data.size() * values];
+        }
+        for (int k = 0, offset = 0; k < data.size(); k++, offset += values) {
+            System.arraycopy(data.get(k), 0, probe[delta], offset, values);
+        }
+        return probe[delta];
+    }
+
+    /**
+     * Adds a captured sample of a feature and adds its distance to the partial distances of the templates, so that
+     * calcAuthentication() only has to normalize them when the input is finished
+     * @param delta the feature index
+     * @param values the values of the sample
+     */
+    private void addSample(int delta, double[] values) {
+        int k = currentData.get(delta).size();
+        currentData.get(delta).add(values);
+
+        FeatureTensor templates = model.getTemplates(delta);
+        if (templates.getValueCount() != values.length) return;    // Feature is empty, or authentication will fail anyway
+
+        int first = 0, last = templates.getRowCount() - 1;
+        if (model.getClassificationFunction() == 3) {
+            first = last = model.getTemplateDynamics(delta);    // Only tu is needed by tempAuthentication()
+        }
+        for (int e = first; e <= last && e >= 0; e++) {
+            if (templates.getSampleCount(e) > k) {
+                int offset = templates.getOffset(e) + k * values.length;
+                partialDistances[delta][e] += model.getDistanceKernel().distance(templates.getData(), offset, values, 0, 1, values.length);
+            }
+        }
+    }
+
+    /**
+     * D(.,.) between the enrollment acquisition e of a feature and the captured samples of this feature, as streamed
+     * by addSample(). Only valid if ensureEqualSampleCount() succeeded for e.
+     */
+    private double getProbeDistance(int delta, int e) {
+        return partialDistances[delta][e] / model.getTemplates(delta).getSampleCount(e);
+    }
+
+    private void calcScore() {
+        if (!canAuthenticate()) return;
+
+        // Calculate variability of captured and template acquisitions
+        double result = calcAuthentication();
+        // NaN results from unequal sample sizes, score will already be set to SCORE_CAPTURING_ERROR by ensureEqualSampleCount()
+        if (!Double.isNaN(result)) {
+            score = result;
+        }
+        calculatedScore = true;
+    }
+
+    /**
+     * Checks if the template set and the captured data are sufficient for authentication, otherwise sets the score
+     * accordingly
+     */
+    private boolean canAuthenticate() {
+        if (!model.isComplete()) {
+            Log.i(TAG, "Template set too small (" + model.getTemplateCount() + ") for authentication");
+            score = BiometricsManager.SCORE_NOT_ENOUGH_DATA;
+            calculatedScore = true;
+            return false;
+        }
+
+        if (currentData.size() != model.getFeatureCount()) {
+            Log.e(TAG, "Authentication data has " + currentData.size() + " datapoints, needs " + model.getFeatureCount());
+            score = BiometricsManager.SCORE_CAPTURING_ERROR;
+            invalidData = true;
+            calculatedScore = true;
+            return false;
+        }
+        return true;
+    }
+
+    // ---- BEGIN AUTHENTICATION METRICS ----
+    // NOTE: Package-private for tests, doesn't allocate because distances have already been streamed by addSample()
+    double calcAuthentication() {
+        double result = Double.NaN;
+        if (model.getTemplateCount() > 0) {
+            switch (model.getClassificationFunction()) {
+                case 0:
+                    result = minAuthentication();
+                    break;
+                case 1:
+                    result = maxAuthentication();
+                    break;
+                case 3:
+                    result = tempAuthentication();
+                    break;
+                case 2:
+                default:
+                    result = meanAuthentication();
+                    break;
+            }
+        }
+        return result;
+    }
+
+    private double minAuthentication() {
+        double min = 0;
+        int skippedFeatures = 0;
+        for (int delta = 0; delta < currentData.size(); delta++) {
+            double minDist = Double.POSITIVE_INFINITY;
+            int E = model.getTemplates(delta).getRowCount();
+            for (int e = 0; e < E; e++) {
+                if (!ensureEqualSampleCount(delta, e)) {
+                    return Double.NaN;
+                }
+
+                if (currentData.get(delta).size() > 0) {
+                    minDist = Math.min(minDist, getProbeDistance(delta, e));  // MIN(D[f(e), f(u)])
+                }
+            }
+            double variability = model.getVariability(delta);
+            if (!Double.isNaN(variability)) {
+                min += variability == 0 ? 0 : (minDist / variability);
+            } else {
+                skippedFeatures++;
+            }
+        }
+        min /= currentData.size() - skippedFeatures;   // 1/δ
+        return min;
+    }
+
+    private double maxAuthentication() {
+        double max = 0;
+        int skippedFeatures = 0;
+        for (int delta = 0; delta < currentData.size(); delta++) {
+            double maxDist = Double.NEGATIVE_INFINITY;
+            int E = model.getTemplates(delta).getRowCount();
+            for (int e = 0; e < E; e++) {
+                if (!ensureEqualSampleCount(delta, e)) {
+                    return Double.NaN;
+                }
+
+                if (currentData.get(delta).size() > 0) {
+                    maxDist = Math.max(maxDist, getProbeDistance(delta, e));  // MAX(D[f(e), f(u)])
+                }
+            }
+            double variability = model.getVariability(delta);
+            if (!Double.isNaN(variability)) {
+                max += variability == 0 ? 0 : (maxDist / variability);
+            } else {
+                skippedFeatures++;
+            }
+        }
+        max /= currentData.size() - skippedFeatures;   // 1/δ
+        return max;
+    }
+
+    private double meanAuthentication() {
+        double mean = 0;
+        int skippedFeatures = 0;
+        for (int delta = 0; delta < currentData.size(); delta++) {
+            double meanDist = 0;
+            int E = model.getTemplates(delta).getRowCount();
+            for (int e = 0; e < E; e++) {
+                if (!ensureEqualSampleCount(delta, e)) {
+                    return Double.NaN;
+                }
+
+                if (currentData.get(delta).size() > 0) {
+                    meanDist += getProbeDistance(delta, e);  // D[f(e), f(u)]
+                }
+            }
+            double variability = model.getVariability(delta);
+            if (!Double.isNaN(variability)) {
+                mean += variability == 0 ? 0 : (meanDist / variability);
+            } else {
+                skippedFeatures++;
+            }
+        }
+        mean /= currentData.size() - skippedFeatures;   // 1/δ
+        return mean;
+    }
+
+    private double tempAuthentication() {
+        double temp = 0;
+        int skippedFeatures = 0;
+        for (int delta = 0; delta < currentData.size(); delta++) {
+            int tu = model.getTemplateDynamics(delta);
+            if (tu == -1) { // No template found, because feature is empty
+                skippedFeatures++;
+                continue;
+            }
+
+            if (!ensureEqualSampleCount(delta, tu)) {
+                return Double.NaN;
+            }
+
+            if (currentData.get(delta).size() > 0) {
+                double tempDist = getProbeDistance(delta, tu);
+                double variability = model.getVariability(delta);
+                temp += variability == 0 ? 0 : (tempDist / variability);
+            }
+        }
+        temp /= currentData.size() - skippedFeatures;   // 1/δ
+        return temp;
+    }
+
+    /**
+     * Calculates the same score as calcAuthentication(), but processes the cheapest features first and rejects the
+     * input as soon as the score is guaranteed to be >= threshold. This is possible because every feature adds a
+     * non-negative value to the score, so the partial sum divided by the number of features is a lower bound.
+     * Within a feature, MAX and MEAN also grow with every template, while MIN is only known after all templates.
+     */
+    private ThresholdDecision calcDecision(double threshold) {
+        if (!canAuthenticate()) {
+            return new ThresholdDecision(score < threshold, score, 0, 0);
+        }
+
+        int function = model.getClassificationFunction() < 0 || model.getClassificationFunction() > 3 ? 2 : model.getClassificationFunction();
+        int E = model.getTemplateCount();
+        int features = 0, remainingTemplates = 0;
+        for (int delta = 0; delta < currentData.size(); delta++) {
+            if (function == 3) {
+                if (model.getTemplateDynamics(delta) != -1) {
+                    features++;
+                    remainingTemplates++;
+                }
+            } else {
+                if (!Double.isNaN(model.getVariability(delta))) {
+                    features++;
+                }
+                remainingTemplates += E;
+            }
+        }
+
+        int[] featureOrder = model.getFeatureOrder();
+        double sum = 0;
+        for (int f = 0; f < featureOrder.length; f++) {
+            int delta = featureOrder[f];
+            double variability = model.getVariability(delta);
+            if (function == 3) {
+                int tu = model.getTemplateDynamics(delta);
+                if (tu == -1) continue;
+                if (!ensureEqualSampleCount(delta, tu)) {
+                    calculatedScore = true;
+                    return new ThresholdDecision(score < threshold, score, 0, 0);
+                }
+                remainingTemplates--;
+
+                if (currentData.get(delta).size() > 0) {
+                    sum += variability == 0 ? 0 : (getProbeDistance(delta, tu) / variability);
+                }
+            } else {
+                double dist = function == 0 ? Double.POSITIVE_INFINITY : (function == 1 ? Double.NEGATIVE_INFINITY : 0);
+                boolean bounded = function != 0 && !Double.isNaN(variability) && variability != 0;
+                for (int e = 0; e < E; e++) {
+                    if (!ensureEqualSampleCount(delta, e)) {
+                        calculatedScore = true;
+                        return new ThresholdDecision(score < threshold, score, 0, 0);
+                    }
+                    remainingTemplates--;
+
+                    if (currentData.get(delta).size() > 0) {
+                        double d = getProbeDistance(delta, e);
+                        if (function == 0) {
+                            dist = Math.min(dist, d);
+                        } else if (function == 1) {
+                            dist = Math.max(dist, d);
+                        } else {
+                            dist += d;
+                        }
+                    }
+                    if (bounded && remainingTemplates > 0 && (sum + dist / variability) / features >= threshold) {
+                        return rejectEarly(f, remainingTemplates);
+                    }
+                }
+                if (!Double.isNaN(variability)) {
+                    sum += variability == 0 ? 0 : (dist / variability);
+                }
+            }
+            if (remainingTemplates > 0 && sum / features >= threshold) {
+                return rejectEarly(f, remainingTemplates);
+            }
+        }
+
+        score = sum / features;
+        calculatedScore = true;
+        return new ThresholdDecision(score < threshold, score, 0, 0);
+    }
+
+    private ThresholdDecision rejectEarly(int lastFeature, int remainingTemplates) {
+        score = Double.NaN;
+        calculatedScore = true;
+        return new ThresholdDecision(false, score, model.getFeatureOrder().length - lastFeature - 1, remainingTemplates);
+    }
+
+    private boolean ensureEqualSampleCount(int delta, int e) {
+        if (currentData.get(delta).size() != model.getTemplates(delta).getSampleCount(e)) {
+            Log.e(TAG, "Authentication data has " + currentData.get(delta).size() + " samples, needs " + model.getTemplates(delta).getSampleCount(e));
+            score = BiometricsManager.SCORE_CAPTURING_ERROR;
+            invalidData = true;
+            return false;
+        }
+        return true;
+    }
+    // ---- END AUTHENTICATION METRICS ----
+}
@@ -1,59 +1,61 @@
 package at.jku.fim.phonykeyboard.latin.biometrics.classifiers;
 
+import java.io.File;
+import java.io.IOException;
 import java.sql.SQLException;
 import java.util.*;
-import java.util.regex.Pattern;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 import at.jku.fim.phonykeyboard.evaluation.EvaluationParams;
 import at.jku.fim.phonykeyboard.latin.biometrics.BiometricsEntry;
 import at.jku.fim.phonykeyboard.latin.biometrics.BiometricsManager;
 import at.jku.fim.phonykeyboard.latin.biometrics.BiometricsManagerImpl;
 import at.jku.fim.phonykeyboard.latin.biometrics.data.*;
-import at.jku.fim.phonykeyboard.latin.utils.CsvUtils;
 import at.jku.fim.phonykeyboard.latin.utils.Log;
 import com.apporiented.algorithm.clustering.Cluster;
 import com.apporiented.algorithm.clustering.ClusteringAlgorithm;
 import com.apporiented.algorithm.clustering.CompleteLinkageStrategy;
 import com.apporiented.algorithm.clustering.DefaultClusteringAlgorithm;
-import org.apache.commons.math3.exception.DimensionMismatchException;
 import org.apache.commons.math3.ml.clustering.CentroidCluster;
 import org.apache.commons.math3.ml.clustering.FuzzyKMeansClusterer;
-import org.apache.commons.math3.ml.distance.DistanceMeasure;
 import org.apache.commons.math3.ml.distance.EuclideanDistance;
 import org.apache.commons.math3.ml.distance.ManhattanDistance;
-import org.apache.commons.math3.util.MathArrays;
 
 /**
  * This Classifier implements the statistical classifier proposed by Maiorana, et al. 2011, extended by further features.
  */
 public class StatisticalClassifier extends Classifier {
     private static final String TAG = "StatisticalClassifier";
-    private static final int INDEX_DOWNDOWN = 0, INDEX_DOWNUP = 1, INDEX_SIZE =  2, INDEX_ORIENTATION = 3, INDEX_PRESSURE = 4, INDEX_POSITION = 5, INDEX_SENSOR_START = 6;
+    static final int INDEX_DOWNDOWN = 0, INDEX_DOWNUP = 1, INDEX_SIZE =  2, INDEX_ORIENTATION = 3, INDEX_PRESSURE = 4, INDEX_POSITION = 5, INDEX_SENSOR_START = 6;
+    /** Minimum number of values to read for calculating the distances between all templates in parallel **/
+    private static final long PARALLEL_DISTANCES_CUTOFF = 1 << 16;
+    /** Maximum number of decoded template sets kept in memory **/
+    static final int TEMPLATE_CACHE_SIZE = 32;
+    /** Default file of saveSnapshot() and loadSnapshot() **/
+    public static final String SNAPSHOT_FILE_NAME = "templates.snapshot";
 
     private final StatisticalClassifierContract dbContract;
-    private final Pattern multiValueRegex = Pattern.compile("\\" + MULTI_VALUE_SEPARATOR);
+    private final int featureCount;
 
-    private int screenOrientation;
-    private List<double[][][]> acquisitions;  // feature<[row][sample][values]>
-    private double[] variability; // Variability scores of each feature of the enrollment templates
-    private boolean templatesLocked = false;
+    private final TemplateCache templateCache = new TemplateCache(TEMPLATE_CACHE_SIZE);
+    private TemplateSnapshot snapshot;  // Template sets restored by loadSnapshot() that haven't been loaded yet
 
-    private boolean invalidData;
-    private ActiveBiometricsEntries activeEntries = new ActiveBiometricsEntries();
-    private List<List<double[]>> currentData;   // feature<sample<[values]>>
-    /** Set to the ID of the newly inserted template row, because reading occurs just before the insert **/
-    private int currentTemplateID;
+    private TemplateStore store;    // The store of the loaded template set, see getStore()
+    private final InMemoryTemplateStore memoryStore;
+    private JdbcTemplateStore dbStore;  // Store in the database, which is created after the classifier
+
+    private InputSession session;   // The current input, which is enrolled to the template set it was started for
 
     /** Set to true when the user clicked the Next, Previous or Enter button and therefore submitted the input to the app **/
     private boolean submittedInput;
-    /** Set to true when calcScore() was successful **/
-    private boolean calculatedScore;
-    private double score = BiometricsManager.SCORE_NOT_ENOUGH_DATA;
 
     public StatisticalClassifier(BiometricsManagerImpl manager) {
         super(manager);
 
         dbContract = new StatisticalClassifierContract(BiometricsManager.SENSOR_TYPES);
+        featureCount = dbContract.getFeatureColumns().size();
+        memoryStore = new InMemoryTemplateStore(featureCount);
     }
 
     @Override
@@ -68,94 +70,298 @@ public class StatisticalClassifier extends Classifier {
 
     // NOTE: The discard parameter is used for evaluation to avoid polluting the dataset of the original user
     public double getScore(boolean discard) {
-        if (!calculatedScore) {
-            calcScore();
+        if (!session.hasScore()) {
+            session.getScore();
             if (!discard) {
-                saveBiometricData();
+                saveBiometricData(session);
             }
             resetData();
         }
-        return score;
+        return session.getScore();
+    }
+
+    /**
+     * Scores several inputs against the template set one after another, see getScores(long, List, boolean)
+     */
+    public double[] getScores(long context, List<BiometricsEntry[]> inputs) {
+        return getScores(context, inputs, false);
+    }
+
+    /**
+     * Scores several inputs against the template set, which is loaded only once. This is equivalent to calling
+     * onStartInput(), onKeyEvent() and getScore(true) for every input, so the inputs are never saved.
+     * @param context the biometrics context of all inputs
+     * @param inputs the DOWN and UP events of each input, in the order they occurred
+     * @param parallel whether to split the inputs into one range per worker of the common ForkJoinPool, each of which
+     *                 is scored with its own session, instead of scoring all inputs in the calling thread
+     * @return the score of each input
+     */
+    public double[] getScores(long context, List<BiometricsEntry[]> inputs, boolean parallel) {
+        double[] scores = new double[inputs.size()];
+        TemplateModel model = loadModel(context, manager.getScreenOrientation());
+        if (model == null) {
+            Arrays.fill(scores, BiometricsManager.SCORE_CAPTURING_ERROR);
+            return scores;
+        }
+
+        int workers = parallel ? Math.min(inputs.size(), ForkJoinPool.getCommonPoolParallelism()) : 1;
+        if (workers <= 1) {
+            addScores(model, inputs, scores, 0, inputs.size());
+        } else {
+            ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[workers];
+            for (int w = 0; w < workers; w++) {
+                int first = (int)((long)inputs.size() * w / workers), end = (int)((long)inputs.size() * (w + 1) / workers);
+                tasks[w] = ForkJoinTask.adapt(() -> addScores(model, inputs, scores, first, end));
+            }
+            ForkJoinTask.invokeAll(tasks);
+        }
+        return scores;
+    }
+
+    /**
+     * Scores the inputs first to end-1 one after another with a single session, which only one thread may use
+     */
+    private static void addScores(TemplateModel model, List<BiometricsEntry[]> inputs, double[] scores, int first, int end) {
+        InputSession session = model.newSession();
+        for (int i = first; i < end; i++) {
+            session.reset();
+            for (BiometricsEntry entry : inputs.get(i)) {
+                session.addEntry(entry);
+            }
+            scores[i] = session.getScore();
+        }
+    }
+
+    /**
+     * Decides whether the input is accepted (score < threshold), stopping as soon as the score is guaranteed to reach
+     * the threshold. Inputs rejected this way are not saved, because their score is unknown.
+     */
+    // NOTE: The discard parameter is used for evaluation to avoid polluting the dataset of the original user
+    public ThresholdDecision getDecision(double threshold, boolean discard) {
+        if (session.hasScore()) {
+            return session.getDecision(threshold);
+        }
+
+        ThresholdDecision decision = session.getDecision(threshold);
+        if (!discard && !decision.isRejectedEarly()) {
+            saveBiometricData(session);
+        }
+        resetData();
+        return decision;
     }
 
     @Override
     public void onCreate() {
     }
 
+    /**
+     * The template model of the current input, which can be shared with InputSessions in other threads
+     */
+    public TemplateModel getModel() {
+        return session != null ? session.getModel() : null;
+    }
+
+    /**
+     * The decoded template sets, whose counters show how often loadModel() could skip the database
+     */
+    public TemplateCache getTemplateCache() {
+        return templateCache;
+    }
+
+    // NOTE: Package-private for tests
+    InputSession getSession() {
+        return session;
+    }
+
     @Override
     public void onStartInput(long context, boolean restarting) {
-        if (restarting || invalidData) {
+        if (restarting || (session != null && session.isInvalid())) {
             if (submittedInput) return;
 
             CharSequence text = manager.getInputText();
             if (text != null && text.length() != 0) {
-                invalidData = true;
+                session.invalidate();
             } else {
                 resetData();
             }
             return;
         }
 
-        screenOrientation = manager.getScreenOrientation();
+        InputSession session = newSession(context, manager.getScreenOrientation());
+        if (session != null) {
+            this.session = session;
+            submittedInput = false;
+        }
+    }
 
-        List<String> columns = new ArrayList<>(dbContract.getSensorColumns().length + INDEX_SENSOR_START);
-        columns.add(StatisticalClassifierContract.StatisticalClassifierData.COLUMN_KEY_DOWNDOWN);
-        columns.add(StatisticalClassifierContract.StatisticalClassifierData.COLUMN_KEY_DOWNUP);
-        columns.add(StatisticalClassifierContract.StatisticalClassifierData.COLUMN_SIZE);
-        columns.add(StatisticalClassifierContract.StatisticalClassifierData.COLUMN_ORIENTATION);
-        columns.add(StatisticalClassifierContract.StatisticalClassifierData.COLUMN_PRESSURE);
-        columns.add(StatisticalClassifierContract.StatisticalClassifierData.COLUMN_POSITION);
-        Collections.addAll(columns, dbContract.getSensorColumns());
+    /**
+     * Loads the template set of a context in a screen orientation and calculates its variability. Loading is
+     * synchronized with enrollment and clearData(), while the returned model can be used by any thread.
+     * @return the model, or null if the template set couldn't be loaded
+     * @see #newSession(long, int)
+     */
+    public synchronized TemplateModel loadModel(long context, int screenOrientation) {
+        TemplateCache.Entry entry = loadTemplates(new TemplateKey(context, screenOrientation));
+        return entry != null ? entry.getModel() : null;
+    }
 
-        Cursor c = null;
-        try {
-            if (EvaluationParams.enableTemplateSelection) {
-                c = manager.getDb().query(false, StatisticalClassifierContract.StatisticalClassifierTemplateStatus.TABLE_NAME, new String[] {StatisticalClassifierContract.StatisticalClassifierTemplateStatus._ID },
-                        StatisticalClassifierContract.StatisticalClassifierTemplateStatus.COLUMN_CONTEXT + " = ? AND " + StatisticalClassifierContract.StatisticalClassifierTemplateStatus.COLUMN_SCREEN_ORIENTATION + " = ?",
-                        new String[] { String.valueOf(manager.getBiometricsContext()), String.valueOf(screenOrientation) }, null, null, null, null);
-                templatesLocked = c.getCount() > 0;
-
-                c = manager.getDb().query(false, StatisticalClassifierContract.StatisticalClassifierData.TABLE_NAME,
-                        columns.toArray(new String[columns.size()]),
-                        StatisticalClassifierContract.StatisticalClassifierData.COLUMN_CONTEXT + " = ? AND " + StatisticalClassifierContract.StatisticalClassifierData.COLUMN_SCREEN_ORIENTATION + " = ? AND " + StatisticalClassifierContract.StatisticalClassifierData._ID + " IN (" +
-                                "SELECT " + StatisticalClassifierContract.StatisticalClassifierTemplates.COLUMN_DATA_ID + " FROM " + StatisticalClassifierContract.StatisticalClassifierTemplates.TABLE_NAME + " WHERE " + StatisticalClassifierContract.StatisticalClassifierTemplates.COLUMN_CONTEXT + " = ? AND " + StatisticalClassifierContract.StatisticalClassifierTemplates.COLUMN_SCREEN_ORIENTATION + " = ?)",
-                        new String[] { String.valueOf(context), String.valueOf(screenOrientation), String.valueOf(context), String.valueOf(screenOrientation) },
-                        null, null, null, null);
-            } else {
-                c = manager.getDb().query(false, StatisticalClassifierContract.StatisticalClassifierData.TABLE_NAME,
-                        columns.toArray(new String[columns.size()]),
-                        StatisticalClassifierContract.StatisticalClassifierData.COLUMN_CONTEXT + " = ? AND " + StatisticalClassifierContract.StatisticalClassifierData.COLUMN_SCREEN_ORIENTATION + " = ?",
-                        new String[] { String.valueOf(context), String.valueOf(screenOrientation) },
-                        null, null, null, null);
-            }
+    /**
+     * Starts a session for an input of a context in a screen orientation, whose input is enrolled to this template set
+     * by enroll(). Sessions of different template sets can be used by different threads at once, e.g. for several users.
+     * @return the session, or null if the template set couldn't be loaded
+     */
+    public synchronized InputSession newSession(long context, int screenOrientation) {
+        TemplateKey key = new TemplateKey(context, screenOrientation);
+        TemplateCache.Entry entry = loadTemplates(key);
+        return entry != null ? new InputSession(entry.getModel(), key, entry) : null;
+    }
 
-            c.beforeFirst();
-            currentData = new ArrayList<>(c.getColumnCount());
-            for (int i = 0; i < c.getColumnCount(); i++) {
-                currentData.add(new LinkedList<>());
+    /**
+     * Scores the input of a session and saves it to the template set the session was started for, like getScore()
+     * does for the current input. The captured data is discarded afterwards, so that the session can capture the next
+     * input.
+     * @return the score of the input
+     */
+    public double enroll(InputSession session) {
+        if (!session.canEnroll()) {
+            throw new IllegalArgumentException("The session has no template set to enroll to");
+        }
+        if (session.hasScore()) return session.getScore();
+
+        session.getScore();
+        saveBiometricData(session);
+        session.clearCapturedData();
+        return session.getScore();
+    }
+
+    /**
+     * Template sets are read from the templateCache unless they have been changed since they were last loaded, and from
+     * the snapshot restored by loadSnapshot() before they are read from the store.
+     * @return the template set with its model, or null if it couldn't be read
+     */
+    private TemplateCache.Entry loadTemplates(TemplateKey key) {
+        TemplateStore store = getStore();
+
+        TemplateCache.Entry entry = templateCache.get(key);
+        if (entry == null && snapshot != null) {
+            entry = snapshot.remove(key);   // From now on, the template set is kept up to date by the cache
+            if (entry != null) {
+                templateCache.put(key, entry);
+            }
+        }
+        if (entry == null) {
+            int usedFeatures = getUsedFeatureCount(featureCount);
+            boolean[] readFeatures = new boolean[featureCount];
+            Arrays.fill(readFeatures, 0, usedFeatures, true);
+            List<FeatureTensor> acquisitions;
+            boolean templatesLocked = false;    // Template sets are only locked by template selection
+            try {
+                if (EvaluationParams.enableTemplateSelection) {
+                    templatesLocked = store.isLocked(key.getContext(), key.getScreenOrientation());
+                    acquisitions = store.readTemplateData(key.getContext(), key.getScreenOrientation(), readFeatures);
+                } else {
+                    acquisitions = store.readData(key.getContext(), key.getScreenOrientation(), readFeatures);
+                }
+            } catch (SQLException e) {
+                e.printStackTrace();
+                return null;
             }
 
-            invalidData = false;
-            submittedInput = false;
-            calculatedScore = false;
-            score = BiometricsManager.SCORE_NOT_ENOUGH_DATA;
+            DistanceKernel distanceKernel = DistanceKernel.forFunction(EvaluationParams.distanceFunction);
+            entry = new TemplateCache.Entry(acquisitions, calcDistances(acquisitions, distanceKernel), templatesLocked, usedFeatures);
+            templateCache.put(key, entry);
+        }
 
-            acquisitions = new ArrayList<>(c.getColumnCount());
-            for (int i = 0; i < c.getColumnCount(); i++) {
-                acquisitions.add(new double[c.getCount()][0][0]);
-                fillArray(c, i);
+        if (entry.getModel() == null) {
+            entry.setModel(createModel(entry));
+        }
+        return entry;
+    }
+
+    /**
+     * Calculates the variability of a template set
+     */
+    private static TemplateModel createModel(TemplateCache.Entry entry) {
+        TemplateDistances templateDistances = entry.distances;
+        int[] templateDynamics = new int[entry.acquisitions.size()];
+        for (int delta = 0; delta < templateDynamics.length; delta++) {
+            templateDynamics[delta] = findTemplateDynamics(templateDistances, delta);
+        }
+        return new TemplateModel(entry.acquisitions, calcVariability(entry.acquisitions, templateDistances), templateDynamics,
+                DistanceKernel.forFunction(templateDistances.getDistanceFunction()), EvaluationParams.classificationFunction, entry.templatesLocked, entry.usedFeatures);
+    }
+
+    /**
+     * The evaluation only passes the data of the sensors in EvaluationParams.usedSensors to the classifier, in the order
+     * of the sensor features. The features of all further sensors are always empty, so they are neither read from the
+     * store nor captured. Touch properties that aren't used are captured as zeros, so they are always read.
+     * @param features the number of features of the contract
+     * @return the number of features that are used, all of which come before the unused features
+     */
+    static int getUsedFeatureCount(int features) {
+        return Math.min(INDEX_SENSOR_START + EvaluationParams.usedSensors.size(), features);
+    }
+
+    /**
+     * Writes all decoded template sets and their variability to a snapshot file, from which they can be restored by
+     * loadSnapshot() as long as the store isn't changed in between.
+     */
+    public synchronized void saveSnapshot(File file) throws IOException, SQLException {
+        TemplateStore store = getStore();
+        Map<TemplateKey, TemplateCache.Entry> entries = new LinkedHashMap<>();
+        if (snapshot != null) {
+            for (TemplateKey key : snapshot.keys()) {
+                TemplateCache.Entry entry = snapshot.read(key);
+                if (entry != null) {
+                    entries.put(key, entry);
+                }
             }
-            variability = new double[c.getColumnCount()];
-            calcVariability();
-        } catch (SQLException e) {
-            e.printStackTrace();
-        } finally {
-            if (c != null) {
-                try {
-                    c.close();
-                } catch (SQLException e) { }
+        }
+        entries.putAll(templateCache.getEntries());
+
+        // Calculate the variability of template sets that have been changed since it was last calculated
+        for (TemplateCache.Entry entry : entries.values()) {
+            if (entry.getModel() == null) {
+                entry.setModel(createModel(entry));
+            }
+        }
+
+        TemplateSnapshot.write(file, dbContract.getVersion(), store.getStoreId(), store.getGeneration(), entries);
+    }
+
+    /**
+     * Restores the template sets written by saveSnapshot(), so that loadModel() doesn't have to read and decode them.
+     * The snapshot is ignored if it was written for another version of the database contract or the store has been
+     * changed since, because the store is always the source of truth.
+     * @return true if the snapshot has been restored
+     */
+    public synchronized boolean loadSnapshot(File file) throws IOException, SQLException {
+        TemplateStore store = getStore();
+        snapshot = TemplateSnapshot.open(file, dbContract.getVersion(), store.getStoreId(), store.getGeneration());
+        return snapshot != null;
+    }
+
+    /**
+     * @return the in-memory store if EvaluationParams.inMemoryTemplateStore is enabled, otherwise the store in the
+     * current database
+     */
+    private TemplateStore getStore() {
+        TemplateStore store;
+        if (EvaluationParams.inMemoryTemplateStore) {
+            store = memoryStore;
+        } else {
+            if (dbStore == null || dbStore.getDb() != manager.getDb()) {
+                dbStore = new JdbcTemplateStore(manager.getDb(), dbContract);
             }
+            store = dbStore;
         }
+
+        if (store != this.store) {
+            templateCache.clear();  // The cached template sets were read from the previous store
+            snapshot = null;
+            this.store = store;
+        }
+        return store;
     }
 
     @Override
@@ -168,12 +374,12 @@ public class StatisticalClassifier extends Classifier {
         if (!done) {
             CharSequence text = manager.getInputText();
             if (text != null && text.length() != 0) {
-                invalidData = true;
+                session.invalidate();
             }
-        } else if (!calculatedScore) {
-            calcScore();
+        } else if (!session.hasScore()) {
+            session.getScore();
             if (!discard) {
-                saveBiometricData();
+                saveBiometricData(session);
             }
             resetData();
         }
@@ -182,7 +388,7 @@ public class StatisticalClassifier extends Classifier {
     @Override
     public void onKeyEvent(BiometricsEntry entry) {
         if (submittedInput) return;
-        if (invalidData) {
+        if (session.isInvalid()) {
             if (manager.getInputText().length() == 0) {
                 resetData();
             } else {
@@ -190,164 +396,130 @@ public class StatisticalClassifier extends Classifier {
             }
         }
 
-        if (entry.getEvent() == BiometricsEntry.EVENT_UP) {
-            BiometricsEntry downEntry = activeEntries.getDownEntry(entry.getPointerId());
-            if (downEntry == null) {
-                Log.e(TAG, "BUG: Got UP event, but no matching DOWN event found");
-            } else {
-                currentData.get(INDEX_DOWNUP).add(new double[] { entry.getTimestamp() - downEntry.getTimestamp() });
-            }
-            currentData.get(INDEX_POSITION).add(new double[] { entry.getX(), entry.getY() });
-            activeEntries.removeById(entry.getPointerId());
-        } else {
-            BiometricsEntry prevEntry = activeEntries.getLastDownEntry(entry.getTimestamp());
-            if (prevEntry != null) {
-                currentData.get(INDEX_DOWNDOWN).add(new double[] { entry.getTimestamp() - prevEntry.getTimestamp() });
-                for (int i = 0; i < entry.getSensorData().size(); i++) {
-                    float[] prevData = prevEntry.getSensorData().get(i);
-                    double[] sensorData = new double[prevData.length];
-                    for (int j = 0; j < sensorData.length; j++) {
-                        //sensorData[j] = entry.getSensorData().get(i)[j] - prevData[j];
-                        // NOTE: Because this is the evaluation, all sensor data already contains relative numbers
-                        sensorData[j] = entry.getSensorData().get(i)[j];
-                    }
-                    currentData.get(INDEX_SENSOR_START + i).add(sensorData);
-                }
-            }
-            currentData.get(INDEX_SIZE).add(new double[] { entry.getSize() });
-            currentData.get(INDEX_ORIENTATION).add(new double[] { entry.getOrientation() });
-            currentData.get(INDEX_PRESSURE).add(new double[] { entry.getPressure() });
-            activeEntries.add(entry);
-        }
+        session.addEntry(entry);
     }
 
     @Override
     public void onDestroy() {
     }
 
-    private void fillArray(Cursor c, int columnIndex) {
-        if (c.getCount() == 0) return;
-        double[][][] values = acquisitions.get(columnIndex);
-
-        // Load rows from DB to array
-        try {
-            c.beforeFirst();
-            int row = 0;
-            while (c.next()) {
-                String[] rowValues = CsvUtils.split(c.getString(columnIndex));
-                if (rowValues.length == 1 && rowValues[0].isEmpty()) {
-                    if (row == 0) {
-                        return;    // Skip empty features (e.g. unavailable sensors)
-                    } else {
-                        Log.e(TAG, String.format("BUG: Template %d has no data for column %d", row, columnIndex));
-                        values[row] = new double[values[row-1].length][0];
-                        continue;
-                    }
-                }
-
-                values[row] = new double[rowValues.length][0];
-                for (int col = 0; col < rowValues.length; col++) {
-                    values[row][col] = stringsToDoubles(multiValueRegex.split(rowValues[col]));
-                }
-                row++;
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
+    /**
+     * D(.,.) between the enrollment acquisitions e and i of a feature
+     */
+    private static double getDistance(DistanceKernel distanceKernel, FeatureTensor templates, int e, int i) {
+        return distanceKernel.distance(templates.getData(), templates.getOffset(e), templates.getData(), templates.getOffset(i), templates.getSampleCount(e), templates.getValueCount());
     }
 
     /**
-     * Implementation of the D(.,.) function in Maiorana, et al. 2011
-     * @param f1 Fu,e
-     * @param f2 Fu,i
-     * @return D(.,.)
+     * D(.,.) between the enrollment acquisition e of a feature and the captured samples of this feature
+     * @param sample the captured samples as returned by getCurrentSample()
      */
-    private double getDistance(double[][] f1, double[][] f2) {
-        double distance = 0;
-        DistanceMeasure measure;
-        switch (EvaluationParams.distanceFunction) {
-            case 1:
-                measure = new SquaredEuclideanDistance();
-                break;
-            default:
-            case 0:
-                measure = new ManhattanDistance();
-                break;
-        }
-
-        // Calculate distance for all samples
-        for (int k = 0; k < f1.length; k++) {
-            distance += measure.compute(f1[k], f2[k]);
-        }
-        distance /= f1.length;
-        return distance;
+    private static double getDistance(DistanceKernel distanceKernel, FeatureTensor templates, int e, double[] sample) {
+        return distanceKernel.distance(templates.getData(), templates.getOffset(e), sample, 0, templates.getSampleCount(e), templates.getValueCount());
     }
 
     private void resetData() {
-        invalidData = false;
         submittedInput = false;
-        for (List<double[]> data : currentData) {
-            data.clear();
-        }
-        activeEntries.clear();
+        session.clearCapturedData();
     }
 
-    private void calcScore() {
-        if (!templatesLocked && acquisitions.get(0).length < EvaluationParams.acquisitionSetSize) {
-            Log.i(TAG, "Template set too small (" + acquisitions.get(0).length + ") for authentication");
-            score = BiometricsManager.SCORE_NOT_ENOUGH_DATA;
-            calculatedScore = true;
-            return;
+    // ---- BEGIN VARIABILITY METRICS ----
+    /**
+     * Calculates the distances between all templates. The features are independent of each other, so they are
+     * calculated in parallel if EvaluationParams.parallelFeatures is enabled and the template set is large enough.
+     */
+    private static TemplateDistances calcDistances(List<FeatureTensor> acquisitions, DistanceKernel distanceKernel) {
+        int E = acquisitions.get(0).getRowCount();
+        TemplateDistances distances = new TemplateDistances(acquisitions.size(), E, EvaluationParams.distanceFunction);
+        for (int e = 0; e < E; e++) {
+            distances.addRow();
         }
 
-        if (currentData.size() != acquisitions.size()) {
-            Log.e(TAG, "Authentication data has " + currentData.size() + " datapoints, needs " + acquisitions.size());
-            score = BiometricsManager.SCORE_CAPTURING_ERROR;
-            invalidData = true;
-            calculatedScore = true;
-            return;
+        long values = 0;    // Number of values read for all distances, to estimate the work
+        for (FeatureTensor templates : acquisitions) {
+            if (templates.getRowCount() > 0) {
+                values += (long)E * (E - 1) * templates.getSampleCount(0) * templates.getValueCount();
+            }
         }
+        if (EvaluationParams.parallelFeatures && values >= PARALLEL_DISTANCES_CUTOFF) {
+            ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[acquisitions.size()];
+            for (int delta = 0; delta < acquisitions.size(); delta++) {
+                final int feature = delta;
+                tasks[delta] = ForkJoinTask.adapt(() -> addDistances(acquisitions.get(feature), distanceKernel, distances, feature, 0, E));
+            }
+            ForkJoinTask.invokeAll(tasks);
+        } else {
+            for (int delta = 0; delta < acquisitions.size(); delta++) {
+                addDistances(acquisitions.get(delta), distanceKernel, distances, delta, 0, E);
+            }
+        }
+        return distances;
+    }
 
-        // Calculate variability of captured and template acquisitions
-        double result = calcAuthentication();
-        // NaN results from unequal sample sizes, score will already be set to SCORE_CAPTURING_ERROR by ensureEqualSampleCount()
-        if (!Double.isNaN(result)) {
-            score = result;
+    /**
+     * Sets the distances of the templates first to end-1 to all previous templates of a feature, which takes O(E)
+     * distance calculations per template. Features use separate arrays of TemplateDistances, so they can be set from
+     * different threads.
+     */
+    private static void addDistances(FeatureTensor templates, DistanceKernel distanceKernel, TemplateDistances distances, int delta, int first, int end) {
+        for (int i = first; i < end; i++) {
+            for (int e = 0; e < i; e++) {
+                distances.set(delta, e, i, getDistance(distanceKernel, templates, e, i));
+            }
         }
-        calculatedScore = true;
     }
 
-    private double[] stringsToDoubles(String[] strings) {
-        double[] doubles = new double[strings.length];
-        for (int i = 0; i < strings.length; i++) {
-            doubles[i] = Double.valueOf(strings[i]);
+    /**
+     * Adds the captured acquisition to the template set of the session, so that the cached template set stays valid
+     * and only its variability has to be recalculated by the next session
+     */
+    private void appendTemplate(InputSession session) {
+        TemplateCache.Entry entry = session.getTemplates();
+        if (templateCache.peek(session.getKey()) != entry) return;  // Template set has been changed otherwise
+        entry.setModel(null);
+
+        List<FeatureTensor> acquisitions = entry.acquisitions;
+        for (int delta = 0; delta < acquisitions.size(); delta++) {
+            FeatureTensor templates = acquisitions.get(delta);
+            List<double[]> data = session.getCurrentData().get(delta);
+            if (data.isEmpty() || (templates.getRowCount() > 0 && templates.isEmpty())) {
+                templates.appendRow(0, 0);  // Feature is treated as empty when the first template is, see fillArrays()
+            } else {
+                int values = data.get(0).length;
+                int offset = templates.appendRow(data.size(), values);
+                System.arraycopy(session.getCurrentSample(delta), 0, templates.getData(), offset, data.size() * values);
+            }
+        }
+        int i = entry.distances.addRow();
+        for (int delta = 0; delta < acquisitions.size(); delta++) {
+            addDistances(acquisitions.get(delta), session.getModel().getDistanceKernel(), entry.distances, delta, i, i + 1);
         }
-        return doubles;
     }
 
-    // ---- BEGIN VARIABILITY METRICS ----
-    private void calcVariability() {
-        if (acquisitions.get(0).length > 0) {
+    private static double[] calcVariability(List<FeatureTensor> acquisitions, TemplateDistances templateDistances) {
+        double[] variability = new double[acquisitions.size()];
+        if (acquisitions.get(0).getRowCount() > 0) {
             for (int delta = 0; delta < acquisitions.size(); delta++) {
                 double result;
                 switch (EvaluationParams.classificationFunction) {
                     case 0:
-                        result = minVariability(delta);
+                        result = minVariability(templateDistances, delta);
                         break;
                     case 1:
-                        result = maxVariability(delta);
+                        result = maxVariability(templateDistances, delta);
                         break;
                     case 3:
-                        result = tempVariability(delta);
+                        result = tempVariability(templateDistances, delta);
                         break;
                     case 2:
                     default:
-                        result = meanVariability(delta);
+                        result = meanVariability(templateDistances, delta);
                         break;
                 }
                 variability[delta] = result;
             }
         }
+        return variability;
     }
 
     /**
@@ -355,16 +527,11 @@ public class StatisticalClassifier extends Classifier {
      * @param delta the feature index
      * @return MIN^δ_u
      */
-    private double minVariability(int delta) {
+    private static double minVariability(TemplateDistances templateDistances, int delta) {
         double min = 0;
-        int E = acquisitions.get(delta).length;
+        int E = templateDistances.getRowCount();
         for (int e = 0; e < E; e++) {  // SUM(e=1, E)
-            double minDist = Double.POSITIVE_INFINITY;
-            for (int i = 0; i < E; i++) {
-                if (i == e) continue;
-                minDist = Math.min(minDist, getDistance(acquisitions.get(delta)[e], acquisitions.get(delta)[i]));  // MIN(D[f(e), f(i)])
-            }
-            min += minDist;
+            min += templateDistances.getNearest(delta, e);  // MIN(D[f(e), f(i)])
         }
         min /= E;   // 1/E
         return min;
@@ -375,16 +542,11 @@ public class StatisticalClassifier extends Classifier {
      * @param delta the feature index
      * @return MAX^δ_u
      */
-    private double maxVariability(int delta) {
+    private static double maxVariability(TemplateDistances templateDistances, int delta) {
         double max = 0;
-        int E = acquisitions.get(delta).length;
+        int E = templateDistances.getRowCount();
         for (int e = 0; e < E; e++) {  // SUM(e=1, E)
-            double maxDist = Double.NEGATIVE_INFINITY;
-            for (int i = 0; i < E; i++) {
-                if (i == e) continue;
-                maxDist = Math.max(maxDist, getDistance(acquisitions.get(delta)[e], acquisitions.get(delta)[i]));  // MAX(D[f(e), f(i)])
-            }
-            max += maxDist;
+            max += templateDistances.getFarthest(delta, e);  // MAX(D[f(e), f(i)])
         }
         max /= E;   // 1/E
         return max;
@@ -395,16 +557,11 @@ public class StatisticalClassifier extends Classifier {
      * @param delta the feature index
      * @return MEAN^δ_u
      */
-    private double meanVariability(int delta) {
+    private static double meanVariability(TemplateDistances templateDistances, int delta) {
         double mean = 0;
-        int E = acquisitions.get(delta).length;
+        int E = templateDistances.getRowCount();
         for (int e = 0; e < E; e++) {  // SUM(e=1, E)
-            double meanDist = 0;
-            for (int i = 0; i < E; i++) {
-                if (i == e) continue;
-                meanDist += getDistance(acquisitions.get(delta)[e], acquisitions.get(delta)[i]);    // SUM(i=1, E, i!=e)
-            }
-            mean += meanDist / (E - 1); // 1/(E-1)
+            mean += templateDistances.getSum(delta, e) / (E - 1);   // 1/(E-1) * SUM(i=1, E, i!=e)
         }
         mean /= E;   // 1/E
         return mean;
@@ -416,15 +573,15 @@ public class StatisticalClassifier extends Classifier {
      * @param delta the feature index
      * @return TEMP^δ_u
      */
-    private double tempVariability(int delta) {
+    private static double tempVariability(TemplateDistances templateDistances, int delta) {
         double temp = 0;
-        int E = acquisitions.get(delta).length;
-        int tu = findTemplateDynamics(delta);
+        int E = templateDistances.getRowCount();
+        int tu = findTemplateDynamics(templateDistances, delta);
         if (tu == -1) return Double.NaN; // No template found, because feature is empty
 
         for (int e = 0; e < E; e++) {  // SUM(e=1, E, e!=tu)
             if (e == tu) continue;
-            temp += getDistance(acquisitions.get(delta)[e], acquisitions.get(delta)[tu]);
+            temp += templateDistances.get(delta, e, tu);
         }
         temp /= E;   // 1/E
         return temp;
@@ -436,228 +593,101 @@ public class StatisticalClassifier extends Classifier {
      * @param delta the feature index
      * @return tu
      */
-    private int findTemplateDynamics(int delta) {
-        int tu = -1;
-        double minAvgDist = Double.POSITIVE_INFINITY;
-        int E = acquisitions.get(delta).length;
-        if (E == 1) return 0;   // Avoid NaN through DIV/0
-
-        for (int e = 0; e < E; e++) {
-            double avgDist = 0;
-            for (int i = 0; i < E; i++) {
-                if (i == e) continue;
-                avgDist += getDistance(acquisitions.get(delta)[e], acquisitions.get(delta)[i]);
-            }
-            avgDist /= E - 1;
-            if (avgDist < minAvgDist) {
-                tu = e;
-                minAvgDist = avgDist;
-            }
+    private static int findTemplateDynamics(TemplateDistances templateDistances, int delta) {
+        if (templateDistances.hasTemplateDynamics(delta)) {
+            return templateDistances.getTemplateDynamics(delta);
         }
-        return tu;
-    }
-    // ---- END VARIABILITY METRICS
 
-    // ---- BEGIN AUTHENTICATION METRICS ----
-    private double calcAuthentication() {
-        double result = Double.NaN;
-        if (acquisitions.get(0).length > 0) {
-            switch (EvaluationParams.classificationFunction) {
-                case 0:
-                    result = minAuthentication();
-                    break;
-                case 1:
-                    result = maxAuthentication();
-                    break;
-                case 3:
-                    result = tempAuthentication();
-                    break;
-                case 2:
-                default:
-                    result = meanAuthentication();
-                    break;
-            }
-        }
-        return result;
-    }
-
-    private double minAuthentication() {
-        double min = 0;
-        int skippedFeatures = 0;
-        for (int delta = 0; delta < currentData.size(); delta++) {
-            double minDist = Double.POSITIVE_INFINITY;
-            int E = acquisitions.get(delta).length;
-            for (int e = 0; e < E; e++) {
-                if (!ensureEqualSampleCount(delta, e)) {
-                    return Double.NaN;
-                }
-
-                if (currentData.get(delta).size() > 0) {
-                    double[][] sample = new double[currentData.get(delta).size()][currentData.get(delta).get(0).length];
-                    minDist = Math.min(minDist, getDistance(acquisitions.get(delta)[e], currentData.get(delta).toArray(sample)));  // MIN(D[f(e), f(u)])
-                }
-            }
-            if (!Double.isNaN(variability[delta])) {
-                min += variability[delta] == 0 ? 0 : (minDist / variability[delta]);
-            } else {
-                skippedFeatures++;
-            }
-        }
-        min /= currentData.size() - skippedFeatures;   // 1/δ
-        return min;
-    }
-
-    private double maxAuthentication() {
-        double max = 0;
-        int skippedFeatures = 0;
-        for (int delta = 0; delta < currentData.size(); delta++) {
-            double maxDist = Double.NEGATIVE_INFINITY;
-            int E = acquisitions.get(delta).length;
+        int tu = -1;
+        int E = templateDistances.getRowCount();
+        if (E == 1) {
+            tu = 0;   // Avoid NaN through DIV/0
+        } else {
+            double minAvgDist = Double.POSITIVE_INFINITY;
             for (int e = 0; e < E; e++) {
-                if (!ensureEqualSampleCount(delta, e)) {
-                    return Double.NaN;
-                }
-
-                if (currentData.get(delta).size() > 0) {
-                    double[][] sample = new double[currentData.get(delta).size()][currentData.get(delta).get(0).length];
-                    maxDist = Math.max(maxDist, getDistance(acquisitions.get(delta)[e], currentData.get(delta).toArray(sample)));  // MAX(D[f(e), f(u)])
+                double avgDist = templateDistances.getSum(delta, e) / (E - 1);
+                if (avgDist < minAvgDist) {
+                    tu = e;
+                    minAvgDist = avgDist;
                 }
             }
-            if (!Double.isNaN(variability[delta])) {
-                max += variability[delta] == 0 ? 0 : (maxDist / variability[delta]);
-            } else {
-                skippedFeatures++;
-            }
         }
-        max /= currentData.size() - skippedFeatures;   // 1/δ
-        return max;
-    }
-
-    private double meanAuthentication() {
-        double mean = 0;
-        int skippedFeatures = 0;
-        for (int delta = 0; delta < currentData.size(); delta++) {
-            double meanDist = 0;
-            int E = acquisitions.get(delta).length;
-            for (int e = 0; e < E; e++) {
-                if (!ensureEqualSampleCount(delta, e)) {
-                    return Double.NaN;
-                }
-
-                if (currentData.get(delta).size() > 0) {
-                    double[][] sample = new double[currentData.get(delta).size()][currentData.get(delta).get(0).length];
-                    meanDist += getDistance(acquisitions.get(delta)[e], currentData.get(delta).toArray(sample));  // D[f(e), f(u)]
-                }
-            }
-            if (!Double.isNaN(variability[delta])) {
-                mean += variability[delta] == 0 ? 0 : (meanDist / variability[delta]);
-            } else {
-                skippedFeatures++;
-            }
-        }
-        mean /= currentData.size() - skippedFeatures;   // 1/δ
-        return mean;
-    }
-
-    private double tempAuthentication() {
-        double temp = 0;
-        int skippedFeatures = 0;
-        for (int delta = 0; delta < currentData.size(); delta++) {
-            int tu = findTemplateDynamics(delta);
-            if (tu == -1) { // No template found, because feature is empty
-                skippedFeatures++;
-                continue;
-            }
-
-            if (!ensureEqualSampleCount(delta, tu)) {
-                return Double.NaN;
-            }
-
-            if (currentData.get(delta).size() > 0) {
-                double[][] sample = new double[currentData.get(delta).size()][currentData.get(delta).get(0).length];
-                double tempDist = getDistance(acquisitions.get(delta)[tu], currentData.get(delta).toArray(sample));
-                temp += variability[delta] == 0 ? 0 : (tempDist / variability[delta]);
-            }
-        }
-        temp /= currentData.size() - skippedFeatures;   // 1/δ
-        return temp;
-    }
-
-    private boolean ensureEqualSampleCount(int delta, int e) {
-        if (currentData.get(delta).size() != acquisitions.get(delta)[e].length) {
-            Log.e(TAG, "Authentication data has " + currentData.get(delta).size() + " samples, needs " + acquisitions.get(delta)[e].length);
-            score = BiometricsManager.SCORE_CAPTURING_ERROR;
-            invalidData = true;
-            return false;
-        }
-        return true;
+        templateDistances.setTemplateDynamics(delta, tu);
+        return tu;
     }
-    // ---- END AUTHENTICATION METRICS ----
-
-    private void saveBiometricData() {
-        if (invalidData || !calculatedScore) return;
+    // ---- END VARIABILITY METRICS
 
-        BiometricsDbHelper db = manager.getDb();
-        BiometricsDbHelper.ContentValues values = new BiometricsDbHelper.ContentValues(INDEX_SENSOR_START + dbContract.getSensorColumns().length + 2);
-        values.put(StatisticalClassifierContract.StatisticalClassifierData.COLUMN_CONTEXT, manager.getBiometricsContext());
-        values.put(StatisticalClassifierContract.StatisticalClassifierData.COLUMN_SCREEN_ORIENTATION, screenOrientation);
-        values.put(StatisticalClassifierContract.StatisticalClassifierData.COLUMN_KEY_DOWNDOWN, CsvUtils.join(toCsvStrings(currentData.get(INDEX_DOWNDOWN))));
-        values.put(StatisticalClassifierContract.StatisticalClassifierData.COLUMN_KEY_DOWNUP, CsvUtils.join(toCsvStrings(currentData.get(INDEX_DOWNUP))));
-        values.put(StatisticalClassifierContract.StatisticalClassifierData.COLUMN_SIZE, CsvUtils.join(toCsvStrings(currentData.get(INDEX_SIZE))));
-        values.put(StatisticalClassifierContract.StatisticalClassifierData.COLUMN_ORIENTATION, CsvUtils.join(toCsvStrings(currentData.get(INDEX_ORIENTATION))));
-        values.put(StatisticalClassifierContract.StatisticalClassifierData.COLUMN_PRESSURE, CsvUtils.join(toCsvStrings(currentData.get(INDEX_PRESSURE))));
-        values.put(StatisticalClassifierContract.StatisticalClassifierData.COLUMN_POSITION, CsvUtils.join(toCsvStrings(currentData.get(INDEX_POSITION))));
-        for (int i = 0; i < dbContract.getSensorColumns().length; i++) {
-            values.put(dbContract.getSensorColumns()[i], CsvUtils.join(toCsvStrings(currentData.get(INDEX_SENSOR_START + i))));
-        }
+    /**
+     * Saves the input of a session to the template set the session was started for
+     */
+    private synchronized void saveBiometricData(InputSession session) {
+        if (session.isInvalid() || !session.hasScore()) return;
+        TemplateKey key = session.getKey();
 
-        int index = 0;
+        // The data row, its template row and the template selection are committed together
         try {
-            index = db.insert(StatisticalClassifierContract.StatisticalClassifierData.TABLE_NAME, values);
+            store.beginBatch();
         } catch (SQLException e) {
             e.printStackTrace();
+            return;
         }
-
-        if (EvaluationParams.enableTemplateSelection && !templatesLocked && index > 0) {
-            try {
-                Cursor c = db.query(false, StatisticalClassifierContract.StatisticalClassifierTemplates.TABLE_NAME,
-                        new String[] {StatisticalClassifierContract.StatisticalClassifierTemplates._ID, StatisticalClassifierContract.StatisticalClassifierTemplates.COLUMN_DATA_ID, StatisticalClassifierContract.StatisticalClassifierTemplates.COLUMN_SCORE },
-                        StatisticalClassifierContract.StatisticalClassifierTemplates.COLUMN_CONTEXT + " = ? AND " + StatisticalClassifierContract.StatisticalClassifierTemplates.COLUMN_SCREEN_ORIENTATION + " = ?",
-                        new String[] { String.valueOf(manager.getBiometricsContext()), String.valueOf(screenOrientation) }, null, null, StatisticalClassifierContract.StatisticalClassifierTemplates.COLUMN_SCORE, null);
-                if (c.getCount() < EvaluationParams.acquisitionSetSize - 1) {
-                    saveTemplate(index);
-                } else if (c.getCount() == EvaluationParams.acquisitionSetSize - 1) {
-                    currentTemplateID = saveTemplate(index);
-                    selectTemplates(c);
+        boolean committed = false;
+        try {
+            int index = store.insertData(key.getContext(), key.getScreenOrientation(), session.getCurrentData());
+            if (!EvaluationParams.enableTemplateSelection) {
+                appendTemplate(session);   // Every data row is part of the template set
+            } else if (!session.getTemplates().templatesLocked && index > 0) {
+                int[] templateIds = store.getTemplateIds(key.getContext(), key.getScreenOrientation());
+                if (templateIds.length < EvaluationParams.acquisitionSetSize - 1) {
+                    if (saveTemplate(session, index) > 0) {
+                        appendTemplate(session);
+                    }
+                } else if (templateIds.length == EvaluationParams.acquisitionSetSize - 1) {
+                    // The ID of the newly inserted template row, because reading occurs just before the insert
+                    int currentTemplateId = saveTemplate(session, index);
+                    selectTemplates(session, templateIds, currentTemplateId);     // Invalidates the cached distances if templates were removed
+                    if (currentTemplateId > 0) {
+                        appendTemplate(session);
+                    }
                 }
-            } catch (SQLException e) {
-                e.printStackTrace();
+            }
+            store.commit();
+            committed = true;
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            // Runtime exceptions are passed on, but must not leave the batch open either
+            if (!committed) {
+                try {
+                    store.rollback();
+                } catch (SQLException e1) { }
+                templateCache.remove(key);  // The template may already have been appended to the cached template set
             }
         }
     }
 
     // ---- BEGIN TEMPLATE SELECTION ----
-    private void selectTemplates(Cursor c) {
+    private void selectTemplates(InputSession session, int[] templateIds, int currentTemplateId) throws SQLException {
         if (EvaluationParams.acquisitionSetSize < 2 || EvaluationParams.templateSetSize == EvaluationParams.acquisitionSetSize) return;
 
         switch (EvaluationParams.templateSelectionFunction) {
             case 1:
-                mdistSelect(c, true);
+                mdistSelect(session, templateIds, currentTemplateId, true);
                 break;
             case 2:
-                mdistSelect(c, false);
+                mdistSelect(session, templateIds, currentTemplateId, false);
                 break;
             case 3:
-                gmmsSelect(c, true);
+                gmmsSelect(session, templateIds, currentTemplateId, true);
                 break;
             case 4:
-                gmmsSelect(c, false);
+                gmmsSelect(session, templateIds, currentTemplateId, false);
                 break;
             case 5:
-                dendSelect(c);
+                dendSelect(session, templateIds, currentTemplateId);
                 break;
             case 6:
-                fuzzyCMeansSelect(c);
+                fuzzyCMeansSelect(session, templateIds, currentTemplateId);
                 break;
             case 0:
             default:
@@ -669,24 +699,27 @@ public class StatisticalClassifier extends Classifier {
      * Implementation of the MDIST algorithm in Uludag et. al. 2004
      * @param minSelect Whether to select templates with minimum or maximum distance
      */
-    private void mdistSelect(Cursor c, boolean minSelect) {
+    private void mdistSelect(InputSession session, int[] templateIds, int currentTemplateId, boolean minSelect) throws SQLException {
+        List<FeatureTensor> acquisitions = session.getTemplates().acquisitions;
+        TemplateDistances templateDistances = session.getTemplates().distances;
+        DistanceKernel distanceKernel = session.getModel().getDistanceKernel();
         // Step 1: Find the pair-wise distance score between the N impressions.
-        double[] distances = new double[acquisitions.get(0).length+1];
+        double[] distances = new double[acquisitions.get(0).getRowCount()+1];
         for (int delta = 0; delta < acquisitions.size(); delta++) {
-            if (acquisitions.get(delta)[0].length == 0) continue;   // Skip empty features (e.g. unavailable sensors)
+            FeatureTensor templates = acquisitions.get(delta);
+            if (templates.getSampleCount(0) == 0) continue;   // Skip empty features (e.g. unavailable sensors)
 
+            double[] sample = session.getCurrentSample(delta);
             for (int i = 0; i < distances.length; i++) {
                 for (int j = 0; j < distances.length; j++) {
                     if (i == j) continue;
                     if (i == distances.length - 1) {
-                        double[][] sample = new double[currentData.get(delta).size()][currentData.get(delta).get(0).length];
-                        distances[i] += getDistance(currentData.get(delta).toArray(sample), acquisitions.get(delta)[j]);
+                        distances[i] += getDistance(distanceKernel, templates, j, sample);
                     } else {
                         if (j == distances.length - 1) {
-                            double[][] sample = new double[currentData.get(delta).size()][currentData.get(delta).get(0).length];
-                            distances[i] += getDistance(acquisitions.get(delta)[i], currentData.get(delta).toArray(sample));
+                            distances[i] += getDistance(distanceKernel, templates, i, sample);
                         } else {
-                            distances[i] += getDistance(acquisitions.get(delta)[i], acquisitions.get(delta)[j]);
+                            distances[i] += templateDistances.get(delta, i, j);
                         }
                     }
                 }
@@ -710,31 +743,35 @@ public class StatisticalClassifier extends Classifier {
             }
             distances[templates[i]] = Double.NaN;
         }
-        lockTemplates(c, templates);
+        lockTemplates(session.getKey(), templateIds, currentTemplateId, templates);
     }
 
     /**
      * Implementation of the Greedy Maximum Match Scores algorithm in Li et. al. 2008
      */
-    private void gmmsSelect(Cursor c, boolean minSelect) {
+    private void gmmsSelect(InputSession session, int[] templateIds, int currentTemplateId, boolean minSelect) throws SQLException {
+        List<FeatureTensor> acquisitions = session.getTemplates().acquisitions;
+        TemplateDistances templateDistances = session.getTemplates().distances;
+        DistanceKernel distanceKernel = session.getModel().getDistanceKernel();
         // Initialize N, K, S(N×N), Choose[K]
-        int N = acquisitions.get(0).length + 1, K = EvaluationParams.templateSetSize;
+        int N = acquisitions.get(0).getRowCount() + 1, K = EvaluationParams.templateSetSize;
         int[] Choose = new int[K];
 
         double[][] S = new double[N][N];
         for (int delta = 0; delta < acquisitions.size(); delta++) {
-            if (acquisitions.get(delta)[0].length == 0) continue;   // Skip empty features (e.g. unavailable sensors)
+            FeatureTensor templates = acquisitions.get(delta);
+            if (templates.getSampleCount(0) == 0) continue;   // Skip empty features (e.g. unavailable sensors)
 
+            double[] sample = session.getCurrentSample(delta);
             for (int i = 0; i < N-1; i++) {
                 for (int j = i+1; j < N-1; j++) {
                     if (j == i) continue;
-                    S[i][j] += getDistance(acquisitions.get(delta)[i], acquisitions.get(delta)[j]);
+                    S[i][j] += templateDistances.get(delta, i, j);
                     S[j][i] = S[i][j];
                 }
 
-                if (currentData.get(delta).size() > 0) {
-                    double[][] sample = new double[currentData.get(delta).size()][currentData.get(delta).get(0).length];
-                    S[i][S.length - 1] += getDistance(acquisitions.get(delta)[i], currentData.get(delta).toArray(sample));
+                if (session.getCurrentData().get(delta).size() > 0) {
+                    S[i][S.length - 1] += getDistance(distanceKernel, templates, i, sample);
                     S[S.length - 1][i] = S[i][S.length - 1];
                 }
             }
@@ -762,22 +799,24 @@ public class StatisticalClassifier extends Classifier {
                 S[m][jStar] = 0;
             }
         }
-        lockTemplates(c, Choose);
+        lockTemplates(session.getKey(), templateIds, currentTemplateId, Choose);
     }
 
-    private void fuzzyCMeansSelect(Cursor c) {
-        List<ClusterPoint> points = new ArrayList<>(acquisitions.get(0).length+1);
+    private void fuzzyCMeansSelect(InputSession session, int[] templateIds, int currentTemplateId) throws SQLException {
+        List<FeatureTensor> acquisitions = session.getTemplates().acquisitions;
+        List<ClusterPoint> points = new ArrayList<>(acquisitions.get(0).getRowCount()+1);
         for (int delta = 0; delta < acquisitions.size(); delta++) {
-            for (int i = 0; i < acquisitions.get(delta).length; i++) {
+            FeatureTensor templates = acquisitions.get(delta);
+            for (int i = 0; i < templates.getRowCount(); i++) {
                 if (delta == 0) {
                     points.add(new ClusterPoint());
                 }
-                points.get(i).addSamples(acquisitions.get(delta)[i]);
+                points.get(i).addSamples(templates.getData(), templates.getOffset(i), templates.getSampleCount(i) * templates.getValueCount());
             }
             if (delta == 0) {
                 points.add(new ClusterPoint());
             }
-            points.get(points.size()-1).addSamples(currentData.get(delta));
+            points.get(points.size()-1).addSamples(session.getCurrentData().get(delta));
         }
 
         FuzzyKMeansClusterer<ClusterPoint> clusterer = new FuzzyKMeansClusterer<>(EvaluationParams.templateSetSize, 2, -1,
@@ -795,30 +834,33 @@ public class StatisticalClassifier extends Classifier {
                 }
             }
         }
-        lockTemplates(c, templates);
+        lockTemplates(session.getKey(), templateIds, currentTemplateId, templates);
     }
 
-    private void dendSelect(Cursor c) {
+    private void dendSelect(InputSession session, int[] templateIds, int currentTemplateId) throws SQLException {
+        List<FeatureTensor> acquisitions = session.getTemplates().acquisitions;
+        TemplateDistances templateDistances = session.getTemplates().distances;
+        DistanceKernel distanceKernel = session.getModel().getDistanceKernel();
         // Step 1: Generate the N×N dissimilarity matrix M, where entry (i, j) (i, j∈{1..N}) is the distance score between impressions i and j
-        double[][] distances = new double[acquisitions.get(0).length+1][acquisitions.get(0).length+1];
+        double[][] distances = new double[acquisitions.get(0).getRowCount()+1][acquisitions.get(0).getRowCount()+1];
         for (int delta = 0; delta < acquisitions.size(); delta++) {
-            if (acquisitions.get(delta)[0].length == 0) continue;   // Skip empty features (e.g. unavailable sensors)
+            FeatureTensor templates = acquisitions.get(delta);
+            if (templates.getSampleCount(0) == 0) continue;   // Skip empty features (e.g. unavailable sensors)
 
-            for (int i = 0; i < acquisitions.get(delta).length; i++) {
-                for (int j = i+1; j < acquisitions.get(delta).length; j++) {
-                    distances[i][j] += getDistance(acquisitions.get(delta)[i], acquisitions.get(delta)[j]);
+            double[] sample = session.getCurrentSample(delta);
+            for (int i = 0; i < templates.getRowCount(); i++) {
+                for (int j = i+1; j < templates.getRowCount(); j++) {
+                    distances[i][j] += templateDistances.get(delta, i, j);
                     distances[j][i] = distances[i][j];
                 }
 
-                double[][] sample = new double[currentData.get(delta).size()][currentData.get(delta).get(0).length];
-                distances[i][distances.length-1] += getDistance(acquisitions.get(delta)[i], currentData.get(delta).toArray(sample));
+                distances[i][distances.length-1] += getDistance(distanceKernel, templates, i, sample);
                 distances[distances.length-1][i] = distances[i][distances.length-1];
             }
         }
 
-        String[] ids = new String[acquisitions.get(0).length+1];
-        c.beforeFirst();
-        for (int i = 0; i < acquisitions.get(0).length; i++) {
+        String[] ids = new String[acquisitions.get(0).getRowCount()+1];
+        for (int i = 0; i < acquisitions.get(0).getRowCount(); i++) {
             ids[i] = String.valueOf(i);
         }
         ids[ids.length-1] = String.valueOf(ids.length-1);
@@ -847,7 +889,7 @@ public class StatisticalClassifier extends Classifier {
         for (int i = 0; i < templates.length; i++) {
             templates[i] = getDendTemplate(clusters.get(i), distances);
         }
-        lockTemplates(c, templates);
+        lockTemplates(session.getKey(), templateIds, currentTemplateId, templates);
     }
 
     private void buildClusterMap(Cluster dendrogram, List<List<Cluster>> cut, int level, List<List<Cluster>> singleItems) {
@@ -932,67 +974,42 @@ levels:             for (int j = i + 1; j < cut.size(); j++) {
         return leafs;
     }
 
-    private void lockTemplates(Cursor c, int[] templates) {
-        BiometricsDbHelper db = manager.getDb();
-        String[] values = new String[templates.length];
-        StringBuilder sb = new StringBuilder(templates.length * 2 - 1);
+    /**
+     * Keeps only the selected templates and stops further enrollment
+     * @param templateIds the IDs of the templates before the current acquisition was saved, ordered by score
+     * @param currentTemplateId the ID of the template of the current acquisition
+     * @param templates the indexes of the selected templates, where templateIds.length refers to the current acquisition
+     */
+    private void lockTemplates(TemplateKey key, int[] templateIds, int currentTemplateId, int[] templates) throws SQLException {
+        int[] selectedIds = new int[templates.length];
         for (int i = 0; i < templates.length; i++) {
-            if (sb.length() > 0) {
-                sb.append(" AND ");
-            }
-            sb.append(StatisticalClassifierContract.StatisticalClassifierTemplates._ID + " != ?");
-
-            if (c.getCount() <= templates[i]) {
-                values[i] = String.valueOf(currentTemplateID);
-                continue;
-            }
-
-            c.beforeFirst();
-            for (int j = 0; j <= templates[i]; j++) {
-                c.next();
-            }
-            try {
-                values[i] = String.valueOf(c.getInt(c.getColumnIndex(StatisticalClassifierContract.StatisticalClassifierTemplates._ID)));
-            } catch (SQLException e) {
-                throw new IllegalArgumentException("Row ID not found in Cursor data", e);
+            if (templateIds.length <= templates[i]) {
+                selectedIds[i] = currentTemplateId;
+            } else {
+                selectedIds[i] = templateIds[templates[i]];
             }
         }
-        try {
-            db.delete(StatisticalClassifierContract.StatisticalClassifierTemplates.TABLE_NAME, sb.toString(), values);
-
-            BiometricsDbHelper.ContentValues dbValues = new BiometricsDbHelper.ContentValues(2);
-            dbValues.put(StatisticalClassifierContract.StatisticalClassifierTemplateStatus.COLUMN_CONTEXT, manager.getBiometricsContext());
-            dbValues.put(StatisticalClassifierContract.StatisticalClassifierTemplateStatus.COLUMN_SCREEN_ORIENTATION, screenOrientation);
-            db.insert(StatisticalClassifierContract.StatisticalClassifierTemplateStatus.TABLE_NAME, dbValues);
-        } catch (SQLException e) {
-            Log.e(TAG, "Couldn't lock templates: " + e.getMessage());
-        }
+        store.deleteTemplatesExcept(selectedIds);
+        store.lock(key.getContext(), key.getScreenOrientation());
+        templateCache.clear();  // The templates of all other template sets have been deleted as well
+        snapshot = null;
     }
     // ---- END TEMPLATE SELECTION ----
 
-    private int saveTemplate(int dbId) {
-        BiometricsDbHelper db = manager.getDb();
-        BiometricsDbHelper.ContentValues values = new BiometricsDbHelper.ContentValues(4);
-        values.put(StatisticalClassifierContract.StatisticalClassifierTemplates.COLUMN_CONTEXT, manager.getBiometricsContext());
-        values.put(StatisticalClassifierContract.StatisticalClassifierTemplates.COLUMN_SCREEN_ORIENTATION, screenOrientation);
-        values.put(StatisticalClassifierContract.StatisticalClassifierTemplates.COLUMN_DATA_ID, dbId);
-        values.put(StatisticalClassifierContract.StatisticalClassifierTemplates.COLUMN_SCORE, score);
-        try {
-            return db.insert(StatisticalClassifierContract.StatisticalClassifierTemplates.TABLE_NAME, values);
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-        return -1;
+    private int saveTemplate(InputSession session, int dbId) throws SQLException {
+        TemplateKey key = session.getKey();
+        return store.insertTemplate(key.getContext(), key.getScreenOrientation(), dbId, session.getScore());
     }
 
     @Override
-    public boolean clearData() {
-        BiometricsDbHelper db = manager.getDb();
+    public synchronized boolean clearData() {
+        TemplateStore store = getStore();
+        templateCache.clear();
+        snapshot = null;
         try {
-            db.delete(StatisticalClassifierContract.StatisticalClassifierData.TABLE_NAME, null, null);
+            store.clearData();
             if (EvaluationParams.enableTemplateSelection) {
-                db.delete(StatisticalClassifierContract.StatisticalClassifierTemplates.TABLE_NAME, null, null);
-                db.delete(StatisticalClassifierContract.StatisticalClassifierTemplateStatus.TABLE_NAME, null, null);
+                store.clearTemplates();
             }
         } catch (SQLException e) {
             return false;
@@ -1000,16 +1017,37 @@ levels:             for (int j = i + 1; j < cut.size(); j++) {
         return true;
     }
 
-    private class SquaredEuclideanDistance implements DistanceMeasure {
+    /**
+     * Identifies the template set of a context in a screen orientation
+     */
+    static final class TemplateKey {
+        private final long context;
+        private final int screenOrientation;
+
+        TemplateKey(long context, int screenOrientation) {
+            this.context = context;
+            this.screenOrientation = screenOrientation;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof TemplateKey)) return false;
+            TemplateKey other = (TemplateKey) o;
+            return context == other.context && screenOrientation == other.screenOrientation;
+        }
+
         @Override
-        public double compute(double[] k1, double[] k2) throws DimensionMismatchException {
-            MathArrays.checkEqualLength(k1, k2);
-            double sum = 0;
-            for (int i = 0; i < k1.length; i++) {
-                final double dp = k1[i] - k2[i];
-                sum += dp * dp;
-            }
-            return sum;
+        public int hashCode() {
+            return 31 * Long.hashCode(context) + screenOrientation;
+        }
+
+        long getContext() {
+            return context;
+        }
+
+        int getScreenOrientation() {
+            return screenOrientation;
         }
     }
 }
@@ -0,0 +1,165 @@
+package at.jku.fim.phonykeyboard.latin.biometrics.classifiers;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import at.jku.fim.phonykeyboard.evaluation.EvaluationParams;
+import at.jku.fim.phonykeyboard.latin.biometrics.data.FeatureTensor;
+
+/**
+ * Decoded template sets of the most recently used contexts and screen orientations, so that StatisticalClassifier only
+ * reads a template set from the database again after it has been changed. The least recently used template set is
+ * evicted when the cache is full.
+ */
+public final class TemplateCache {
+    private final int capacity;
+    private long hits, misses;
+    private final LruMap entries;
+
+    TemplateCache(int capacity) {
+        this.capacity = capacity;
+        entries = new LruMap(capacity);
+    }
+
+    /**
+     * @return the template set, or null if it isn't cached or was loaded with different EvaluationParams
+     */
+    synchronized Entry get(StatisticalClassifier.TemplateKey key) {
+        Entry entry = entries.get(key);
+        if (entry != null && !entry.isCurrent()) {
+            entries.remove(key);
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return entry;
+    }
+
+    /**
+     * Like get(), but without counting a hit or miss and without changing the eviction order
+     */
+    synchronized Entry peek(StatisticalClassifier.TemplateKey key) {
+        return entries.get(key);
+    }
+
+    synchronized void put(StatisticalClassifier.TemplateKey key, Entry entry) {
+        entries.put(key, entry);
+    }
+
+    synchronized void remove(StatisticalClassifier.TemplateKey key) {
+        entries.remove(key);
+    }
+
+    synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * @return a copy of the template sets loaded with the current EvaluationParams, from the least to the most recently
+     * used one
+     */
+    synchronized Map<StatisticalClassifier.TemplateKey, Entry> getEntries() {
+        Map<StatisticalClassifier.TemplateKey, Entry> current = new LinkedHashMap<>(entries.size() * 2);
+        for (Map.Entry<StatisticalClassifier.TemplateKey, Entry> entry : entries.entrySet()) {
+            if (entry.getValue().isCurrent()) {
+                current.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return current;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    public synchronized long getEvictionCount() {
+        return entries.evictions;
+    }
+
+    /**
+     * Template sets in access order, which removes the least recently used one when the capacity is exceeded
+     */
+    private static final class LruMap extends LinkedHashMap<StatisticalClassifier.TemplateKey, TemplateCache.Entry> {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+        private long evictions;
+
+        LruMap(int capacity) {
+            super(capacity, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<StatisticalClassifier.TemplateKey, TemplateCache.Entry> eldest) {
+            if (size() > capacity) {
+                evictions++;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * A template set as read from the database, which is kept up to date when acquisitions are enrolled to it
+     */
+    static final class Entry {
+        final List<FeatureTensor> acquisitions;
+        final TemplateDistances distances;
+        final boolean templatesLocked;
+        final int usedFeatures;     // Number of features read, see StatisticalClassifier.getUsedFeatureCount()
+        private final boolean templateSelection;
+        private TemplateModel model;    // Created from acquisitions when needed
+
+        Entry(List<FeatureTensor> acquisitions, TemplateDistances distances, boolean templatesLocked, int usedFeatures) {
+            this.acquisitions = acquisitions;
+            this.distances = distances;
+            this.templatesLocked = templatesLocked;
+            this.usedFeatures = usedFeatures;
+            this.templateSelection = EvaluationParams.enableTemplateSelection;
+        }
+
+        /**
+         * @return the model of this template set, or null if it has to be created
+         */
+        TemplateModel getModel() {
+            if (model != null && model.getClassificationFunction() != EvaluationParams.classificationFunction) {
+                model = null;
+            }
+            return model;
+        }
+
+        void setModel(TemplateModel model) {
+            this.model = model;
+        }
+
+        /**
+         * @return EvaluationParams.enableTemplateSelection at the time the template set was read
+         */
+        boolean isTemplateSelection() {
+            return templateSelection;
+        }
+
+        private boolean isCurrent() {
+            return templateSelection == EvaluationParams.enableTemplateSelection &&
+                    distances.getDistanceFunction() == EvaluationParams.distanceFunction &&
+                    usedFeatures == StatisticalClassifier.getUsedFeatureCount(acquisitions.size());
+        }
+    }
+}
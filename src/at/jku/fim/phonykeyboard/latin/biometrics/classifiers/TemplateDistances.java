@@ -0,0 +1,177 @@
+package at.jku.fim.phonykeyboard.latin.biometrics.classifiers;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Pairwise distances D(.,.) between the enrollment acquisitions of every feature. They are calculated once per
+ * template set and shared by the variability metrics, the authentication metrics and the template selection functions.
+ *
+ * Rows are added one at a time, which also maintains the nearest, farthest and summed distance of each row. This way a
+ * new enrollment acquisition only needs its E distances to the existing rows, and all variability metrics can be
+ * derived from the maintained values in O(E).
+ */
+class TemplateDistances {
+    private static final int NOT_CALCULATED = -2;
+
+    private final int distanceFunction;
+    private int rows;
+    private int capacity;
+    private final double[][] distances;   // feature<[e * capacity + i]>
+    private final double[][] nearest;     // feature<[e]>, MIN(D[f(e), f(i)])
+    private final double[][] farthest;    // feature<[e]>, MAX(D[f(e), f(i)])
+    private final double[][] sums;        // feature<[e]>, SUM(D[f(e), f(i)]), summed in the order of i
+    private final int[] templateDynamics; // Index tu of each feature, see StatisticalClassifier.findTemplateDynamics()
+
+    TemplateDistances(int features, int capacity, int distanceFunction) {
+        this.distanceFunction = distanceFunction;
+        this.capacity = Math.max(capacity, 1);
+        distances = new double[features][this.capacity * this.capacity];
+        nearest = new double[features][this.capacity];
+        farthest = new double[features][this.capacity];
+        sums = new double[features][this.capacity];
+        templateDynamics = new int[features];
+        Arrays.fill(templateDynamics, NOT_CALCULATED);
+    }
+
+    /**
+     * @return the EvaluationParams.distanceFunction these distances were calculated with
+     */
+    int getDistanceFunction() {
+        return distanceFunction;
+    }
+
+    int getRowCount() {
+        return rows;
+    }
+
+    /**
+     * Adds a row for a new enrollment acquisition. Its distances to all previous rows have to be set afterwards, in
+     * ascending order of the previous rows.
+     * @return the index of the new row
+     */
+    int addRow() {
+        if (rows == capacity) {
+            grow(capacity * 2);
+        }
+        for (int delta = 0; delta < distances.length; delta++) {
+            nearest[delta][rows] = Double.POSITIVE_INFINITY;
+            farthest[delta][rows] = Double.NEGATIVE_INFINITY;
+            sums[delta][rows] = 0;
+        }
+        Arrays.fill(templateDynamics, NOT_CALCULATED);
+        return rows++;
+    }
+
+    double get(int delta, int e, int i) {
+        return distances[delta][e * capacity + i];
+    }
+
+    void set(int delta, int e, int i, double distance) {
+        distances[delta][e * capacity + i] = distance;
+        distances[delta][i * capacity + e] = distance;
+        update(delta, e, distance);
+        update(delta, i, distance);
+    }
+
+    double getNearest(int delta, int e) {
+        return nearest[delta][e];
+    }
+
+    double getFarthest(int delta, int e) {
+        return farthest[delta][e];
+    }
+
+    double getSum(int delta, int e) {
+        return sums[delta][e];
+    }
+
+    boolean hasTemplateDynamics(int delta) {
+        return templateDynamics[delta] != NOT_CALCULATED;
+    }
+
+    int getTemplateDynamics(int delta) {
+        return templateDynamics[delta];
+    }
+
+    void setTemplateDynamics(int delta, int tu) {
+        templateDynamics[delta] = tu;
+    }
+
+    /**
+     * @return the number of bytes written by write()
+     */
+    int getSerializedSize() {
+        return 3 * 4 + templateDynamics.length * 4 + distances.length * (rows * rows + 3 * rows) * 8;
+    }
+
+    /**
+     * Writes the distances of all rows, so that read() restores them exactly
+     */
+    void write(ByteBuffer buffer) {
+        buffer.putInt(distanceFunction);
+        buffer.putInt(distances.length);
+        buffer.putInt(rows);
+        for (int tu : templateDynamics) {
+            buffer.putInt(tu);
+        }
+        for (int delta = 0; delta < distances.length; delta++) {
+            for (int e = 0; e < rows; e++) {
+                for (int i = 0; i < rows; i++) {
+                    buffer.putDouble(distances[delta][e * capacity + i]);
+                }
+            }
+            putDoubles(buffer, nearest[delta], rows);
+            putDoubles(buffer, farthest[delta], rows);
+            putDoubles(buffer, sums[delta], rows);
+        }
+    }
+
+    static TemplateDistances read(ByteBuffer buffer) {
+        int distanceFunction = buffer.getInt();
+        int features = buffer.getInt();
+        int rows = buffer.getInt();
+        TemplateDistances result = new TemplateDistances(features, rows, distanceFunction);
+        result.rows = rows;
+        for (int delta = 0; delta < features; delta++) {
+            result.templateDynamics[delta] = buffer.getInt();
+        }
+        for (int delta = 0; delta < features; delta++) {
+            getDoubles(buffer, result.distances[delta], rows * rows);    // Capacity is rows, so rows are stored one after another
+            getDoubles(buffer, result.nearest[delta], rows);
+            getDoubles(buffer, result.farthest[delta], rows);
+            getDoubles(buffer, result.sums[delta], rows);
+        }
+        return result;
+    }
+
+    private static void putDoubles(ByteBuffer buffer, double[] values, int length) {
+        buffer.asDoubleBuffer().put(values, 0, length);
+        buffer.position(buffer.position() + length * 8);
+    }
+
+    private static void getDoubles(ByteBuffer buffer, double[] values, int length) {
+        buffer.asDoubleBuffer().get(values, 0, length);
+        buffer.position(buffer.position() + length * 8);
+    }
+
+    private void update(int delta, int e, double distance) {
+        nearest[delta][e] = Math.min(nearest[delta][e], distance);
+        farthest[delta][e] = Math.max(farthest[delta][e], distance);
+        sums[delta][e] += distance;
+    }
+
+    private void grow(int newCapacity) {
+        for (int delta = 0; delta < distances.length; delta++) {
+            double[] grown = new double[newCapacity * newCapacity];
+            for (int e = 0; e < rows; e++) {
+                System.arraycopy(distances[delta], e * capacity, grown, e * newCapacity, rows);
+            }
+            distances[delta] = grown;
+            nearest[delta] = Arrays.copyOf(nearest[delta], newCapacity);
+            farthest[delta] = Arrays.copyOf(farthest[delta], newCapacity);
+            sums[delta] = Arrays.copyOf(sums[delta], newCapacity);
+        }
+        capacity = newCapacity;
+    }
+}
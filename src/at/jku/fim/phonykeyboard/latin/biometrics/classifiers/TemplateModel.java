@@ -0,0 +1,120 @@
+package at.jku.fim.phonykeyboard.latin.biometrics.classifiers;
+
+import java.util.Arrays;
+import java.util.List;
+
+import at.jku.fim.phonykeyboard.evaluation.EvaluationParams;
+import at.jku.fim.phonykeyboard.latin.biometrics.data.FeatureTensor;
+
+/**
+ * The enrolled templates of a user in one screen orientation, together with their variability, as loaded by
+ * StatisticalClassifier.loadModel(). A model never changes after it has been created, so it can be shared by any number
+ * of InputSessions scoring inputs in different threads. Enrolling further acquisitions results in a new model.
+ */
+public final class TemplateModel {
+    private final FeatureTensor[] acquisitions;   // feature<[row][sample][values]>, read-only snapshots
+    private final double[] variability; // Variability scores of each feature of the enrollment templates
+    private final int[] templateDynamics;   // Index tu of each feature
+    private final int[] featureOrder;   // Feature indices ordered by the number of values per sample
+    private final DistanceKernel distanceKernel;
+    private final int classificationFunction;
+    private final boolean templatesLocked;
+    private final int usedFeatures;
+
+    TemplateModel(List<FeatureTensor> acquisitions, double[] variability, int[] templateDynamics, DistanceKernel distanceKernel, int classificationFunction, boolean templatesLocked, int usedFeatures) {
+        this.acquisitions = new FeatureTensor[acquisitions.size()];
+        for (int delta = 0; delta < this.acquisitions.length; delta++) {
+            this.acquisitions[delta] = acquisitions.get(delta).snapshot();
+        }
+        this.variability = variability;
+        this.templateDynamics = templateDynamics;
+        this.featureOrder = sortByValueCount(this.acquisitions);
+        this.distanceKernel = distanceKernel;
+        this.classificationFunction = classificationFunction;
+        this.templatesLocked = templatesLocked;
+        this.usedFeatures = usedFeatures;
+    }
+
+    /**
+     * @return a new session for scoring an input against this model
+     */
+    public InputSession newSession() {
+        return new InputSession(this);
+    }
+
+    public int getFeatureCount() {
+        return acquisitions.length;
+    }
+
+    /**
+     * @return the number of enrollment acquisitions E
+     */
+    public int getTemplateCount() {
+        return acquisitions.length > 0 ? acquisitions[0].getRowCount() : 0;
+    }
+
+    /**
+     * @return true if the template set is large enough for authentication
+     */
+    public boolean isComplete() {
+        return templatesLocked || getTemplateCount() >= EvaluationParams.acquisitionSetSize;
+    }
+
+    /**
+     * @return a copy of the variability scores of each feature
+     */
+    public double[] getVariability() {
+        return variability.clone();
+    }
+
+    /**
+     * @return false if the feature isn't read from the store, so its samples mustn't be captured either
+     */
+    boolean isUsed(int delta) {
+        return delta < usedFeatures;
+    }
+
+    FeatureTensor getTemplates(int delta) {
+        return acquisitions[delta];
+    }
+
+    double getVariability(int delta) {
+        return variability[delta];
+    }
+
+    /**
+     * @return tu, or -1 if the feature is empty
+     */
+    int getTemplateDynamics(int delta) {
+        return templateDynamics[delta];
+    }
+
+    int[] getFeatureOrder() {
+        return featureOrder;
+    }
+
+    DistanceKernel getDistanceKernel() {
+        return distanceKernel;
+    }
+
+    /**
+     * @return EvaluationParams.classificationFunction at the time the variability was calculated
+     */
+    int getClassificationFunction() {
+        return classificationFunction;
+    }
+
+    private static int[] sortByValueCount(FeatureTensor[] acquisitions) {
+        Integer[] order = new Integer[acquisitions.length];
+        for (int delta = 0; delta < order.length; delta++) {
+            order[delta] = delta;
+        }
+        Arrays.sort(order, (f1, f2) -> Integer.compare(acquisitions[f1].getValueCount(), acquisitions[f2].getValueCount()));
+
+        int[] result = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            result[i] = order[i];
+        }
+        return result;
+    }
+}
@@ -0,0 +1,221 @@
+package at.jku.fim.phonykeyboard.latin.biometrics.classifiers;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import at.jku.fim.phonykeyboard.evaluation.EvaluationParams;
+import at.jku.fim.phonykeyboard.latin.biometrics.data.FeatureTensor;
+
+/**
+ * Binary file of decoded template sets, which are restored by mapping the file instead of reading and decoding them
+ * from the TemplateStore. The store stays the source of truth: a snapshot is only used if it was written for the same
+ * contract version, store and generation of the store (see TemplateStore.getGeneration()).
+ *
+ * The file starts with a little-endian header (magic, format version, contract version, store ID, generation, number
+ * of template sets), followed by an index of the offset of each template set and the template sets themselves. A
+ * template set consists of its status, the number of features read, the variability and template dynamics of its
+ * model, a FeatureTensor of each feature and its TemplateDistances.
+ */
+final class TemplateSnapshot {
+    private static final int MAGIC = 0x534C5054;    // "TPLS"
+    private static final int FORMAT_VERSION = 3;
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 8 + 8 + 4;
+    private static final int INDEX_ENTRY_SIZE = 8 + 4 + 4;
+
+    private final MappedByteBuffer buffer;
+    private final Map<StatisticalClassifier.TemplateKey, Integer> offsets;
+
+    private TemplateSnapshot(MappedByteBuffer buffer, Map<StatisticalClassifier.TemplateKey, Integer> offsets) {
+        this.buffer = buffer;
+        this.offsets = offsets;
+    }
+
+    /**
+     * Maps a snapshot file
+     * @return the snapshot, or null if the file doesn't exist or is outdated
+     */
+    static TemplateSnapshot open(File file, int contractVersion, long storeId, long generation) throws IOException {
+        if (!file.exists()) return null;
+
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) return null;
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());    // Stays valid after closing the channel
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION || buffer.getInt() != contractVersion
+                || buffer.getLong() != storeId || buffer.getLong() != generation) {
+            return null;
+        }
+
+        int count = buffer.getInt();
+        Map<StatisticalClassifier.TemplateKey, Integer> offsets = new HashMap<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            long context = buffer.getLong();
+            int screenOrientation = buffer.getInt();
+            offsets.put(new StatisticalClassifier.TemplateKey(context, screenOrientation), buffer.getInt());
+        }
+        return new TemplateSnapshot(buffer, offsets);
+    }
+
+    /**
+     * Writes the template sets to a new snapshot file, which replaces the file only after it has been written completely
+     * @param entries the template sets, all of which must have a model
+     */
+    static void write(File file, int contractVersion, long storeId, long generation, Map<StatisticalClassifier.TemplateKey, TemplateCache.Entry> entries) throws IOException {
+        int size = HEADER_SIZE + entries.size() * INDEX_ENTRY_SIZE;
+        List<Integer> offsets = new ArrayList<>(entries.size());
+        for (TemplateCache.Entry entry : entries.values()) {
+            offsets.add(size);
+            size += getSerializedSize(entry);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC);
+        buffer.putInt(FORMAT_VERSION);
+        buffer.putInt(contractVersion);
+        buffer.putLong(storeId);
+        buffer.putLong(generation);
+        buffer.putInt(entries.size());
+        int i = 0;
+        for (StatisticalClassifier.TemplateKey key : entries.keySet()) {
+            buffer.putLong(key.getContext());
+            buffer.putInt(key.getScreenOrientation());
+            buffer.putInt(offsets.get(i++));
+        }
+        for (TemplateCache.Entry entry : entries.values()) {
+            write(buffer, entry);
+        }
+        buffer.flip();
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return the template sets that haven't been removed yet
+     */
+    Iterable<StatisticalClassifier.TemplateKey> keys() {
+        return offsets.keySet();
+    }
+
+    /**
+     * Like read(), but the template set can't be read again afterwards
+     */
+    TemplateCache.Entry remove(StatisticalClassifier.TemplateKey key) {
+        TemplateCache.Entry entry = read(key);
+        offsets.remove(key);
+        return entry;
+    }
+
+    /**
+     * Copies a template set out of the mapped file. Its model is restored as well, unless it was created with another
+     * EvaluationParams.classificationFunction.
+     * @return the template set, or null if it isn't in the snapshot or was read with other EvaluationParams
+     */
+    TemplateCache.Entry read(StatisticalClassifier.TemplateKey key) {
+        Integer offset = offsets.get(key);
+        if (offset == null) return null;
+
+        ByteBuffer in = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        in.position(offset);
+        boolean templatesLocked = in.get() != 0;
+        boolean templateSelection = in.get() != 0;
+        int classificationFunction = in.getInt();
+        int usedFeatures = in.getInt();
+        int features = in.getInt();
+        double[] variability = new double[features];
+        getDoubles(in, variability, features);
+        int[] templateDynamics = new int[features];
+        for (int delta = 0; delta < features; delta++) {
+            templateDynamics[delta] = in.getInt();
+        }
+
+        List<FeatureTensor> acquisitions = new ArrayList<>(features);
+        for (int delta = 0; delta < features; delta++) {
+            int rows = in.getInt();
+            int valueCount = in.getInt();
+            int length = in.getInt();
+            FeatureTensor tensor = new FeatureTensor(rows, length);
+            for (int row = 0; row < rows; row++) {
+                tensor.appendRow(in.getInt(), valueCount);
+            }
+            getDoubles(in, tensor.getData(), length);   // The rows are stored one after another, like in the tensor
+            acquisitions.add(tensor);
+        }
+        TemplateDistances distances = TemplateDistances.read(in);
+        if (templateSelection != EvaluationParams.enableTemplateSelection || distances.getDistanceFunction() != EvaluationParams.distanceFunction
+                || usedFeatures != StatisticalClassifier.getUsedFeatureCount(features)) {
+            return null;
+        }
+
+        TemplateCache.Entry entry = new TemplateCache.Entry(acquisitions, distances, templatesLocked, usedFeatures);
+        if (classificationFunction == EvaluationParams.classificationFunction) {
+            entry.setModel(new TemplateModel(acquisitions, variability, templateDynamics, DistanceKernel.forFunction(distances.getDistanceFunction()), classificationFunction, templatesLocked, usedFeatures));
+        }
+        return entry;
+    }
+
+    private static int getSerializedSize(TemplateCache.Entry entry) {
+        int features = entry.acquisitions.size();
+        int size = 1 + 1 + 4 + 4 + 4 + features * (8 + 4);
+        for (FeatureTensor tensor : entry.acquisitions) {
+            size += 3 * 4 + tensor.getRowCount() * 4 + getDataLength(tensor) * 8;
+        }
+        return size + entry.distances.getSerializedSize();
+    }
+
+    private static void write(ByteBuffer out, TemplateCache.Entry entry) {
+        TemplateModel model = entry.getModel();
+        out.put((byte)(entry.templatesLocked ? 1 : 0));
+        out.put((byte)(entry.isTemplateSelection() ? 1 : 0));
+        out.putInt(model.getClassificationFunction());
+        out.putInt(entry.usedFeatures);
+        out.putInt(entry.acquisitions.size());
+        for (int delta = 0; delta < entry.acquisitions.size(); delta++) {
+            out.putDouble(model.getVariability(delta));
+        }
+        for (int delta = 0; delta < entry.acquisitions.size(); delta++) {
+            out.putInt(model.getTemplateDynamics(delta));
+        }
+
+        for (FeatureTensor tensor : entry.acquisitions) {
+            int length = getDataLength(tensor);
+            out.putInt(tensor.getRowCount());
+            out.putInt(tensor.getValueCount());
+            out.putInt(length);
+            for (int row = 0; row < tensor.getRowCount(); row++) {
+                out.putInt(tensor.getSampleCount(row));
+            }
+            out.asDoubleBuffer().put(tensor.getData(), 0, length);
+            out.position(out.position() + length * 8);
+        }
+        entry.distances.write(out);
+    }
+
+    private static int getDataLength(FeatureTensor tensor) {
+        int rows = tensor.getRowCount();
+        return rows == 0 ? 0 : tensor.getOffset(rows - 1) + tensor.getSampleCount(rows - 1) * tensor.getValueCount();
+    }
+
+    private static void getDoubles(ByteBuffer buffer, double[] values, int length) {
+        buffer.asDoubleBuffer().get(values, 0, length);
+        buffer.position(buffer.position() + length * 8);
+    }
+}
@@ -0,0 +1,51 @@
+package at.jku.fim.phonykeyboard.latin.biometrics.classifiers;
+
+/**
+ * Result of StatisticalClassifier.getDecision(), which compares the score of an input against a fixed threshold and
+ * stops calculating it as soon as the input is guaranteed to be rejected.
+ */
+public class ThresholdDecision {
+    private final boolean accepted;
+    private final double score;
+    private final int skippedFeatures;
+    private final int skippedTemplates;
+
+    public ThresholdDecision(boolean accepted, double score, int skippedFeatures, int skippedTemplates) {
+        this.accepted = accepted;
+        this.score = score;
+        this.skippedFeatures = skippedFeatures;
+        this.skippedTemplates = skippedTemplates;
+    }
+
+    /**
+     * @return true if the score is below the threshold
+     */
+    public boolean isAccepted() {
+        return accepted;
+    }
+
+    /**
+     * @return the score, or Double.NaN if the input was rejected before the score was completely calculated
+     */
+    public double getScore() {
+        return score;
+    }
+
+    public boolean isRejectedEarly() {
+        return skippedFeatures > 0 || skippedTemplates > 0;
+    }
+
+    /**
+     * @return the number of features that weren't compared at all
+     */
+    public int getSkippedFeatures() {
+        return skippedFeatures;
+    }
+
+    /**
+     * @return the number of templates that weren't compared, summed over all features
+     */
+    public int getSkippedTemplates() {
+        return skippedTemplates;
+    }
+}
@@ -0,0 +1,66 @@
+package at.jku.fim.phonykeyboard.latin.biometrics.data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import at.jku.fim.phonykeyboard.latin.utils.Log;
+
+/**
+ * Collects the data rows read by a TemplateStore into one FeatureTensor per feature. Features whose first row has no
+ * samples are skipped (e.g. unavailable sensors), so all of their rows stay empty.
+ */
+final class AcquisitionSetBuilder {
+    private static final String TAG = "AcquisitionSetBuilder";
+
+    private final List<FeatureTensor> acquisitions;  // feature<[row][sample][values]>
+    private final boolean[] emptyFeatures;
+    private int rows;
+
+    AcquisitionSetBuilder(int features, int rowCapacity) {
+        acquisitions = new ArrayList<>(features);
+        emptyFeatures = new boolean[features];
+        for (int i = 0; i < features; i++) {
+            acquisitions.add(new FeatureTensor(rowCapacity));
+        }
+    }
+
+    /**
+     * Adds the samples of a feature to the current row
+     * @return the offset in getData() at which the values have to be written, or -1 if the feature is skipped
+     */
+    int append(int feature, int samples, int values) {
+        if (emptyFeatures[feature]) return -1;
+
+        FeatureTensor tensor = acquisitions.get(feature);
+        if (samples == 0) {
+            if (tensor.getRowCount() == 0) {
+                emptyFeatures[feature] = true;
+            } else {
+                Log.e(TAG, String.format("BUG: Template %d has no data for column %d", tensor.getRowCount(), feature));
+            }
+            return -1;
+        }
+        return tensor.appendRow(samples, values);
+    }
+
+    double[] getData(int feature) {
+        return acquisitions.get(feature).getData();
+    }
+
+    /**
+     * Finishes the current row, after all of its features have been appended
+     */
+    void endRow() {
+        rows++;
+    }
+
+    List<FeatureTensor> build() {
+        // Rows without data stay in the tensor, but contain no samples
+        for (FeatureTensor tensor : acquisitions) {
+            while (tensor.getRowCount() < rows) {
+                tensor.appendRow(0, 0);
+            }
+        }
+        return acquisitions;
+    }
+}
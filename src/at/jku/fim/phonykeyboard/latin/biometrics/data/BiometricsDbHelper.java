@@ -3,31 +3,56 @@ package at.jku.fim.phonykeyboard.latin.biometrics.data;
 
 import java.io.File;
 import java.sql.*;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.regex.Pattern;
 
 public class BiometricsDbHelper {
     public static final int DATABASE_VERSION = 1;
     public static final String DATABASE_NAME = "biometrics.db";
     private static final Pattern limitPattern = Pattern.compile("\\s*\\d+\\s*(,\\s*\\d+\\s*)?");
+    private static final long MMAP_SIZE = 256L * 1024 * 1024; // Bytes of the file-backed database mapped into memory
+    private static final int CACHE_SIZE = -64 * 1024;   // Page cache of 64 MiB, negative values are in KiB
+    private static final int BUSY_TIMEOUT = 5000;       // ms to wait for locks held by other connections
+    private static final int STATEMENT_CACHE_SIZE = 32;
+
+    public enum StorageMode {
+        /** Nothing survives the process, the default for evaluations **/
+        MEMORY,
+        /** Stored in a file with write-ahead logging, so that enrolled templates survive restarts **/
+        FILE
+    }
 
     private Connection connection;
     private List<Contract> contracts;
     private boolean wasCreated;
+    private final StatementCache statements = new StatementCache();
 
     public BiometricsDbHelper(Contract contract) {
+        this(contract, StorageMode.MEMORY, DATABASE_NAME);
+    }
+
+    /**
+     * @param fileName the database file, only used for StorageMode.FILE
+     */
+    public BiometricsDbHelper(Contract contract, StorageMode mode, String fileName) {
         this.contracts = new LinkedList<>();
         if (contract != null) {
             this.contracts.add(contract);
         }
 
-        File dbFile = new File(DATABASE_NAME);
-        boolean exists = dbFile.exists();
+        boolean exists = mode == StorageMode.FILE && new File(fileName).exists();
         try {
-            //connection = DriverManager.getConnection("jdbc:sqlite:" + DATABASE_NAME);
-            connection = DriverManager.getConnection("jdbc:sqlite::memory:");
+            if (mode == StorageMode.FILE) {
+                connection = DriverManager.getConnection("jdbc:sqlite:" + fileName);
+                onConfigure(connection);
+            } else {
+                connection = DriverManager.getConnection("jdbc:sqlite::memory:");
+            }
             if (!exists) {
                 onCreate(connection);
             }
@@ -37,9 +62,19 @@ public class BiometricsDbHelper {
         }
     }
 
+    public void close() {
+        try {
+            closeStatements();
+            connection.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
     @Override
     public void finalize() {
         try {
+            closeStatements();
             connection.close();
             super.finalize();
         } catch (Throwable e) {
@@ -47,6 +82,20 @@ public class BiometricsDbHelper {
         }
     }
 
+    /**
+     * Configures a file-backed database before it is created or opened. WAL lets readers proceed while templates are
+     * written, and with WAL synchronous=NORMAL only risks losing the last transactions on power loss, not corruption.
+     */
+    public void onConfigure(Connection db) throws SQLException {
+        try (Statement statement = db.createStatement()) {
+            statement.execute("PRAGMA journal_mode = WAL");
+            statement.execute("PRAGMA synchronous = NORMAL");
+            statement.execute("PRAGMA mmap_size = " + MMAP_SIZE);
+            statement.execute("PRAGMA cache_size = " + CACHE_SIZE);
+            statement.execute("PRAGMA busy_timeout = " + BUSY_TIMEOUT);
+        }
+    }
+
     public void onCreate(Connection db) throws SQLException {
         if (!db.isValid(0)) {
             throw new IllegalArgumentException("DB not opened");
@@ -76,14 +125,29 @@ public class BiometricsDbHelper {
         contract.onCreate(db);
     }
 
+    /**
+     * Upgrades the tables of a contract and records its new version in a single transaction, so a failed upgrade keeps
+     * the old version and is tried again the next time the database is opened
+     */
     private void upgradeContractTables(Connection db, Contract contract, int oldVersion, ContentValues values) throws SQLException {
         if (values == null) {
             values = new ContentValues(2);
         }
         values.put(BiometricsContract.ContractVersions.COLUMN_CONTRACT, contract.getClass().getSimpleName());
         values.put(BiometricsContract.ContractVersions.COLUMN_VERSION, contract.getVersion());
-        update(BiometricsContract.ContractVersions.TABLE_NAME, values, BiometricsContract.ContractVersions.COLUMN_CONTRACT + " = ?", new String[] { contract.getClass().getSimpleName() });
-        contract.onUpgrade(db, oldVersion, contract.getVersion());
+
+        boolean autoCommit = db.getAutoCommit();
+        db.setAutoCommit(false);
+        try {
+            contract.onUpgrade(db, oldVersion, contract.getVersion());
+            update(BiometricsContract.ContractVersions.TABLE_NAME, values, BiometricsContract.ContractVersions.COLUMN_CONTRACT + " = ?", new String[] { contract.getClass().getSimpleName() });
+            db.commit();
+        } catch (SQLException | RuntimeException e) {
+            db.rollback();
+            throw e;
+        } finally {
+            db.setAutoCommit(autoCommit);
+        }
     }
 
     public void onUpgrade(Connection db, int oldVersion, int newVersion) {
@@ -161,17 +225,52 @@ public class BiometricsDbHelper {
         contracts.remove(contract);
     }
 
-    public Cursor query(boolean distinct, String table, String[] columns, String selection, String[] selectionArgs, String groupBy, String having, String orderBy, String limit) throws SQLException {
-        String query = buildQueryString(distinct, table, columns, selection, groupBy, having, orderBy, limit);
-        try (PreparedStatement statement = connection.prepareStatement(query)) {
-            for (int i = 0; i < selectionArgs.length; i++) {
-                statement.setObject(i + 1, selectionArgs[i]);
-            }
-            ResultSet result = statement.executeQuery();
-            return new Cursor(result);
+    /**
+     * Starts a transaction, so that all following statements are written with a single commit() or discarded with
+     * rollback(). Batches can't be nested.
+     */
+    public void beginBatch() throws SQLException {
+        if (!connection.getAutoCommit()) {
+            throw new IllegalStateException("Batch already started");
+        }
+        connection.setAutoCommit(false);
+    }
+
+    public void commit() throws SQLException {
+        try {
+            connection.commit();
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    public void rollback() throws SQLException {
+        try {
+            connection.rollback();
+        } finally {
+            connection.setAutoCommit(true);
         }
     }
 
+    public Cursor query(boolean distinct, String table, String[] columns, String selection, String[] selectionArgs, String groupBy, String having, String orderBy, String limit) throws SQLException {
+        return prepareQuery(distinct, table, columns, selection, groupBy, having, orderBy, limit).query((Object[])selectionArgs);
+    }
+
+    /**
+     * Builds the SQL of a query once, for queries that are executed repeatedly with different arguments
+     */
+    public PreparedQuery prepareQuery(boolean distinct, String table, String[] columns, String selection, String groupBy, String having, String orderBy, String limit) {
+        return new PreparedQuery(buildQueryString(distinct, table, columns, selection, groupBy, having, orderBy, limit));
+    }
+
+    /**
+     * Builds the SQL of an insert once, for inserts that are executed repeatedly with different values
+     * @param columns the columns whose values are inserted, all other columns are NULL
+     */
+    public PreparedInsert prepareInsert(String table, String... columns) {
+        return new PreparedInsert(buildInsertString(table, columns), columns);
+    }
+
     private static String buildQueryString(boolean distinct, String table, String[] columns, String selection, String groupBy, String having, String orderBy, String limit) {
         if ((groupBy == null || groupBy.isEmpty()) && having != null && !having.isEmpty()) {
             throw new IllegalArgumentException(
@@ -222,43 +321,43 @@ public class BiometricsDbHelper {
     }
 
     public int insert(String table, ContentValues initialValues) throws SQLException {
+        String[] columns = initialValues != null ? initialValues.keySet().toArray(new String[initialValues.size()]) : new String[0];
+        PreparedStatement statement = prepare(buildInsertString(table, columns));
+        int i = 1;
+        for (String column : columns) {
+            statement.setObject(i++, initialValues.get(column));
+        }
+        return executeInsert(statement);
+    }
+
+    private static String buildInsertString(String table, String[] columns) {
         StringBuilder sql = new StringBuilder();
         sql.append("INSERT");
         sql.append(" INTO ");
         sql.append(table);
         sql.append('(');
 
-        Object[] bindArgs;
-        int size = (initialValues != null && initialValues.size() > 0)
-                ? initialValues.size() : 0;
-        if (size > 0) {
-            bindArgs = new Object[size];
-            int i = 0;
-            for (String colName : initialValues.keySet()) {
+        if (columns.length > 0) {
+            for (int i = 0; i < columns.length; i++) {
                 sql.append((i > 0) ? "," : "");
-                sql.append(colName);
-                bindArgs[i++] = initialValues.get(colName);
+                sql.append(columns[i]);
             }
             sql.append(')');
             sql.append(" VALUES (");
-            for (i = 0; i < size; i++) {
+            for (int i = 0; i < columns.length; i++) {
                 sql.append((i > 0) ? ",?" : "?");
             }
         } else {
             sql.append(") VALUES (NULL");
         }
         sql.append(')');
+        return sql.toString();
+    }
 
-        PreparedStatement statement = connection.prepareStatement(sql.toString());
-        int i = 1;
-        for (Object value : initialValues.values()) {
-            statement.setObject(i++, value);
-        }
-        try {
-            statement.execute();
-            return statement.getGeneratedKeys().getInt(1);
-        } finally {
-            statement.close();
+    private static int executeInsert(PreparedStatement statement) throws SQLException {
+        statement.execute();
+        try (ResultSet keys = statement.getGeneratedKeys()) {
+            return keys.getInt(1);
         }
     }
 
@@ -272,14 +371,11 @@ public class BiometricsDbHelper {
         sql.append(table);
         sql.append(" SET ");
 
-        // move all bind args to one array
-        int setValuesSize = values.size();
         int i = 0;
         for (String colName : values.keySet()) {
             sql.append((i > 0) ? "," : "");
             sql.append(colName);
-            sql.append("=");
-            sql.append(colName);
+            sql.append("=?");
             i++;
         }
         if (whereClause != null && !whereClause.isEmpty()) {
@@ -287,21 +383,21 @@ public class BiometricsDbHelper {
             sql.append(whereClause);
         }
 
-        PreparedStatement statement = connection.prepareStatement(sql.toString());
-        i = 0;
+        PreparedStatement statement = prepare(sql.toString());
+        i = 1;
         for (Object value : values.values()) {
-            statement.setObject(i, value);
-            i++;
+            statement.setObject(i++, value);
         }
-        try {
-            return statement.execute();
-        } finally {
-            statement.close();
+        if (whereArgs != null) {
+            for (String arg : whereArgs) {
+                statement.setObject(i++, arg);
+            }
         }
+        return statement.execute();
     }
 
     public int delete(String table, String whereClause, String[] whereArgs) throws SQLException {
-        PreparedStatement statement = connection.prepareStatement("DELETE FROM " + table +
+        PreparedStatement statement = prepare("DELETE FROM " + table +
                 (whereClause != null && !whereClause.isEmpty() ? " WHERE " + whereClause : ""));
         if (whereArgs != null) {
             int i = 1;
@@ -310,10 +406,170 @@ public class BiometricsDbHelper {
                 i++;
             }
         }
+        return statement.executeUpdate();
+    }
+
+    /**
+     * @return the cached statement for sql, with its parameters cleared
+     */
+    private PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement statement = statements.get(sql);
+        if (statement == null) {
+            statement = connection.prepareStatement(sql);
+            statements.put(sql, statement);
+        } else {
+            statement.clearParameters();
+        }
+        return statement;
+    }
+
+    private void closeStatements() {
+        for (PreparedStatement statement : statements.values()) {
+            closeStatement(statement);
+        }
+        statements.clear();
+        for (PreparedStatement statement : statements.pinned) {
+            closeStatement(statement);  // Closing statements that were still cached again has no effect
+        }
+        statements.pinned.clear();
+    }
+
+    private static void closeStatement(PreparedStatement statement) {
         try {
-            return statement.executeUpdate();
-        } finally {
             statement.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Prepared statements by their SQL, the least recently used one is closed when the cache is full. Statements that
+     * are pinned by an open StreamingCursor or by rows added to a batch are only removed from the cache then, and closed
+     * when they are unpinned.
+     */
+    private static final class StatementCache extends LinkedHashMap<String, PreparedStatement> {
+        private static final long serialVersionUID = 1L;
+
+        private final transient Set<PreparedStatement> pinned = new HashSet<>();
+
+        StatementCache() {
+            super(STATEMENT_CACHE_SIZE, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+            if (size() > STATEMENT_CACHE_SIZE) {
+                if (!pinned.contains(eldest.getValue())) {
+                    closeStatement(eldest.getValue());
+                }
+                return true;
+            }
+            return false;
+        }
+
+        void pin(PreparedStatement statement) {
+            pinned.add(statement);
+        }
+
+        void unpin(PreparedStatement statement) {
+            if (pinned.remove(statement) && !containsValue(statement)) {
+                closeStatement(statement);  // Has been evicted while it was pinned
+            }
+        }
+    }
+
+    public final class PreparedQuery {
+        private final String sql;
+
+        private PreparedQuery(String sql) {
+            this.sql = sql;
+        }
+
+        /**
+         * @param args the values of the ? parameters, bound with their own type instead of as strings
+         */
+        public Cursor query(Object... args) throws SQLException {
+            PreparedStatement statement = prepare(sql);
+            for (int i = 0; i < args.length; i++) {
+                statement.setObject(i + 1, args[i]);
+            }
+            return new Cursor(statement.executeQuery());
+        }
+
+        /**
+         * Executes the query without reading any rows. The cursor has to be closed before the query is executed again,
+         * because both use the same cached statement, which is kept open until then.
+         * @param args the values of the ? parameters, bound with their own type instead of as strings
+         */
+        public StreamingCursor stream(Object... args) throws SQLException {
+            PreparedStatement statement = prepare(sql);
+            for (int i = 0; i < args.length; i++) {
+                statement.setObject(i + 1, args[i]);
+            }
+            statements.pin(statement);
+            try {
+                return new StreamingCursor(statement.executeQuery(), () -> statements.unpin(statement));
+            } catch (SQLException | RuntimeException e) {
+                statements.unpin(statement);
+                throw e;
+            }
+        }
+    }
+
+    public final class PreparedInsert {
+        private final String sql;
+        private final String[] columns;
+        private PreparedStatement batch;    // Holds the rows added by addBatch(), kept open until executeBatch()
+
+        private PreparedInsert(String sql, String[] columns) {
+            this.sql = sql;
+            this.columns = columns;
+        }
+
+        /**
+         * @return the row ID of the inserted row
+         */
+        public int insert(ContentValues values) throws SQLException {
+            PreparedStatement statement = prepare(sql);
+            for (int i = 0; i < columns.length; i++) {
+                statement.setObject(i + 1, values.get(columns[i]));
+            }
+            return executeInsert(statement);
+        }
+
+        /**
+         * Adds a row to be inserted by executeBatch(), for bulk-loading many rows. The rows are kept by the cached
+         * statement, so no other inserts of the same columns should be executed until then.
+         */
+        public void addBatch(ContentValues values) throws SQLException {
+            if (batch == null) {
+                batch = prepare(sql);
+                statements.pin(batch);
+            }
+            for (int i = 0; i < columns.length; i++) {
+                batch.setObject(i + 1, values.get(columns[i]));
+            }
+            batch.addBatch();
+        }
+
+        /**
+         * Inserts all rows added by addBatch(), which should be enclosed in beginBatch() and commit()
+         * @return the number of rows inserted
+         */
+        public int executeBatch() throws SQLException {
+            if (batch == null) return 0;
+
+            PreparedStatement statement = batch;
+            batch = null;
+            try {
+                int rows = 0;
+                for (int count : statement.executeBatch()) {
+                    rows += Math.max(count, 0);
+                }
+                return rows;
+            } finally {
+                statements.unpin(statement);
+            }
         }
     }
 
@@ -17,11 +17,9 @@ public class ClusterPoint implements Clusterable {
         dataList = new LinkedList<>();
     }
 
-    public void addSamples(double[][] row) {
-        for (double[] sample : row) {
-            for (double value : sample) {
-                dataList.add(value);
-            }
+    public void addSamples(double[] data, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            dataList.add(data[i]);
         }
     }
 
@@ -1,6 +1,7 @@
 package at.jku.fim.phonykeyboard.latin.biometrics.data;
 
 import java.sql.Connection;
+import java.sql.SQLException;
 
 public abstract class Contract {
     protected Contract() {
@@ -11,5 +12,9 @@ public abstract class Contract {
     }
 
     public abstract void onCreate(Connection db);
-    public abstract void onUpgrade(Connection db, int oldVersion, int newVersion);
+    /**
+     * Upgrades the tables of the contract within the transaction that records the new version, so errors have to be
+     * thrown to keep the old version and retry the upgrade when the database is opened the next time
+     */
+    public abstract void onUpgrade(Connection db, int oldVersion, int newVersion) throws SQLException;
 }
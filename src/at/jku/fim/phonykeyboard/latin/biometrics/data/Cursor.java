@@ -3,18 +3,27 @@ package at.jku.fim.phonykeyboard.latin.biometrics.data;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
+/**
+ * Cursor that copies all rows of a ResultSet, so that they can be counted and read more than once. See StreamingCursor
+ * for reading the rows only once.
+ */
 // NOTE: Row indexes in this class are 1-based while Column indexes are 0-based, for compatibility with JDBC
 public class Cursor {
     List<Object[]> data;
     String[] cols;
+    Map<String, Integer> colIndexes;
     int currentRow = 0;
 
     public Cursor(ResultSet result) throws SQLException {
         cols = new String[result.getMetaData().getColumnCount()];
+        colIndexes = new HashMap<>(cols.length * 2);
         for (int i = 0; i < cols.length; i++) {
             cols[i] = result.getMetaData().getColumnName(i+1);
+            colIndexes.put(cols[i], i);
         }
 
         data = new ArrayList<>();
@@ -33,12 +42,11 @@ public class Cursor {
     }
 
     public int getColumnIndex(String columnName) throws SQLException {
-        for (int i = 0; i < cols.length; i++) {
-            if (cols[i].equals(columnName)) {
-                return i;
-            }
+        Integer index = colIndexes.get(columnName);
+        if (index == null) {
+            throw new SQLException(String.format("Unknown column %s", columnName));
         }
-        throw new SQLException(String.format("Unknown column %s", columnName));
+        return index;
     }
 
     public int getCount() {
@@ -58,6 +66,15 @@ public class Cursor {
         return getInt(getColumnIndex(columnName));
     }
 
+    public long getLong(int columnIndex) throws SQLException {
+        validColumnIndex(columnIndex);
+        return ((Number)data.get(currentRow-1)[columnIndex]).longValue();    // Integer if the value fits into an int
+    }
+
+    public long getLong(String columnName) throws SQLException {
+        return getLong(getColumnIndex(columnName));
+    }
+
     public double getDouble(int columnIndex) throws SQLException {
         validColumnIndex(columnIndex);
         return (double)data.get(currentRow-1)[columnIndex];
@@ -76,6 +93,15 @@ public class Cursor {
         return getString(getColumnIndex(columnName));
     }
 
+    public byte[] getBlob(int columnIndex) throws SQLException {
+        validColumnIndex(columnIndex);
+        return (byte[])data.get(currentRow-1)[columnIndex];
+    }
+
+    public byte[] getBlob(String columnName) throws SQLException {
+        return getBlob(getColumnIndex(columnName));
+    }
+
     public void beforeFirst() {
         currentRow = 0;
     }
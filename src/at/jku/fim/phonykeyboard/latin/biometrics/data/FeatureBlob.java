@@ -0,0 +1,90 @@
+package at.jku.fim.phonykeyboard.latin.biometrics.data;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+
+/**
+ * Binary encoding of the samples of a feature, as stored in the feature columns of StatisticalClassifierData since
+ * version 4 of StatisticalClassifierContract. A BLOB starts with a little-endian header of the sample count (int32), the
+ * number of values per sample (int16) and the size of each value in bytes (int16, 4 for float32 or 8 for float64),
+ * followed by the values of all samples one after another, in the same layout as a FeatureTensor row.
+ */
+public final class FeatureBlob {
+    public static final int HEADER_SIZE = 8;
+    public static final int FLOAT32 = 4, FLOAT64 = 8;
+
+    private FeatureBlob() {
+    }
+
+    /**
+     * Encodes the samples as float64, so that they are decoded to the same values
+     * @param samples the samples, all of which must have the same number of values
+     */
+    public static byte[] encode(List<double[]> samples) {
+        int values = samples.isEmpty() ? 0 : samples.get(0).length;
+        ByteBuffer buffer = allocate(samples.size(), values, FLOAT64);
+        for (double[] sample : samples) {
+            for (double value : sample) {
+                buffer.putDouble(value);
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Encodes samples that are stored one after another in a flat array
+     */
+    public static byte[] encode(double[] data, int offset, int samples, int values) {
+        ByteBuffer buffer = allocate(samples, values, FLOAT64);
+        buffer.asDoubleBuffer().put(data, offset, samples * values);
+        return buffer.array();
+    }
+
+    /**
+     * @return the number of samples, or 0 if blob is null
+     */
+    public static int getSampleCount(byte[] blob) {
+        return blob == null || blob.length < HEADER_SIZE ? 0 : header(blob).getInt(0);
+    }
+
+    public static int getValueCount(byte[] blob) {
+        return blob == null || blob.length < HEADER_SIZE ? 0 : header(blob).getShort(4);
+    }
+
+    /**
+     * Copies the values of all samples to data, starting at offset
+     * @return the number of values copied
+     */
+    public static int decode(byte[] blob, double[] data, int offset) {
+        int length = getSampleCount(blob) * getValueCount(blob);
+        if (length == 0) return 0;
+
+        ByteBuffer buffer = ByteBuffer.wrap(blob, HEADER_SIZE, blob.length - HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        switch (header(blob).getShort(6)) {
+            case FLOAT64:
+                buffer.asDoubleBuffer().get(data, offset, length);
+                break;
+            case FLOAT32:
+                for (int i = 0; i < length; i++) {
+                    data[offset + i] = buffer.getFloat();
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported value size " + header(blob).getShort(6));
+        }
+        return length;
+    }
+
+    private static ByteBuffer allocate(int samples, int values, int valueSize) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + samples * values * valueSize).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(samples);
+        buffer.putShort((short)values);
+        buffer.putShort((short)valueSize);
+        return buffer;
+    }
+
+    private static ByteBuffer header(byte[] blob) {
+        return ByteBuffer.wrap(blob, 0, HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
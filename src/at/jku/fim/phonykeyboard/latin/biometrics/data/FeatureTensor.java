@@ -0,0 +1,126 @@
+package at.jku.fim.phonykeyboard.latin.biometrics.data;
+
+import java.util.Arrays;
+
+/**
+ * Holds the samples of all acquisitions of a single feature in one contiguous array. Row r occupies
+ * getSampleCount(r) * getValueCount() doubles starting at getOffset(r), samples are stored one after another.
+ */
+public final class FeatureTensor {
+    private final boolean readOnly;
+    private int rowCount;
+    private int valueCount;
+    private int[] offsets;
+    private int[] sampleCounts;
+    private double[] data;
+
+    public FeatureTensor(int rowCapacity) {
+        this(rowCapacity, 0);
+    }
+
+    public FeatureTensor(int rowCapacity, int dataCapacity) {
+        readOnly = false;
+        offsets = new int[Math.max(rowCapacity, 1) + 1];
+        sampleCounts = new int[Math.max(rowCapacity, 1)];
+        data = new double[dataCapacity];
+    }
+
+    private FeatureTensor(FeatureTensor other) {
+        readOnly = true;
+        rowCount = other.rowCount;
+        valueCount = other.valueCount;
+        offsets = other.offsets;
+        sampleCounts = other.sampleCounts;
+        data = other.data;
+    }
+
+    /**
+     * Returns a read-only view of the rows currently in this tensor. Appending further rows doesn't change the view,
+     * because appended rows are never modified and the arrays are copied when they grow.
+     */
+    public FeatureTensor snapshot() {
+        return readOnly ? this : new FeatureTensor(this);
+    }
+
+    /**
+     * Appends a row with the given shape and returns the offset in getData() at which its values have to be written
+     */
+    public int appendRow(int sampleCount, int valueCount) {
+        if (readOnly) {
+            throw new UnsupportedOperationException("Can't append rows to a snapshot");
+        }
+        if (sampleCount > 0) {
+            if (this.valueCount == 0) {
+                this.valueCount = valueCount;
+            } else if (this.valueCount != valueCount) {
+                throw new IllegalArgumentException(String.format("Row has %d values per sample, needs %d", valueCount, this.valueCount));
+            }
+        } else {
+            sampleCount = 0;
+        }
+
+        if (rowCount == sampleCounts.length) {
+            sampleCounts = Arrays.copyOf(sampleCounts, sampleCounts.length * 2);
+            offsets = Arrays.copyOf(offsets, sampleCounts.length + 1);
+        }
+        int offset = offsets[rowCount];
+        int end = offset + sampleCount * this.valueCount;
+        if (end > data.length) {
+            data = Arrays.copyOf(data, Math.max(end, data.length * 2));
+        }
+        sampleCounts[rowCount] = sampleCount;
+        offsets[++rowCount] = end;
+        return offset;
+    }
+
+    /**
+     * Removes all rows after the first rowCount rows. Rows appended afterwards overwrite the values of the removed
+     * rows, so this must not be called on tensors of which snapshots are used.
+     */
+    void truncate(int rowCount) {
+        if (readOnly) {
+            throw new UnsupportedOperationException("Can't remove rows from a snapshot");
+        }
+        if (rowCount < 0 || rowCount > this.rowCount) {
+            throw new IndexOutOfBoundsException(String.format("Can't truncate %d rows to %d", this.rowCount, rowCount));
+        }
+        this.rowCount = rowCount;
+        if (offsets[rowCount] == 0) {
+            valueCount = 0;     // No samples are left, so rows with any number of values can be appended again
+        }
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public int getValueCount() {
+        return valueCount;
+    }
+
+    public int getSampleCount(int row) {
+        return sampleCounts[row];
+    }
+
+    public int getOffset(int row) {
+        return offsets[row];
+    }
+
+    /**
+     * @return true if no row contains any samples (e.g. because a sensor is unavailable)
+     */
+    public boolean isEmpty() {
+        return offsets[rowCount] == 0;
+    }
+
+    public double get(int row, int sample, int value) {
+        return data[offsets[row] + sample * valueCount + value];
+    }
+
+    /**
+     * Returns the backing array of this tensor. It may be replaced when further rows are appended.
+     */
+    public double[] getData() {
+        return data;
+    }
+}
@@ -0,0 +1,349 @@
+package at.jku.fim.phonykeyboard.latin.biometrics.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * TemplateStore that keeps everything in primitive arrays instead of a database, for evaluations that don't need to
+ * keep their data. It behaves like JdbcTemplateStore, including the IDs it assigns, but is not thread-safe.
+ */
+public class InMemoryTemplateStore implements TemplateStore {
+    private final int features;
+
+    // Data rows of all contexts, the ID of a row is its index + 1
+    private final List<FeatureTensor> data = new ArrayList<>();   // feature<[row][sample][values]>
+    private final Map<Key, IntArray> dataRows = new HashMap<>();   // Row indexes of each context and screen orientation
+
+    // Templates in the order they were inserted, which is also the order of their IDs
+    private int templateCount;
+    private int[] templateIds = new int[16];
+    private long[] templateContexts = new long[16];
+    private int[] templateScreenOrientations = new int[16];
+    private int[] templateDataIds = new int[16];
+    private double[] templateScores = new double[16];
+
+    private final Set<Key> lockedTemplates = new HashSet<>();
+
+    // Nothing is kept after the store is discarded, so its generations are only valid for this instance
+    private final long storeId = new Random().nextLong();
+    private long generation;
+
+    // State at beginBatch(), restored by rollback()
+    private boolean inBatch;
+    private int batchDataRowCount;
+    private Map<Key, Integer> batchDataRows;
+    private int batchTemplateCount;
+    private int[] batchTemplateIds;
+    private long[] batchTemplateContexts;
+    private int[] batchTemplateScreenOrientations, batchTemplateDataIds;
+    private double[] batchTemplateScores;
+    private Set<Key> batchLockedTemplates;
+
+    public InMemoryTemplateStore(int features) {
+        this.features = features;
+        clearData();
+    }
+
+    @Override
+    public void beginBatch() {
+        if (inBatch) {
+            throw new IllegalStateException("Batch already started");
+        }
+        inBatch = true;
+        batchDataRowCount = data.get(0).getRowCount();
+        batchDataRows = new HashMap<>(dataRows.size() * 2);
+        for (Map.Entry<Key, IntArray> rows : dataRows.entrySet()) {
+            batchDataRows.put(rows.getKey(), rows.getValue().size);
+        }
+        batchTemplateCount = templateCount;
+        batchTemplateIds = Arrays.copyOf(templateIds, templateCount);
+        batchTemplateContexts = Arrays.copyOf(templateContexts, templateCount);
+        batchTemplateScreenOrientations = Arrays.copyOf(templateScreenOrientations, templateCount);
+        batchTemplateDataIds = Arrays.copyOf(templateDataIds, templateCount);
+        batchTemplateScores = Arrays.copyOf(templateScores, templateCount);
+        batchLockedTemplates = new HashSet<>(lockedTemplates);
+    }
+
+    @Override
+    public void commit() {
+        inBatch = false;
+        batchDataRows = null;
+        batchTemplateIds = batchTemplateScreenOrientations = batchTemplateDataIds = null;
+        batchTemplateContexts = null;
+        batchTemplateScores = null;
+        batchLockedTemplates = null;
+    }
+
+    /**
+     * Discards the data rows, templates and template status changed since beginBatch(). Like SQLite, the IDs of rolled
+     * back data rows are assigned again.
+     */
+    @Override
+    public void rollback() {
+        if (!inBatch) return;
+        generation++;
+
+        for (FeatureTensor tensor : data) {
+            tensor.truncate(batchDataRowCount);
+        }
+        for (Map.Entry<Key, IntArray> rows : dataRows.entrySet()) {
+            Integer size = batchDataRows.get(rows.getKey());
+            rows.getValue().size = size != null ? size : 0;
+        }
+        templateCount = batchTemplateCount;
+        System.arraycopy(batchTemplateIds, 0, templateIds, 0, templateCount);
+        System.arraycopy(batchTemplateContexts, 0, templateContexts, 0, templateCount);
+        System.arraycopy(batchTemplateScreenOrientations, 0, templateScreenOrientations, 0, templateCount);
+        System.arraycopy(batchTemplateDataIds, 0, templateDataIds, 0, templateCount);
+        System.arraycopy(batchTemplateScores, 0, templateScores, 0, templateCount);
+        lockedTemplates.clear();
+        lockedTemplates.addAll(batchLockedTemplates);
+        commit();
+    }
+
+    @Override
+    public int insertData(long context, int screenOrientation, List<List<double[]>> features) {
+        checkRow(features);
+        generation++;
+        for (int i = 0; i < this.features; i++) {
+            List<double[]> samples = features.get(i);
+            FeatureTensor tensor = data.get(i);
+            if (samples.isEmpty()) {
+                tensor.appendRow(0, 0);
+                continue;
+            }
+
+            int values = samples.get(0).length;
+            int offset = tensor.appendRow(samples.size(), values);
+            for (double[] sample : samples) {
+                System.arraycopy(sample, 0, tensor.getData(), offset, values);
+                offset += values;
+            }
+        }
+
+        int row = data.get(0).getRowCount() - 1;
+        Key key = new Key(context, screenOrientation);
+        IntArray rows = dataRows.get(key);
+        if (rows == null) {
+            rows = new IntArray();
+            dataRows.put(key, rows);
+        }
+        rows.add(row);
+        return row + 1;
+    }
+
+    /**
+     * Checks that a data row can be appended to all feature tensors before the first one is changed, because the tensors
+     * must keep the same number of rows, also if the row isn't inserted in a batch
+     * @throws IllegalArgumentException if a feature is missing or its samples don't have the values of the tensor
+     */
+    private void checkRow(List<List<double[]>> features) {
+        if (features.size() < this.features) {
+            throw new IllegalArgumentException(String.format("Row has %d features, needs %d", features.size(), this.features));
+        }
+        for (int i = 0; i < this.features; i++) {
+            List<double[]> samples = features.get(i);
+            if (samples.isEmpty()) continue;
+
+            int values = samples.get(0).length;
+            int tensorValues = data.get(i).getValueCount();
+            if (tensorValues != 0 && tensorValues != values) {
+                throw new IllegalArgumentException(String.format("Feature %d has %d values per sample, needs %d", i, values, tensorValues));
+            }
+            for (double[] sample : samples) {
+                if (sample.length != values) {
+                    throw new IllegalArgumentException(String.format("Feature %d has samples with %d and %d values", i, values, sample.length));
+                }
+            }
+        }
+    }
+
+    @Override
+    public List<FeatureTensor> readData(long context, int screenOrientation, boolean[] usedFeatures) {
+        IntArray rows = dataRows.get(new Key(context, screenOrientation));
+        if (rows == null) {
+            return readRows(new int[0], 0, usedFeatures);
+        }
+        return readRows(rows.values, rows.size, usedFeatures);
+    }
+
+    @Override
+    public List<FeatureTensor> readTemplateData(long context, int screenOrientation, boolean[] usedFeatures) {
+        int[] rows = new int[templateCount];
+        int count = 0;
+        for (int i = 0; i < templateCount; i++) {
+            if (templateContexts[i] == context && templateScreenOrientations[i] == screenOrientation && templateDataIds[i] <= data.get(0).getRowCount()) {
+                rows[count++] = templateDataIds[i] - 1;
+            }
+        }
+        Arrays.sort(rows, 0, count);
+        return readRows(rows, count, usedFeatures);
+    }
+
+    private List<FeatureTensor> readRows(int[] rows, int count, boolean[] usedFeatures) {
+        AcquisitionSetBuilder builder = new AcquisitionSetBuilder(features, count);
+        for (int r = 0; r < count; r++) {
+            for (int i = 0; i < features; i++) {
+                if (!usedFeatures[i]) continue;
+
+                FeatureTensor tensor = data.get(i);
+                int row = rows[r];
+                int offset = builder.append(i, tensor.getSampleCount(row), tensor.getValueCount());
+                if (offset >= 0) {
+                    System.arraycopy(tensor.getData(), tensor.getOffset(row), builder.getData(i), offset, tensor.getSampleCount(row) * tensor.getValueCount());
+                }
+            }
+            builder.endRow();
+        }
+        return builder.build();
+    }
+
+    @Override
+    public int insertTemplate(long context, int screenOrientation, int dataId, double score) {
+        generation++;
+        if (templateCount == templateIds.length) {
+            int capacity = templateCount * 2;
+            templateIds = Arrays.copyOf(templateIds, capacity);
+            templateContexts = Arrays.copyOf(templateContexts, capacity);
+            templateScreenOrientations = Arrays.copyOf(templateScreenOrientations, capacity);
+            templateDataIds = Arrays.copyOf(templateDataIds, capacity);
+            templateScores = Arrays.copyOf(templateScores, capacity);
+        }
+
+        // Like SQLite, the next ID follows the largest one in use
+        int id = templateCount > 0 ? templateIds[templateCount - 1] + 1 : 1;
+        templateIds[templateCount] = id;
+        templateContexts[templateCount] = context;
+        templateScreenOrientations[templateCount] = screenOrientation;
+        templateDataIds[templateCount] = dataId;
+        templateScores[templateCount] = score;
+        templateCount++;
+        return id;
+    }
+
+    @Override
+    public int[] getTemplateIds(long context, int screenOrientation) {
+        List<Integer> templates = new ArrayList<>();
+        for (int i = 0; i < templateCount; i++) {
+            if (templateContexts[i] == context && templateScreenOrientations[i] == screenOrientation) {
+                templates.add(i);
+            }
+        }
+        templates.sort((t1, t2) -> Double.compare(templateScores[t1], templateScores[t2]));  // Stable, so equal scores stay ordered by ID
+
+        int[] ids = new int[templates.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = templateIds[templates.get(i)];
+        }
+        return ids;
+    }
+
+    @Override
+    public void deleteTemplatesExcept(int[] templateIds) {
+        generation++;
+        int count = 0;
+        for (int i = 0; i < templateCount; i++) {
+            boolean keep = false;
+            for (int id : templateIds) {
+                if (this.templateIds[i] == id) {
+                    keep = true;
+                    break;
+                }
+            }
+            if (keep) {
+                this.templateIds[count] = this.templateIds[i];
+                templateContexts[count] = templateContexts[i];
+                templateScreenOrientations[count] = templateScreenOrientations[i];
+                templateDataIds[count] = templateDataIds[i];
+                templateScores[count] = templateScores[i];
+                count++;
+            }
+        }
+        templateCount = count;
+    }
+
+    @Override
+    public boolean isLocked(long context, int screenOrientation) {
+        return lockedTemplates.contains(new Key(context, screenOrientation));
+    }
+
+    @Override
+    public void lock(long context, int screenOrientation) {
+        generation++;
+        lockedTemplates.add(new Key(context, screenOrientation));
+    }
+
+    @Override
+    public void clearData() {
+        generation++;
+        data.clear();
+        for (int i = 0; i < features; i++) {
+            data.add(new FeatureTensor(16));
+        }
+        dataRows.clear();
+    }
+
+    @Override
+    public void clearTemplates() {
+        generation++;
+        templateCount = 0;
+        lockedTemplates.clear();
+    }
+
+    @Override
+    public long getStoreId() {
+        return storeId;
+    }
+
+    @Override
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * A context in a screen orientation
+     */
+    private static final class Key {
+        private final long context;
+        private final int screenOrientation;
+
+        Key(long context, int screenOrientation) {
+            this.context = context;
+            this.screenOrientation = screenOrientation;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return context == other.context && screenOrientation == other.screenOrientation;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Long.hashCode(context) + screenOrientation;
+        }
+    }
+
+    /**
+     * Growable array of row indexes
+     */
+    private static final class IntArray {
+        private int[] values = new int[16];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+}
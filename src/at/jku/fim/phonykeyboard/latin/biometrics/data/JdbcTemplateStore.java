@@ -0,0 +1,250 @@
+package at.jku.fim.phonykeyboard.latin.biometrics.data;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * TemplateStore in the tables of StatisticalClassifierContract, using the prepared statements of a BiometricsDbHelper
+ */
+public class JdbcTemplateStore implements TemplateStore {
+    private static final int INITIAL_ROW_CAPACITY = 16;
+
+    private final BiometricsDbHelper db;
+    private final BiometricsDbHelper.PreparedQuery templateStatusQuery, templatesQuery;
+    private final Map<Long, FeatureQuery> dataQueries = new HashMap<>(), templateDataQueries = new HashMap<>();   // By the bits of the read features
+    private final BiometricsDbHelper.PreparedInsert dataInsert, templateInsert, templateStatusInsert;
+    private final BiometricsDbHelper.PreparedQuery stateQuery;
+    private final String[] featureColumns, dataColumns;
+
+    public JdbcTemplateStore(BiometricsDbHelper db, StatisticalClassifierContract contract) {
+        this.db = db;
+
+        List<String> columns = contract.getFeatureColumns();
+        featureColumns = columns.toArray(new String[columns.size()]);
+        templateStatusQuery = db.prepareQuery(false, StatisticalClassifierContract.StatisticalClassifierTemplateStatus.TABLE_NAME, new String[] {StatisticalClassifierContract.StatisticalClassifierTemplateStatus._ID },
+                StatisticalClassifierContract.StatisticalClassifierTemplateStatus.COLUMN_CONTEXT + " = ? AND " + StatisticalClassifierContract.StatisticalClassifierTemplateStatus.COLUMN_SCREEN_ORIENTATION + " = ?",
+                null, null, null, null);
+        templatesQuery = db.prepareQuery(false, StatisticalClassifierContract.StatisticalClassifierTemplates.TABLE_NAME,
+                new String[] {StatisticalClassifierContract.StatisticalClassifierTemplates._ID },
+                StatisticalClassifierContract.StatisticalClassifierTemplates.COLUMN_CONTEXT + " = ? AND " + StatisticalClassifierContract.StatisticalClassifierTemplates.COLUMN_SCREEN_ORIENTATION + " = ?",
+                null, null, StatisticalClassifierContract.StatisticalClassifierTemplates.COLUMN_SCORE, null);
+
+        columns.add(0, StatisticalClassifierContract.StatisticalClassifierData.COLUMN_CONTEXT);
+        columns.add(1, StatisticalClassifierContract.StatisticalClassifierData.COLUMN_SCREEN_ORIENTATION);
+        dataColumns = columns.toArray(new String[columns.size()]);
+        dataInsert = db.prepareInsert(StatisticalClassifierContract.StatisticalClassifierData.TABLE_NAME, dataColumns);
+        templateInsert = db.prepareInsert(StatisticalClassifierContract.StatisticalClassifierTemplates.TABLE_NAME, StatisticalClassifierContract.StatisticalClassifierTemplates.COLUMN_CONTEXT,
+                StatisticalClassifierContract.StatisticalClassifierTemplates.COLUMN_SCREEN_ORIENTATION, StatisticalClassifierContract.StatisticalClassifierTemplates.COLUMN_DATA_ID, StatisticalClassifierContract.StatisticalClassifierTemplates.COLUMN_SCORE);
+        templateStatusInsert = db.prepareInsert(StatisticalClassifierContract.StatisticalClassifierTemplateStatus.TABLE_NAME, StatisticalClassifierContract.StatisticalClassifierTemplateStatus.COLUMN_CONTEXT,
+                StatisticalClassifierContract.StatisticalClassifierTemplateStatus.COLUMN_SCREEN_ORIENTATION);
+
+        stateQuery = db.prepareQuery(false, StatisticalClassifierContract.StatisticalClassifierState.TABLE_NAME, new String[] {
+                StatisticalClassifierContract.StatisticalClassifierState.COLUMN_STORE_ID, StatisticalClassifierContract.StatisticalClassifierState.COLUMN_GENERATION }, null, null, null, null, null);
+    }
+
+    public BiometricsDbHelper getDb() {
+        return db;
+    }
+
+    @Override
+    public void beginBatch() throws SQLException {
+        db.beginBatch();
+    }
+
+    @Override
+    public void commit() throws SQLException {
+        db.commit();
+    }
+
+    @Override
+    public void rollback() throws SQLException {
+        db.rollback();
+    }
+
+    @Override
+    public int insertData(long context, int screenOrientation, List<List<double[]>> features) throws SQLException {
+        BiometricsDbHelper.ContentValues values = new BiometricsDbHelper.ContentValues(dataColumns.length);
+        values.put(StatisticalClassifierContract.StatisticalClassifierData.COLUMN_CONTEXT, context);
+        values.put(StatisticalClassifierContract.StatisticalClassifierData.COLUMN_SCREEN_ORIENTATION, screenOrientation);
+        for (int i = 0; i < features.size(); i++) {
+            values.put(dataColumns[i + 2], FeatureBlob.encode(features.get(i)));
+        }
+        return dataInsert.insert(values);
+    }
+
+    @Override
+    public List<FeatureTensor> readData(long context, int screenOrientation, boolean[] usedFeatures) throws SQLException {
+        FeatureQuery query = dataQueries.get(toBits(usedFeatures));
+        if (query == null) {
+            query = new FeatureQuery(usedFeatures, StatisticalClassifierContract.StatisticalClassifierData.TABLE_NAME, null,
+                    StatisticalClassifierContract.StatisticalClassifierData.COLUMN_CONTEXT + " = ? AND " + StatisticalClassifierContract.StatisticalClassifierData.COLUMN_SCREEN_ORIENTATION + " = ?", null);
+            dataQueries.put(toBits(usedFeatures), query);
+        }
+        return query.read(context, screenOrientation);
+    }
+
+    @Override
+    public List<FeatureTensor> readTemplateData(long context, int screenOrientation, boolean[] usedFeatures) throws SQLException {
+        FeatureQuery query = templateDataQueries.get(toBits(usedFeatures));
+        if (query == null) {
+            // Reads the template rows from the templates index and joins the data rows by their primary key
+            query = new FeatureQuery(usedFeatures, StatisticalClassifierContract.StatisticalClassifierTemplates.TABLE_NAME + " INNER JOIN " + StatisticalClassifierContract.StatisticalClassifierData.TABLE_NAME + " ON " +
+                            StatisticalClassifierContract.StatisticalClassifierData.TABLE_NAME + "." + StatisticalClassifierContract.StatisticalClassifierData._ID + " = " + StatisticalClassifierContract.StatisticalClassifierTemplates.TABLE_NAME + "." + StatisticalClassifierContract.StatisticalClassifierTemplates.COLUMN_DATA_ID,
+                    StatisticalClassifierContract.StatisticalClassifierData.TABLE_NAME + ".",
+                    StatisticalClassifierContract.StatisticalClassifierTemplates.TABLE_NAME + "." + StatisticalClassifierContract.StatisticalClassifierTemplates.COLUMN_CONTEXT + " = ? AND " + StatisticalClassifierContract.StatisticalClassifierTemplates.TABLE_NAME + "." + StatisticalClassifierContract.StatisticalClassifierTemplates.COLUMN_SCREEN_ORIENTATION + " = ?",
+                    StatisticalClassifierContract.StatisticalClassifierTemplates.TABLE_NAME + "." + StatisticalClassifierContract.StatisticalClassifierTemplates.COLUMN_DATA_ID);
+            templateDataQueries.put(toBits(usedFeatures), query);
+        }
+        return query.read(context, screenOrientation);
+    }
+
+    private static long toBits(boolean[] features) {
+        long bits = 0;
+        for (int i = 0; i < features.length; i++) {
+            if (features[i]) {
+                bits |= 1L << i;
+            }
+        }
+        return bits;
+    }
+
+    @Override
+    public int insertTemplate(long context, int screenOrientation, int dataId, double score) throws SQLException {
+        BiometricsDbHelper.ContentValues values = new BiometricsDbHelper.ContentValues(4);
+        values.put(StatisticalClassifierContract.StatisticalClassifierTemplates.COLUMN_CONTEXT, context);
+        values.put(StatisticalClassifierContract.StatisticalClassifierTemplates.COLUMN_SCREEN_ORIENTATION, screenOrientation);
+        values.put(StatisticalClassifierContract.StatisticalClassifierTemplates.COLUMN_DATA_ID, dataId);
+        values.put(StatisticalClassifierContract.StatisticalClassifierTemplates.COLUMN_SCORE, score);
+        return templateInsert.insert(values);
+    }
+
+    @Override
+    public int[] getTemplateIds(long context, int screenOrientation) throws SQLException {
+        Cursor c = templatesQuery.query(context, screenOrientation);
+        int[] ids = new int[c.getCount()];
+        for (int i = 0; c.next(); i++) {
+            ids[i] = c.getInt(0);
+        }
+        return ids;
+    }
+
+    @Override
+    public void deleteTemplatesExcept(int[] templateIds) throws SQLException {
+        String[] values = new String[templateIds.length];
+        StringBuilder sb = new StringBuilder(Math.max(templateIds.length * 2 - 1, 0));
+        for (int i = 0; i < templateIds.length; i++) {
+            if (sb.length() > 0) {
+                sb.append(" AND ");
+            }
+            sb.append(StatisticalClassifierContract.StatisticalClassifierTemplates._ID + " != ?");
+            values[i] = String.valueOf(templateIds[i]);
+        }
+        db.delete(StatisticalClassifierContract.StatisticalClassifierTemplates.TABLE_NAME, sb.toString(), values);
+    }
+
+    @Override
+    public boolean isLocked(long context, int screenOrientation) throws SQLException {
+        try (StreamingCursor c = templateStatusQuery.stream(context, screenOrientation)) {
+            return c.next();
+        }
+    }
+
+    @Override
+    public void lock(long context, int screenOrientation) throws SQLException {
+        BiometricsDbHelper.ContentValues values = new BiometricsDbHelper.ContentValues(2);
+        values.put(StatisticalClassifierContract.StatisticalClassifierTemplateStatus.COLUMN_CONTEXT, context);
+        values.put(StatisticalClassifierContract.StatisticalClassifierTemplateStatus.COLUMN_SCREEN_ORIENTATION, screenOrientation);
+        templateStatusInsert.insert(values);
+    }
+
+    @Override
+    public void clearData() throws SQLException {
+        db.delete(StatisticalClassifierContract.StatisticalClassifierData.TABLE_NAME, null, null);
+    }
+
+    @Override
+    public void clearTemplates() throws SQLException {
+        db.delete(StatisticalClassifierContract.StatisticalClassifierTemplates.TABLE_NAME, null, null);
+        db.delete(StatisticalClassifierContract.StatisticalClassifierTemplateStatus.TABLE_NAME, null, null);
+    }
+
+    /**
+     * Query of the feature columns of data rows, which only selects the columns of the features that are read
+     */
+    private final class FeatureQuery {
+        private final BiometricsDbHelper.PreparedQuery query;
+        private final int[] columnFeatures;  // Feature index of each selected column
+
+        /**
+         * @param columnPrefix the table name and dot to qualify the feature columns with, or null
+         */
+        FeatureQuery(boolean[] usedFeatures, String table, String columnPrefix, String selection, String orderBy) {
+            int count = 0;
+            for (int i = 0; i < featureColumns.length; i++) {
+                if (usedFeatures[i]) count++;
+            }
+
+            if (columnPrefix == null) {
+                columnPrefix = "";
+            }
+            columnFeatures = new int[count];
+            String[] columns = new String[Math.max(count, 1)];
+            if (count == 0) {
+                columns[0] = columnPrefix + StatisticalClassifierContract.StatisticalClassifierData._ID;    // Only counts the rows
+            }
+            for (int i = 0, column = 0; i < featureColumns.length; i++) {
+                if (usedFeatures[i]) {
+                    columnFeatures[column] = i;
+                    columns[column++] = columnPrefix + featureColumns[i];
+                }
+            }
+            query = db.prepareQuery(false, table, columns, selection, null, null, orderBy, null);
+        }
+
+        /**
+         * Copies the rows of the selected feature columns to tensors, reading each row only once
+         */
+        List<FeatureTensor> read(long context, int screenOrientation) throws SQLException {
+            try (StreamingCursor c = query.stream(context, screenOrientation)) {
+                AcquisitionSetBuilder builder = new AcquisitionSetBuilder(featureColumns.length, INITIAL_ROW_CAPACITY);
+                while (c.next()) {
+                    for (int i = 0; i < columnFeatures.length; i++) {
+                        byte[] blob = c.getBlob(i);
+                        int offset = builder.append(columnFeatures[i], FeatureBlob.getSampleCount(blob), FeatureBlob.getValueCount(blob));
+                        if (offset >= 0) {
+                            FeatureBlob.decode(blob, builder.getData(columnFeatures[i]), offset);
+                        }
+                    }
+                    builder.endRow();
+                }
+                return builder.build();
+            }
+        }
+    }
+
+    /**
+     * The store ID of the database, see StatisticalClassifierContract.StatisticalClassifierState
+     */
+    @Override
+    public long getStoreId() throws SQLException {
+        Cursor c = stateQuery.query();
+        if (!c.first()) {
+            throw new SQLException("The database has no state row");
+        }
+        return c.getLong(0);
+    }
+
+    /**
+     * The generation of the database, which the triggers of StatisticalClassifierContract increment with every change
+     */
+    @Override
+    public long getGeneration() throws SQLException {
+        Cursor c = stateQuery.query();
+        if (!c.first()) {
+            throw new SQLException("The database has no state row");
+        }
+        return c.getLong(1);
+    }
+}
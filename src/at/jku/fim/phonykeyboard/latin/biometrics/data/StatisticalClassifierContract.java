@@ -1,12 +1,21 @@
 package at.jku.fim.phonykeyboard.latin.biometrics.data;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Struct;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import at.jku.fim.phonykeyboard.latin.utils.CsvUtils;
 
 public class StatisticalClassifierContract extends Contract {
-    public static final int DATABASE_VERSION = 3;
+    private static final String MULTI_VALUE_SEPARATOR = "|";   // Separator of the text format before version 4
+    public static final int DATABASE_VERSION = 6;
 
     private final String sqlCreateData;
 
@@ -22,6 +31,25 @@ public class StatisticalClassifierContract extends Contract {
             StatisticalClassifierTemplateStatus.COLUMN_CONTEXT + " INTEGER, " +
             StatisticalClassifierTemplateStatus.COLUMN_SCREEN_ORIENTATION + " INTEGER)";
 
+    private final String SQL_CREATE_STATE = "CREATE TABLE " + StatisticalClassifierState.TABLE_NAME + " (" +
+            StatisticalClassifierState._ID + " INTEGER PRIMARY KEY, " +
+            StatisticalClassifierState.COLUMN_STORE_ID + " INTEGER, " +
+            StatisticalClassifierState.COLUMN_GENERATION + " INTEGER)";
+
+    /** The store ID is chosen randomly once, so that the generations of different databases can't be mistaken for each other **/
+    private final String SQL_INSERT_STATE = "INSERT INTO " + StatisticalClassifierState.TABLE_NAME + " (" +
+            StatisticalClassifierState.COLUMN_STORE_ID + ", " + StatisticalClassifierState.COLUMN_GENERATION + ") VALUES (random(), 0)";
+
+    /** Templates are always looked up by context and screen orientation, the template index also covers the join to the data rows **/
+    private final String[] SQL_CREATE_INDEXES = new String[] {
+            "CREATE INDEX IF NOT EXISTS " + StatisticalClassifierData.INDEX_CONTEXT + " ON " + StatisticalClassifierData.TABLE_NAME + " (" +
+                    StatisticalClassifierData.COLUMN_CONTEXT + ", " + StatisticalClassifierData.COLUMN_SCREEN_ORIENTATION + ")",
+            "CREATE INDEX IF NOT EXISTS " + StatisticalClassifierTemplates.INDEX_CONTEXT + " ON " + StatisticalClassifierTemplates.TABLE_NAME + " (" +
+                    StatisticalClassifierTemplates.COLUMN_CONTEXT + ", " + StatisticalClassifierTemplates.COLUMN_SCREEN_ORIENTATION + ", " + StatisticalClassifierTemplates.COLUMN_DATA_ID + ")",
+            "CREATE INDEX IF NOT EXISTS " + StatisticalClassifierTemplateStatus.INDEX_CONTEXT + " ON " + StatisticalClassifierTemplateStatus.TABLE_NAME + " (" +
+                    StatisticalClassifierTemplateStatus.COLUMN_CONTEXT + ", " + StatisticalClassifierTemplateStatus.COLUMN_SCREEN_ORIENTATION + ")"
+    };
+
     private String[] sensorColumns;
 
     public StatisticalClassifierContract(String[] sensorTypes) {
@@ -32,12 +60,12 @@ public class StatisticalClassifierContract extends Contract {
                 StatisticalClassifierData._ID + " INTEGER PRIMARY KEY, " +
                 StatisticalClassifierData.COLUMN_CONTEXT + " INTEGER, " +
                 StatisticalClassifierData.COLUMN_SCREEN_ORIENTATION + " INTEGER, " +
-                StatisticalClassifierData.COLUMN_KEY_DOWNDOWN + " TEXT, " +
-                StatisticalClassifierData.COLUMN_KEY_DOWNUP + " TEXT, " +
-                StatisticalClassifierData.COLUMN_POSITION + " TEXT, " +
-                StatisticalClassifierData.COLUMN_SIZE + " TEXT, " +
-                StatisticalClassifierData.COLUMN_ORIENTATION + " TEXT, " +
-                StatisticalClassifierData.COLUMN_PRESSURE + " TEXT");
+                StatisticalClassifierData.COLUMN_KEY_DOWNDOWN + " BLOB, " +
+                StatisticalClassifierData.COLUMN_KEY_DOWNUP + " BLOB, " +
+                StatisticalClassifierData.COLUMN_POSITION + " BLOB, " +
+                StatisticalClassifierData.COLUMN_SIZE + " BLOB, " +
+                StatisticalClassifierData.COLUMN_ORIENTATION + " BLOB, " +
+                StatisticalClassifierData.COLUMN_PRESSURE + " BLOB");
 
         sensorColumns = new String[sensorTypes.length];
         int i = 0;
@@ -45,7 +73,7 @@ public class StatisticalClassifierContract extends Contract {
             sensorColumns[i] = sensorType.replace('.', '_');
             sb.append(", ");
             sb.append(sensorColumns[i]);
-            sb.append(" TEXT");
+            sb.append(" BLOB");
             i++;
         }
         sb.append(")");
@@ -60,29 +88,113 @@ public class StatisticalClassifierContract extends Contract {
             statement.execute(SQL_CREATE_TEMPLATES);
             statement.execute(SQL_CREATE_TEMPLATE_STATUS);
             statement.close();
+            createIndexes(db);
+            createState(db);
         } catch (SQLException e) {
             e.printStackTrace();
         }
     }
 
     @Override
-    public void onUpgrade(Connection db, int oldVersion, int newVersion) {
-        try {
-            if (oldVersion < 2) {
-                Statement statement = db.createStatement();
-                statement.execute(SQL_CREATE_TEMPLATES);
-                statement.close();
+    public void onUpgrade(Connection db, int oldVersion, int newVersion) throws SQLException {
+        if (oldVersion < 2) {
+            Statement statement = db.createStatement();
+            statement.execute(SQL_CREATE_TEMPLATES);
+            statement.close();
+        }
+        if (oldVersion < 3) {
+            Statement statement = db.createStatement();
+            statement.execute(SQL_CREATE_TEMPLATE_STATUS);
+            statement.close();
+        }
+        if (oldVersion < 4) {
+            convertFeaturesToBlobs(db);
+        }
+        if (oldVersion < 5) {
+            createIndexes(db);
+        }
+        if (oldVersion < 6) {
+            createState(db);
+        }
+    }
+
+    /**
+     * Converts the feature columns of all rows from ';'-separated samples with '|'-separated values to FeatureBlobs.
+     * The columns keep their TEXT declaration, which doesn't matter because SQLite never converts BLOBs. All rows are
+     * converted in the upgrade transaction, so a failed conversion doesn't leave some of them converted.
+     */
+    private void convertFeaturesToBlobs(Connection db) throws SQLException {
+        List<String> columns = getFeatureColumns();
+        StringBuilder select = new StringBuilder("SELECT " + StatisticalClassifierData._ID);
+        StringBuilder update = new StringBuilder("UPDATE " + StatisticalClassifierData.TABLE_NAME + " SET ");
+        for (int i = 0; i < columns.size(); i++) {
+            select.append(", ").append(columns.get(i));
+            update.append(i > 0 ? ", " : "").append(columns.get(i)).append(" = ?");
+        }
+        select.append(" FROM ").append(StatisticalClassifierData.TABLE_NAME);
+        update.append(" WHERE ").append(StatisticalClassifierData._ID).append(" = ?");
+
+        try (Statement statement = db.createStatement();
+             ResultSet result = statement.executeQuery(select.toString());
+             PreparedStatement updateStatement = db.prepareStatement(update.toString())) {
+            while (result.next()) {
+                for (int i = 0; i < columns.size(); i++) {
+                    try {
+                        updateStatement.setBytes(i + 1, csvToBlob(result.getString(i + 2)));
+                    } catch (NumberFormatException e) {
+                        throw new SQLException(String.format("Row %d: Column %s can't be converted", result.getInt(1), columns.get(i)), e);
+                    }
+                }
+                updateStatement.setInt(columns.size() + 1, result.getInt(1));
+                updateStatement.addBatch();
             }
-            if (oldVersion < 3) {
-                Statement statement = db.createStatement();
-                statement.execute(SQL_CREATE_TEMPLATE_STATUS);
-                statement.close();
+            updateStatement.executeBatch();
+        }
+    }
+
+    private void createIndexes(Connection db) throws SQLException {
+        try (Statement statement = db.createStatement()) {
+            for (String sql : SQL_CREATE_INDEXES) {
+                statement.execute(sql);
+            }
+        }
+    }
+
+    /**
+     * Creates the state row and the triggers that increment its generation whenever a row of the data, templates or
+     * template status table is inserted, updated or deleted. The triggers run in the transaction of the change, so the
+     * generation is rolled back together with it, and IDs that are assigned again after deleting rows can't reproduce
+     * an earlier generation.
+     */
+    private void createState(Connection db) throws SQLException {
+        try (Statement statement = db.createStatement()) {
+            statement.execute(SQL_CREATE_STATE);
+            statement.execute(SQL_INSERT_STATE);
+            for (String table : new String[] { StatisticalClassifierData.TABLE_NAME, StatisticalClassifierTemplates.TABLE_NAME, StatisticalClassifierTemplateStatus.TABLE_NAME }) {
+                for (String event : new String[] { "INSERT", "UPDATE", "DELETE" }) {
+                    statement.execute("CREATE TRIGGER " + table + "_" + event.toLowerCase() + " AFTER " + event + " ON " + table + " BEGIN UPDATE " +
+                            StatisticalClassifierState.TABLE_NAME + " SET " + StatisticalClassifierState.COLUMN_GENERATION + " = " + StatisticalClassifierState.COLUMN_GENERATION + " + 1; END");
+                }
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
         }
     }
 
+    private static byte[] csvToBlob(String csv) {
+        List<double[]> samples = new ArrayList<>();
+        if (csv != null && !csv.isEmpty()) {
+            Pattern multiValueRegex = Pattern.compile(Pattern.quote(MULTI_VALUE_SEPARATOR));
+            for (String sample : CsvUtils.split(csv)) {
+                String[] values = multiValueRegex.split(sample);
+                double[] data = new double[values.length];
+                for (int i = 0; i < values.length; i++) {
+                    data[i] = Double.valueOf(values[i]);
+                }
+                samples.add(data);
+            }
+        }
+        return FeatureBlob.encode(samples);
+    }
+
     @Override
     public int getVersion() {
         return DATABASE_VERSION;
@@ -92,6 +204,21 @@ public class StatisticalClassifierContract extends Contract {
         return sensorColumns;
     }
 
+    /**
+     * @return the columns of StatisticalClassifierData that store a FeatureBlob
+     */
+    public List<String> getFeatureColumns() {
+        List<String> columns = new ArrayList<>(sensorColumns.length + 6);
+        columns.add(StatisticalClassifierData.COLUMN_KEY_DOWNDOWN);
+        columns.add(StatisticalClassifierData.COLUMN_KEY_DOWNUP);
+        columns.add(StatisticalClassifierData.COLUMN_SIZE);
+        columns.add(StatisticalClassifierData.COLUMN_ORIENTATION);
+        columns.add(StatisticalClassifierData.COLUMN_PRESSURE);
+        columns.add(StatisticalClassifierData.COLUMN_POSITION);
+        Collections.addAll(columns, sensorColumns);
+        return columns;
+    }
+
     public static abstract class StatisticalClassifierData {
         public static final String TABLE_NAME = "StatisticalClassifierData";
         public static final String _ID = "_id";
@@ -104,6 +231,7 @@ public class StatisticalClassifierContract extends Contract {
         public static final String COLUMN_SIZE = "size";            // n = k
         public static final String COLUMN_ORIENTATION = "orientation";            // n = k
         public static final String COLUMN_PRESSURE = "pressure";            // n = k
+        public static final String INDEX_CONTEXT = TABLE_NAME + "_context";
     }
 
     public static abstract class StatisticalClassifierTemplates {
@@ -114,6 +242,7 @@ public class StatisticalClassifierContract extends Contract {
         public static final String COLUMN_SCREEN_ORIENTATION = "screen_orientation";
         public static final String COLUMN_DATA_ID = "data_id";
         public static final String COLUMN_SCORE = "score";
+        public static final String INDEX_CONTEXT = TABLE_NAME + "_context";
     }
 
     public static abstract class StatisticalClassifierTemplateStatus {
@@ -121,6 +250,14 @@ public class StatisticalClassifierContract extends Contract {
         public static final String _ID = "_id";
         public static final String COLUMN_CONTEXT = "context";
         public static final String COLUMN_SCREEN_ORIENTATION = "screen_orientation";
+        public static final String INDEX_CONTEXT = TABLE_NAME + "_context";
+    }
+
+    public static abstract class StatisticalClassifierState {
+        public static final String TABLE_NAME = "StatisticalClassifierState";
+        public static final String _ID = "_id";
+        public static final String COLUMN_STORE_ID = "store_id";
+        public static final String COLUMN_GENERATION = "generation";
     }
 
     public static abstract class CaptureClassifierData {
@@ -0,0 +1,88 @@
+package at.jku.fim.phonykeyboard.latin.biometrics.data;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Forward-only cursor that reads rows from the live ResultSet as next() is called, instead of copying all rows like
+ * Cursor. Values are read with the primitive getters of the ResultSet, so rows aren't boxed. Use Cursor if the rows
+ * have to be counted or read more than once.
+ */
+// NOTE: Column indexes are 0-based, like in Cursor
+public class StreamingCursor implements AutoCloseable {
+    private final ResultSet result;
+    private final String[] cols;
+    private final Map<String, Integer> colIndexes;
+    private final Runnable onClose;
+
+    public StreamingCursor(ResultSet result) throws SQLException {
+        this(result, null);
+    }
+
+    /**
+     * @param onClose called after the result has been closed, or null
+     */
+    StreamingCursor(ResultSet result, Runnable onClose) throws SQLException {
+        this.result = result;
+        this.onClose = onClose;
+        cols = new String[result.getMetaData().getColumnCount()];
+        colIndexes = new HashMap<>(cols.length * 2);
+        for (int i = 0; i < cols.length; i++) {
+            cols[i] = result.getMetaData().getColumnName(i+1);
+            colIndexes.put(cols[i], i);
+        }
+    }
+
+    public int getColumnCount() {
+        return cols.length;
+    }
+
+    public int getColumnIndex(String columnName) throws SQLException {
+        Integer index = colIndexes.get(columnName);
+        if (index == null) {
+            throw new SQLException(String.format("Unknown column %s", columnName));
+        }
+        return index;
+    }
+
+    /**
+     * Moves to the next row, which has to be called once before reading the first row
+     * @return false if there are no more rows
+     */
+    public boolean next() throws SQLException {
+        return result.next();
+    }
+
+    public int getInt(int columnIndex) throws SQLException {
+        return result.getInt(columnIndex + 1);
+    }
+
+    public long getLong(int columnIndex) throws SQLException {
+        return result.getLong(columnIndex + 1);
+    }
+
+    public double getDouble(int columnIndex) throws SQLException {
+        return result.getDouble(columnIndex + 1);
+    }
+
+    public String getString(int columnIndex) throws SQLException {
+        return result.getString(columnIndex + 1);
+    }
+
+    public byte[] getBlob(int columnIndex) throws SQLException {
+        return result.getBytes(columnIndex + 1);
+    }
+
+    @Override
+    public void close() throws SQLException {
+        try {
+            result.close();
+        } finally {
+            if (onClose != null) {
+                onClose.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package at.jku.fim.phonykeyboard.latin.biometrics.data;
+
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Storage of the StatisticalClassifier's data rows, templates and template status, as defined by
+ * StatisticalClassifierContract. Features are stored in the order of StatisticalClassifierContract.getFeatureColumns().
+ */
+public interface TemplateStore {
+    /**
+     * Starts a batch of changes, which are applied by commit() or discarded by rollback()
+     */
+    void beginBatch() throws SQLException;
+    void commit() throws SQLException;
+    void rollback() throws SQLException;
+
+    /**
+     * @param features the samples of each feature
+     * @return the ID of the new data row
+     */
+    int insertData(long context, int screenOrientation, List<List<double[]>> features) throws SQLException;
+
+    /**
+     * Reads all data rows of a context in a screen orientation, in the order they were inserted
+     * @param usedFeatures whether each feature is read, the tensors of all other features have rows without samples
+     * @return a tensor of each feature, see AcquisitionSetBuilder for how empty features are treated
+     */
+    List<FeatureTensor> readData(long context, int screenOrientation, boolean[] usedFeatures) throws SQLException;
+
+    /**
+     * Reads the data rows referenced by the templates of a context in a screen orientation, ordered by their ID
+     * @param usedFeatures whether each feature is read, like in readData()
+     */
+    List<FeatureTensor> readTemplateData(long context, int screenOrientation, boolean[] usedFeatures) throws SQLException;
+
+    /**
+     * @return the ID of the new template
+     */
+    int insertTemplate(long context, int screenOrientation, int dataId, double score) throws SQLException;
+
+    /**
+     * @return the IDs of the templates of a context in a screen orientation, ordered by their score
+     */
+    int[] getTemplateIds(long context, int screenOrientation) throws SQLException;
+
+    /**
+     * Deletes all templates, of any context and screen orientation, except the given ones
+     */
+    void deleteTemplatesExcept(int[] templateIds) throws SQLException;
+
+    /**
+     * @return true if the templates of a context in a screen orientation have been selected
+     */
+    boolean isLocked(long context, int screenOrientation) throws SQLException;
+    void lock(long context, int screenOrientation) throws SQLException;
+
+    void clearData() throws SQLException;
+
+    /**
+     * Deletes all templates and template status
+     */
+    void clearTemplates() throws SQLException;
+
+    /**
+     * @return an ID chosen randomly when the store was created, which tells the generations of different stores apart
+     */
+    long getStoreId() throws SQLException;
+
+    /**
+     * @return a counter that is incremented whenever data rows, templates or template status are changed, so that
+     * copies of the stored template sets can be checked for being outdated together with getStoreId()
+     */
+    long getGeneration() throws SQLException;
+}
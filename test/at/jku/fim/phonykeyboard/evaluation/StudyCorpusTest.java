@@ -0,0 +1,208 @@
+package at.jku.fim.phonykeyboard.evaluation;
+
+import at.jku.fim.phonykeyboard.latin.biometrics.BiometricsManager;
+import at.jku.fim.phonykeyboard.latin.biometrics.BiometricsManagerImpl;
+import at.jku.fim.phonykeyboard.latin.biometrics.classifiers.Classifier;
+import at.jku.fim.phonykeyboard.latin.utils.Log;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class StudyCorpusTest {
+    static final int NUM_TEST_ROWS = 8;
+
+    private Classifier classifier;
+    private File directory;
+    private Set<String> usedTouchProperties, usedSensors;
+
+    /**
+     * Sets up the test fixture.
+     * (Called before every test case method.)
+     */
+    @Before
+    public void setUp() throws IOException {
+        BiometricsManagerImpl manager = new BiometricsManagerImpl();
+        manager.init();
+        classifier = manager.getClassifier();
+        classifier.onCreate();
+        usedTouchProperties = EvaluationParams.usedTouchProperties;
+        usedSensors = EvaluationParams.usedSensors;
+        Log.setSilent(true);
+
+        directory = Files.createTempDirectory("study").toFile();
+        writeStudyFile(new File(directory, "p1.csv"), BiometricsManager.SENSOR_TYPES, new Random(42));
+        writeStudyFile(new File(directory, "p1.cg.csv"), BiometricsManager.SENSOR_TYPES, new Random(43));
+    }
+
+    /**
+     * Tears down the test fixture.
+     * (Called after every test case method.)
+     */
+    @After
+    public void tearDown() {
+        classifier.onDestroy();
+        EvaluationParams.usedTouchProperties = usedTouchProperties;
+        EvaluationParams.usedSensors = usedSensors;
+        Log.setSilent(false);
+
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testCorpusMatchesCsvFile() {
+        StudyCorpus corpus = new StudyCorpus(directory.getPath());
+        assertEquals(1, corpus.getParticipantCount());
+        assertEquals(1, corpus.getControlGroupCount());
+
+        assertAcquisitionsEqual(readCsvFile(corpus.getParticipant(0)), corpus.getParticipant(0).getAcquisitions());
+
+        EvaluationParams.usedTouchProperties = new HashSet<>(Arrays.asList("size", "pressure"));
+        EvaluationParams.usedSensors = new HashSet<>(Arrays.asList(BiometricsManager.SENSOR_TYPES));
+        List<Acquisition> acquisitions = corpus.getParticipant(0).getAcquisitions();
+        assertAcquisitionsEqual(readCsvFile(corpus.getParticipant(0)), acquisitions);
+        assertEquals(NUM_TEST_ROWS - 1, acquisitions.size());   // The last row has no gyroscope data
+        assertSame(acquisitions, corpus.getParticipant(0).getAcquisitions());
+
+        EvaluationParams.usedSensors = new HashSet<>(Collections.singletonList("gravity"));
+        assertAcquisitionsEqual(readCsvFile(corpus.getControlGroup(0)), corpus.getControlGroup(0).getAcquisitions());
+    }
+
+    @Test
+    public void testCorpusFileMatchesCsvFile() throws IOException {
+        String csvFile = new File(directory, "p1.csv").getPath();
+        StatisticalClassifierEvaluation.readCsvFile(csvFile).write(CorpusFile.getFile(csvFile));
+        assertTrue(CorpusFile.isCurrent(csvFile));
+        assertFalse(CorpusFile.isCurrent(new File(directory, "p1.cg.csv").getPath()));
+
+        CorpusFile corpusFile = CorpusFile.read(CorpusFile.getFile(csvFile));
+        assertEquals(Arrays.asList(BiometricsManager.SENSOR_TYPES), corpusFile.getSensorTypes());
+        assertAcquisitionsEqual(StatisticalClassifierEvaluation.readCsvFile(csvFile).getAcquisitions(), corpusFile.getAcquisitions());
+
+        EvaluationParams.usedTouchProperties = new HashSet<>(Arrays.asList("position", "orientation"));
+        EvaluationParams.usedSensors = new HashSet<>(Arrays.asList("gravity", "gyroscope"));
+        List<Acquisition> expected = new StudyCorpus.StudyFile(csvFile).getAcquisitions();
+        CorpusFile.getFile(csvFile).delete();
+        assertAcquisitionsEqual(new StudyCorpus.StudyFile(csvFile).getAcquisitions(), expected);
+    }
+
+    @Test
+    public void testCorruptCorpusFileIsNotRead() throws IOException {
+        String csvFile = new File(directory, "p1.csv").getPath();
+        File file = CorpusFile.getFile(csvFile);
+        StatisticalClassifierEvaluation.readCsvFile(csvFile).write(file);
+        byte[] content = Files.readAllBytes(file.toPath());
+        List<Acquisition> expected = new StudyCorpus.StudyFile(csvFile).getAcquisitions();
+
+        byte[] invalidSensor = content.clone();
+        invalidSensor[5 * 4] = 99;
+        byte[] invalidCount = content.clone();
+        invalidCount[2 * 4 + 3] = 0x7F;
+        for (byte[] corrupt : new byte[][] { Arrays.copyOf(content, content.length - 1), Arrays.copyOf(content, 12), invalidSensor, invalidCount }) {
+            Files.write(file.toPath(), corrupt);
+            assertTrue(CorpusFile.isCurrent(csvFile));
+            assertNull(CorpusFile.read(file));
+            assertAcquisitionsEqual(expected, new StudyCorpus.StudyFile(csvFile).getAcquisitions());
+        }
+    }
+
+    @Test
+    public void testFilesAreLoadedWithTheirOwnColumns() throws IOException {
+        writeStudyFile(new File(directory, "p0.csv"), new String[] { "gravity", "gyroscope" }, new Random(44));
+        EvaluationParams.usedSensors = new HashSet<>(Arrays.asList(BiometricsManager.SENSOR_TYPES));
+        StudyCorpus corpus = new StudyCorpus(directory.getPath());
+        corpus.load();
+
+        assertEquals(2, corpus.getParticipantCount());
+        assertTrue(corpus.getParticipant(0).getPath().endsWith("p0.csv"));
+        assertEquals(2, corpus.getParticipant(0).getAcquisitions().get(0).getSensorCount());
+        assertEquals(BiometricsManager.SENSOR_TYPES.length, corpus.getParticipant(1).getAcquisitions().get(0).getSensorCount());
+        for (int i = 0; i < corpus.getParticipantCount(); i++) {
+            assertAcquisitionsEqual(readCsvFile(corpus.getParticipant(i)), corpus.getParticipant(i).getAcquisitions());
+        }
+    }
+
+    private List<Acquisition> readCsvFile(StudyCorpus.StudyFile file) {
+        List<Acquisition> acquisitions = new ArrayList<>();
+        StatisticalClassifierEvaluation.processCsvFile(file.getPath(), acquisitions::add);
+        classifier.clearData();
+        return acquisitions;
+    }
+
+    static void assertAcquisitionsEqual(List<Acquisition> expected, List<Acquisition> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Acquisition e = expected.get(i), a = actual.get(i);
+            assertEquals(e.getTryId(), a.getTryId());
+            assertEquals(e.getTimestamp(), a.getTimestamp());
+            assertEquals(e.getScreenOrientation(), a.getScreenOrientation());
+            assertEquals(e.getSituation(), a.getSituation());
+            assertEquals(e.getInputMethod(), a.getInputMethod());
+            assertEquals(e.getSensorCount(), a.getSensorCount());
+            assertEquals(e.getKeypresses().length, a.getKeypresses().length);
+            for (int k = 0; k < e.getKeypresses().length; k++) {
+                Keypress ek = e.getKeypresses()[k], ak = a.getKeypresses()[k];
+                assertEquals(ek.getX(), ak.getX(), 0);
+                assertEquals(ek.getY(), ak.getY(), 0);
+                assertEquals(ek.getSize(), ak.getSize(), 0);
+                assertEquals(ek.getOrientation(), ak.getOrientation(), 0);
+                assertEquals(ek.getPressure(), ak.getPressure(), 0);
+                assertEquals(ek.getDownDistance(), ak.getDownDistance(), 0);
+                assertEquals(ek.getUpDistance(), ak.getUpDistance(), 0);
+                assertEquals(ek.getSensorData().size(), ak.getSensorData().size());
+                for (int s = 0; s < ek.getSensorData().size(); s++) {
+                    assertArrayEquals(ek.getSensorData().get(s), ak.getSensorData().get(s), 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a study file with the given sensors, where the gyroscope of the last row has no data
+     */
+    static void writeStudyFile(File file, String[] sensors, Random random) throws IOException {
+        try (PrintWriter writer = new PrintWriter(file)) {
+            writer.print("\"_id\";\"timestamp\";\"screen_orientation\";\"key\";\"inputmethod\";\"situation\";\"key_downdown\";\"key_downup\";\"position\";\"size\";\"orientation\";\"pressure\"");
+            for (String sensor : sensors) {
+                writer.printf(";\"%s\"", sensor);
+            }
+            writer.println();
+
+            for (int row = 0; row < NUM_TEST_ROWS; row++) {
+                writer.printf("\"%d\";\"%d\";\"%d\";\"1;2;3;4;5;6\";\"0\";\"1\"", row, 1400000000000L + row * 60000, row % 2);
+                writer.printf(";\"%s\";\"%s\"", createValues(random, 5, 1), createValues(random, 6, 1));
+                writer.printf(";\"%s\"", createValues(random, 6, 2));
+                for (int i = 0; i < 3; i++) {
+                    writer.printf(";\"%s\"", createValues(random, 6, 1));
+                }
+                for (String sensor : sensors) {
+                    boolean missing = row == NUM_TEST_ROWS - 1 && sensor.equals("gyroscope");
+                    writer.printf(";\"%s\"", missing ? ";" : createValues(random, 5, 3));
+                }
+                writer.println();
+            }
+        }
+    }
+
+    private static String createValues(Random random, int count, int valueCount) {
+        StringBuilder values = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) values.append(';');
+            for (int v = 0; v < valueCount; v++) {
+                if (v > 0) values.append('|');
+                values.append(random.nextFloat() * 100);
+            }
+        }
+        return values.toString();
+    }
+}
@@ -0,0 +1,374 @@
+package at.jku.fim.phonykeyboard.evaluation;
+
+import at.jku.fim.phonykeyboard.latin.biometrics.BiometricsManager;
+import at.jku.fim.phonykeyboard.latin.utils.CsvUtils;
+import at.jku.fim.phonykeyboard.latin.utils.Log;
+import com.opencsv.CSVReader;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.*;
+import java.util.regex.Pattern;
+
+import static at.jku.fim.phonykeyboard.latin.biometrics.data.StatisticalClassifierContract.CaptureClassifierData;
+import static at.jku.fim.phonykeyboard.latin.biometrics.data.StatisticalClassifierContract.StatisticalClassifierData;
+import static org.junit.Assert.*;
+
+public class StudyRowParserTest {
+    private static final int NUM_TEST_ROWS = 500;
+    private static final String[] HEADER = { "_id", "timestamp", "screen_orientation", "key", "inputmethod", "situation", "key_downdown",
+            "key_downup", "position", "size", "orientation", "pressure", "gyroscope_uncalibrated", "gravity", "accelerometer", "gyroscope",
+            "rotation_vector", "linear_acceleration" };
+
+    private static final Pattern entryPattern = Pattern.compile(";");
+    private static final Pattern arrayPattern = Pattern.compile("\\|");
+
+    private Random random;
+    private Set<String> allTouchProperties, allSensors;
+
+    /**
+     * Sets up the test fixture.
+     * (Called before every test case method.)
+     */
+    @Before
+    public void setUp() {
+        random = new Random(42);
+        allTouchProperties = new HashSet<>(Arrays.asList(EvaluationParams.TOUCH_PROPERTIES));
+        allSensors = new HashSet<>(Arrays.asList(BiometricsManager.SENSOR_TYPES));
+        Log.setSilent(true);
+    }
+
+    /**
+     * Tears down the test fixture.
+     * (Called after every test case method.)
+     */
+    @After
+    public void tearDown() {
+        Log.setSilent(false);
+    }
+
+    @Test
+    public void testParseFloatMatchesFloatValueOf() {
+        String[] values = { "0", "-0", "0.0", "-0.000", "5.", ".5", "-.5", "007.250", "16777217", "16777219", "0.1", "3.4028235E38",
+                "1e-3", "+2", "NaN", "-Infinity", "1.4E-45", "0.000000000000000000001", "123456789012345678901234567890",
+                "1.00000005960464477539062500001", "628.1281767554635", "0.6682158565343952", "-9.80665" };
+        for (String value : values) {
+            assertFloatEquals(value);
+        }
+
+        for (int i = 0; i < 100000; i++) {
+            assertFloatEquals(createValue());
+        }
+    }
+
+    @Test
+    public void testSyntheticRowsMatchSplitParser() {
+        StudySchema schema = new StudySchema(HEADER);
+        StudyRowParser parser = new StudyRowParser(schema);
+        Set<String> someTouchProperties = new HashSet<>(Arrays.asList("size", "pressure"));
+        Set<String> someSensors = new HashSet<>(Arrays.asList("gravity", "gyroscope"));
+        for (int row = 0; row < NUM_TEST_ROWS; row++) {
+            String[] line = createLine(row);
+            assertLinesParsedEqually(schema, parser, line, allTouchProperties, allSensors);
+            assertLinesParsedEqually(schema, parser, line, someTouchProperties, someSensors);
+        }
+    }
+
+    @Test
+    public void testMalformedSensorDataIsMissing() {
+        StudySchema schema = new StudySchema(HEADER);
+        StudyRowParser parser = new StudyRowParser(schema);
+        Set<String> otherSensors = new HashSet<>(allSensors);
+        otherSensors.remove("gravity");
+        for (String field : new String[] { "1|2|3;4|5|6", "1|2|3;4|5;7|8|9;1|2|3;4|5|6", "1|2|3;4|x|6;7|8|9;1|2|3;4|5|6" }) {
+            String[] line = createLine(0);
+            line[Arrays.asList(HEADER).indexOf("gravity")] = field;
+            assertParseFails(parser, line, allTouchProperties, allSensors, false);
+            assertNotNull(parser.parse(line, allTouchProperties, otherSensors, false));
+
+            Acquisition acquisition = parser.parse(line, allTouchProperties, allSensors, true);
+            List<String> sensors = schema.getSensorTypes();
+            for (Keypress keypress : acquisition.getKeypresses()) {
+                for (int s = 0; s < sensors.size(); s++) {
+                    assertEquals(sensors.get(s).equals("gravity"), keypress.getSensorData().get(s) == null);
+                }
+            }
+            assertLinesParsedEqually(schema, parser, line, allTouchProperties, allSensors);
+        }
+    }
+
+    @Test
+    public void testStudyFilesMatchSplitParser() throws IOException {
+        // Study files contain personal data, so they are only compared if they are available locally
+        String directory = System.getProperty("study.dir");
+        Assume.assumeTrue(directory != null && new File(directory).isDirectory());
+
+        String[] csvFiles = new File(directory).list((dir, name) -> name.endsWith(".csv"));
+        Assume.assumeTrue(csvFiles.length > 0);
+        for (String csvFile : csvFiles) {
+            try (CSVReader reader = new CSVReader(new BufferedReader(new FileReader(new File(directory, csvFile))), CsvUtils.COMMA, CsvUtils.QUOTE)) {
+                StudySchema schema = new StudySchema(reader.readNext());
+                StudyRowParser parser = new StudyRowParser(schema);
+                for (String[] line = reader.readNext(); line != null; line = reader.readNext()) {
+                    if (line.length < HEADER.length / 2) continue;
+                    assertLinesParsedEqually(schema, parser, line, EvaluationParams.usedTouchProperties, EvaluationParams.usedSensors);
+                }
+            }
+        }
+    }
+
+    private void assertFloatEquals(String value) {
+        assertEquals(value, Float.floatToIntBits(Float.valueOf(value)), Float.floatToIntBits(StudyRowParser.parseFloat(value, 0, value.length())));
+    }
+
+    private void assertLinesParsedEqually(StudySchema schema, StudyRowParser parser, String[] line, Set<String> touchProperties, Set<String> sensors) {
+        for (boolean keepMissingSensors : new boolean[] { false, true }) {
+            Acquisition expected;
+            try {
+                expected = parseLineWithSplit(schema, line, touchProperties, sensors, keepMissingSensors);
+            } catch (RuntimeException e) {
+                assertParseFails(parser, line, touchProperties, sensors, keepMissingSensors);    // Malformed values have to fail as well
+                continue;
+            }
+
+            Acquisition actual = parser.parse(line, touchProperties, sensors, keepMissingSensors);
+            if (expected == null) {
+                assertNull(actual);
+            } else {
+                StudyCorpusTest.assertAcquisitionsEqual(Collections.singletonList(expected), Collections.singletonList(actual));
+            }
+        }
+    }
+
+    private void assertParseFails(StudyRowParser parser, String[] line, Set<String> touchProperties, Set<String> sensors, boolean keepMissingSensors) {
+        try {
+            parser.parse(line, touchProperties, sensors, keepMissingSensors);
+        } catch (RuntimeException e) {
+            return;
+        }
+        fail(String.format("ID %s: Line was parsed although it is malformed", line[0]));
+    }
+
+    /**
+     * Creates a line of a study file, some of which have too few entries or a sensor without data
+     */
+    private String[] createLine(int row) {
+        String[] line = new String[HEADER.length];
+        line[0] = String.valueOf(row);
+        line[1] = String.valueOf(1400000000000L + row * 60000L);
+        line[2] = String.valueOf(row % 2);
+        line[3] = "1;2;3;4;5;6";
+        line[4] = String.valueOf(random.nextInt(3));
+        line[5] = random.nextInt(10) == 0 ? "" : String.valueOf(random.nextInt(4));
+        line[6] = createEntries(row % 37 == 1 ? 4 : 5, 1);
+        line[7] = createEntries(6, 1);
+        line[8] = createEntries(6, 2);
+        for (int i = 9; i < 12; i++) {
+            line[i] = createEntries(row % 41 == 2 && i == 10 ? 7 : 6, 1);
+        }
+        for (int i = 12; i < HEADER.length; i++) {
+            line[i] = createEntries(5, 3);
+        }
+        if (row % 23 == 3) {
+            line[12 + random.nextInt(HEADER.length - 12)] = ";;;;";
+        } else if (row % 29 == 4) {
+            line[12 + random.nextInt(HEADER.length - 12)] = "";
+        }
+        if (row % 31 == 5) {
+            line[7] += ";";   // Trailing empty entries don't count
+        }
+        return line;
+    }
+
+    private String createEntries(int count, int valueCount) {
+        StringBuilder entries = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) entries.append(';');
+            for (int v = 0; v < valueCount; v++) {
+                if (v > 0) entries.append('|');
+                boolean empty = random.nextInt(20) == 0 && (valueCount == 1 || (v > 0 && v < valueCount - 1));    // Empty values are 0
+                entries.append(empty ? "" : createValue());
+            }
+            if (valueCount > 1 && random.nextInt(20) == 0) {
+                entries.append("|0");   // Values after the used ones are ignored
+            }
+        }
+        return entries.toString();
+    }
+
+    /**
+     * Creates a number in one of the formats of the study files, i.e. how Android and Java print them
+     */
+    private String createValue() {
+        double value = random.nextGaussian() * Math.pow(10, random.nextInt(9) - 4);
+        switch (random.nextInt(6)) {
+            case 0:
+                return String.valueOf((int)value);
+            case 1:
+                return String.format(Locale.US, "%.3f", value);
+            case 2:
+                return String.valueOf(value);
+            case 3:
+                return String.valueOf((float)value);
+            case 4:
+                return String.format(Locale.US, "%.7g", value);
+            default:
+                return String.format(Locale.US, "%." + random.nextInt(20) + "f", value);
+        }
+    }
+
+    /**
+     * The parser used before StudyRowParser, which splits the fields into strings. With keepMissingSensors, malformed
+     * sensor data is treated as missing like StudyRowParser does.
+     */
+    private static Acquisition parseLineWithSplit(StudySchema schema, String[] line, Set<String> touchProperties, Set<String> sensorTypes, boolean keepMissingSensors) {
+        int id = toInt(line[schema.getIndex(StatisticalClassifierData._ID)]);
+        long timestamp = toLong(line[schema.getIndex(CaptureClassifierData.COLUMN_TIMESTAMP)]);
+        int screenOrientation = toInt(line[schema.getIndex(StatisticalClassifierData.COLUMN_SCREEN_ORIENTATION)]);
+
+        String[] key = new String[0];
+        int inputmethod = -1;
+        int situation = -1;
+        if (schema.hasColumn(CaptureClassifierData.COLUMN_KEY)) {
+            // Support both old and new study files
+            key = entryPattern.split(line[schema.getIndex(CaptureClassifierData.COLUMN_KEY)]);
+            inputmethod = toInt(line[schema.getIndex(CaptureClassifierData.COLUMN_INPUTMETHOD)]);
+            situation = toInt(line[schema.getIndex(CaptureClassifierData.COLUMN_SITUATION)]);
+        }
+
+        String[] downDistances = entryPattern.split(line[schema.getIndex(StatisticalClassifierData.COLUMN_KEY_DOWNDOWN)]);
+        String[] upDistances = entryPattern.split(line[schema.getIndex(StatisticalClassifierData.COLUMN_KEY_DOWNUP)]);
+        String[] positions = entryPattern.split(line[schema.getIndex(StatisticalClassifierData.COLUMN_POSITION)]);
+        String[] sizes = entryPattern.split(line[schema.getIndex(StatisticalClassifierData.COLUMN_SIZE)]);
+        String[] orientations = entryPattern.split(line[schema.getIndex(StatisticalClassifierData.COLUMN_ORIENTATION)]);
+        String[] pressures = entryPattern.split(line[schema.getIndex(StatisticalClassifierData.COLUMN_PRESSURE)]);
+
+        List<String[]> sensors = new ArrayList<>();
+        for (String sensor : BiometricsManager.SENSOR_TYPES) {
+            if (sensorTypes.contains(sensor) && schema.hasColumn(sensor)) {
+                String value = line[schema.getIndex(sensor)];
+                String[] entries = keepMissingSensors && value.isEmpty() ? new String[0] : entryPattern.split(value);
+                if (keepMissingSensors && !isWellFormed(entries)) {
+                    entries = new String[0];
+                }
+                sensors.add(entries);
+            }
+        }
+
+        if (upDistances.length != StatisticalClassifierEvaluation.NUM_EVALUATION_KEYPRESSES || downDistances.length != upDistances.length - 1) {
+            return null;
+        }
+        if (upDistances.length != positions.length || positions.length != sizes.length || sizes.length != orientations.length
+                || orientations.length != pressures.length) {
+            return null;
+        }
+
+        Keypress[] keypresses = new Keypress[upDistances.length];
+        for (int i = 0; i < upDistances.length; i++) {
+            float downDistance = 0;
+            if (i > 0) {
+                downDistance = toFloat(downDistances[i-1]);
+            }
+            float upDistance = toFloat(upDistances[i]);
+            float[] position;
+            if (touchProperties.contains("position")) {
+                position = toFloatArray(positions[i], 0);
+            } else {
+                position = new float[] { 0f, 0f };
+            }
+            float size;
+            if (touchProperties.contains("size")) {
+                size = toFloat(sizes[i]);
+            } else {
+                size = 0;
+            }
+            float orientation;
+            if (touchProperties.contains("orientation")) {
+                orientation = toFloat(orientations[i]);
+            } else {
+                orientation = 0;
+            }
+            float pressure;
+            if (touchProperties.contains("pressure")) {
+                pressure = toFloat(pressures[i]);
+            } else {
+                pressure = 0;
+            }
+            keypresses[i] = new Keypress(position[0], position[1], size, orientation, pressure, downDistance, upDistance, sensors.size());
+
+            if (i > 0) {
+                for (String[] sensor : sensors) {
+                    if (sensor.length > 0) {
+                        keypresses[i].addSensorData(toFloatArray(sensor[i - 1], 3, true));
+                    } else if (keepMissingSensors) {
+                        keypresses[i].addSensorData(null);
+                    } else {
+                        return null;
+                    }
+                }
+            }
+        }
+
+        // Add zero sensor data to first keypress, because no absolute value is available from reports
+        for (int i = 0; i < sensors.size(); i++) {
+            float[] data = keypresses[1].getSensorData().get(i);
+            keypresses[0].addSensorData(data != null ? new float[data.length] : null);
+        }
+
+        return new Acquisition(id, timestamp, screenOrientation, situation, inputmethod, keypresses, sensors.size());
+    }
+
+
+
+    private static boolean isWellFormed(String[] sensor) {
+        try {
+            for (int i = 0; i < sensor.length && i < StatisticalClassifierEvaluation.NUM_EVALUATION_KEYPRESSES - 1; i++) {
+                toFloatArray(sensor[i], 3, true);
+            }
+            return sensor.length == 0 || sensor.length >= StatisticalClassifierEvaluation.NUM_EVALUATION_KEYPRESSES - 1;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    private static int toInt(String value) {
+        if (value.isEmpty()) {
+            return 0;
+        }
+        return Integer.valueOf(value);
+    }
+
+    private static long toLong(String value) {
+        if (value.isEmpty()) {
+            return 0;
+        }
+        return Long.valueOf(value);
+    }
+
+    private static float toFloat(String value) {
+        if (value.isEmpty()) {
+            return 0;
+        }
+        return Float.valueOf(value);
+    }
+
+    private static float[] toFloatArray(String value, int limit, boolean allowRounding) {
+        String[] values = arrayPattern.split(value);
+        int max = limit <= 0 ? values.length : limit;
+        float[] floats = new float[max];
+        for (int i = 0; i < limit; i++) {
+            floats[i] = toFloat(values[i]);
+        }
+        return floats;
+    }
+
+    private static float[] toFloatArray(String value, int limit) {
+        return toFloatArray(value, limit, false);
+    }
+}
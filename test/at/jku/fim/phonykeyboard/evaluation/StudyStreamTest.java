@@ -0,0 +1,140 @@
+package at.jku.fim.phonykeyboard.evaluation;
+
+import at.jku.fim.phonykeyboard.latin.biometrics.BiometricsManager;
+import at.jku.fim.phonykeyboard.latin.utils.Log;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class StudyStreamTest {
+    private File directory;
+    private Set<String> usedTouchProperties, usedSensors;
+
+    /**
+     * Sets up the test fixture.
+     * (Called before every test case method.)
+     */
+    @Before
+    public void setUp() throws IOException {
+        usedTouchProperties = EvaluationParams.usedTouchProperties;
+        usedSensors = EvaluationParams.usedSensors;
+        Log.setSilent(true);
+
+        directory = Files.createTempDirectory("study").toFile();
+        StudyCorpusTest.writeStudyFile(new File(directory, "p1.csv"), BiometricsManager.SENSOR_TYPES, new Random(42));
+        StudyCorpusTest.writeStudyFile(new File(directory, "p0.csv"), new String[] { "gravity", "gyroscope" }, new Random(43));
+    }
+
+    /**
+     * Tears down the test fixture.
+     * (Called after every test case method.)
+     */
+    @After
+    public void tearDown() {
+        EvaluationParams.usedTouchProperties = usedTouchProperties;
+        EvaluationParams.usedSensors = usedSensors;
+        Log.setSilent(false);
+
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testStreamMatchesCorpus() throws IOException {
+        EvaluationParams.usedTouchProperties = new HashSet<>(Arrays.asList("size", "pressure"));
+        EvaluationParams.usedSensors = new HashSet<>(Collections.singletonList("gravity"));
+        StudyCorpus corpus = new StudyCorpus(directory.getPath());
+        List<Acquisition> expected = new ArrayList<>(corpus.getParticipant(0).getAcquisitions());
+        expected.addAll(corpus.getParticipant(1).getAcquisitions());
+
+        try (Stream<Acquisition> acquisitions = StudyStream.of(corpus.getParticipant(1).getPath())) {
+            StudyCorpusTest.assertAcquisitionsEqual(corpus.getParticipant(1).getAcquisitions(), acquisitions.collect(Collectors.toList()));
+        }
+        try (Stream<Acquisition> acquisitions = StudyStream.of(directory.getPath())) {
+            StudyCorpusTest.assertAcquisitionsEqual(expected, acquisitions.collect(Collectors.toList()));
+        }
+
+        // Binary files are streamed instead of their study file
+        String csvFile = corpus.getParticipant(0).getPath();
+        StatisticalClassifierEvaluation.readCsvFile(csvFile).write(CorpusFile.getFile(csvFile));
+        try (Stream<Acquisition> acquisitions = StudyStream.of(directory.getPath())) {
+            StudyCorpusTest.assertAcquisitionsEqual(expected, acquisitions.collect(Collectors.toList()));
+        }
+    }
+
+    @Test
+    public void testStreamIsParsedLazily() {
+        try (Stream<Acquisition> acquisitions = StudyStream.of(directory.getPath())) {
+            Iterator<Acquisition> iterator = acquisitions.iterator();
+            assertEquals(0, iterator.next().getTryId());
+            assertEquals(1, iterator.next().getTryId());
+        }
+
+        // The last row has no gyroscope data
+        EvaluationParams.usedSensors = new HashSet<>(Collections.singletonList("gyroscope"));
+        try (Stream<Acquisition> acquisitions = StudyStream.of(directory.getPath())) {
+            assertEquals(2 * (StudyCorpusTest.NUM_TEST_ROWS - 1), acquisitions.count());
+        }
+    }
+
+    @Test
+    public void testCorpusFileIsDecodedLikeStudyFile() throws IOException {
+        String csvFile = new File(directory, "p0.csv").getPath();
+        StatisticalClassifierEvaluation.readCsvFile(csvFile).write(CorpusFile.getFile(csvFile));
+
+        // Rows without data for a selected sensor are skipped in the binary file too
+        EvaluationParams.usedSensors = new HashSet<>(Collections.singletonList("gyroscope"));
+        List<Acquisition> expected = new StudyCorpus.StudyFile(csvFile).getAcquisitions(EvaluationParams.usedTouchProperties, EvaluationParams.usedSensors);
+        try (Stream<Acquisition> acquisitions = StudyStream.of(directory.getPath())) {
+            assertEquals(2 * (StudyCorpusTest.NUM_TEST_ROWS - 1), acquisitions.count());
+        }
+        try (Stream<Acquisition> acquisitions = StudyStream.of(csvFile)) {
+            StudyCorpusTest.assertAcquisitionsEqual(expected, acquisitions.collect(Collectors.toList()));
+        }
+
+        // A corrupt binary file is parsed from its study file instead
+        Files.write(CorpusFile.getFile(csvFile).toPath(), new byte[12]);
+        assertTrue(CorpusFile.isCurrent(csvFile));
+        try (Stream<Acquisition> acquisitions = StudyStream.of(csvFile)) {
+            StudyCorpusTest.assertAcquisitionsEqual(expected, acquisitions.collect(Collectors.toList()));
+        }
+    }
+
+    @Test
+    public void testShuffleKeepsAllAcquisitions() {
+        List<Integer> ordered = getTryIds(StudyStream.of(directory.getPath()));
+        assertEquals(2 * StudyCorpusTest.NUM_TEST_ROWS, ordered.size());
+        assertEquals(ordered, getTryIds(StudyStream.shuffle(StudyStream.of(directory.getPath()), 1, new Random(1))));
+
+        for (int bufferSize : new int[] { 2, 5, ordered.size(), 100 }) {
+            List<Integer> shuffled = getTryIds(StudyStream.shuffle(StudyStream.of(directory.getPath()), bufferSize, new Random(bufferSize)));
+            assertNotEquals(ordered, shuffled);
+            Collections.sort(shuffled);
+            List<Integer> sorted = new ArrayList<>(ordered);
+            Collections.sort(sorted);
+            assertEquals(sorted, shuffled);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testShuffleNeedsBuffer() {
+        StudyStream.shuffle(Stream.empty(), 0, new Random());
+    }
+
+    private static List<Integer> getTryIds(Stream<Acquisition> acquisitions) {
+        try (Stream<Acquisition> stream = acquisitions) {
+            return stream.map(Acquisition::getTryId).collect(Collectors.toList());
+        }
+    }
+}
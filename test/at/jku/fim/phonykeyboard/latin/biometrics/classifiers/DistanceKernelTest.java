@@ -0,0 +1,97 @@
+package at.jku.fim.phonykeyboard.latin.biometrics.classifiers;
+
+import org.apache.commons.math3.ml.distance.DistanceMeasure;
+import org.apache.commons.math3.ml.distance.ManhattanDistance;
+import org.junit.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class DistanceKernelTest {
+    private static final int NUM_TEST_SAMPLES = 30, MAX_VALUES = 5;
+
+    private Random random;
+
+    /**
+     * Sets up the test fixture.
+     * (Called before every test case method.)
+     */
+    @Before
+    public void setUp() {
+        random = new Random(42);
+    }
+
+    @Test
+    public void testForFunction() {
+        assertSame(DistanceKernel.MANHATTAN, DistanceKernel.forFunction(0));
+        assertSame(DistanceKernel.SQUARED_EUCLIDEAN, DistanceKernel.forFunction(1));
+        assertSame(DistanceKernel.MANHATTAN, DistanceKernel.forFunction(-1));
+    }
+
+    @Test
+    public void testManhattanBitCompatible() {
+        assertBitCompatible(DistanceKernel.MANHATTAN, new ManhattanDistance());
+    }
+
+    @Test
+    public void testSquaredEuclideanBitCompatible() {
+        assertBitCompatible(DistanceKernel.SQUARED_EUCLIDEAN, (k1, k2) -> {
+            double sum = 0;
+            for (int i = 0; i < k1.length; i++) {
+                final double dp = k1[i] - k2[i];
+                sum += dp * dp;
+            }
+            return sum;
+        });
+    }
+
+    @Test
+    public void testNoSamples() {
+        assertTrue(Double.isNaN(DistanceKernel.MANHATTAN.distance(new double[0], 0, new double[0], 0, 0, 1)));
+        assertTrue(Double.isNaN(DistanceKernel.SQUARED_EUCLIDEAN.distance(new double[0], 0, new double[0], 0, 0, 1)));
+    }
+
+    /**
+     * Compares the kernel with the per-sample calculation it replaced, for blocks at different offsets
+     */
+    private void assertBitCompatible(DistanceKernel kernel, DistanceMeasure measure) {
+        for (int values = 1; values <= MAX_VALUES; values++) {
+            for (int samples = 1; samples <= NUM_TEST_SAMPLES; samples++) {
+                double[][] f1 = createSamples(samples, values);
+                double[][] f2 = createSamples(samples, values);
+
+                double expected = 0;
+                for (int k = 0; k < samples; k++) {
+                    expected += measure.compute(f1[k], f2[k]);
+                }
+                expected /= samples;
+
+                int offset1 = random.nextInt(10), offset2 = random.nextInt(10);
+                double actual = kernel.distance(flatten(f1, offset1), offset1, flatten(f2, offset2), offset2, samples, values);
+                assertEquals(Double.doubleToLongBits(expected), Double.doubleToLongBits(actual));
+            }
+        }
+    }
+
+    private double[][] createSamples(int samples, int values) {
+        double[][] f = new double[samples][values];
+        for (double[] sample : f) {
+            for (int i = 0; i < values; i++) {
+                sample[i] = (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(8));
+            }
+        }
+        return f;
+    }
+
+    private double[] flatten(double[][] f, int offset) {
+        double[] flat = new double[offset + f.length * f[0].length];
+        Arrays.fill(flat, Double.NaN);  // Values outside the block must not be read
+        for (double[] sample : f) {
+            System.arraycopy(sample, 0, flat, offset, sample.length);
+            offset += sample.length;
+        }
+        return flat;
+    }
+}
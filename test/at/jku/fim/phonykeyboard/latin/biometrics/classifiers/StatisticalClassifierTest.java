@@ -5,10 +5,21 @@ import at.jku.fim.phonykeyboard.evaluation.Keypress;
 import at.jku.fim.phonykeyboard.latin.biometrics.BiometricsEntry;
 import at.jku.fim.phonykeyboard.latin.biometrics.BiometricsManager;
 import at.jku.fim.phonykeyboard.latin.biometrics.BiometricsManagerImpl;
+import at.jku.fim.phonykeyboard.latin.biometrics.data.FeatureTensor;
+import at.jku.fim.phonykeyboard.latin.biometrics.data.JdbcTemplateStore;
+import at.jku.fim.phonykeyboard.latin.biometrics.data.StatisticalClassifierContract;
+import com.sun.management.ThreadMXBean;
 import org.junit.*;
 
-import java.lang.reflect.Field;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.*;
 
 import static org.junit.Assert.*;
 
@@ -18,6 +29,7 @@ public class StatisticalClassifierTest {
 
     private BiometricsManagerImpl manager;
     private StatisticalClassifier classifier;
+    private Set<String> usedSensors;
 
     /**
      * Sets up the test fixture.
@@ -34,6 +46,10 @@ public class StatisticalClassifierTest {
         EvaluationParams.templateSelectionFunction = 0;
         EvaluationParams.distanceFunction = 0;
         EvaluationParams.classificationFunction = 2;
+        EvaluationParams.parallelFeatures = false;
+        EvaluationParams.inMemoryTemplateStore = true;
+        usedSensors = EvaluationParams.usedSensors;
+        EvaluationParams.usedSensors = new HashSet<>(Arrays.asList(BiometricsManager.SENSOR_TYPES));   // The test inputs contain all sensors
 
         classifier = (StatisticalClassifier)manager.getClassifier();
         classifier.onCreate();
@@ -46,6 +62,7 @@ public class StatisticalClassifierTest {
     @After
     public void tearDown() {
         classifier.onDestroy();
+        EvaluationParams.usedSensors = usedSensors;
     }
 
     @Test
@@ -176,6 +193,454 @@ public class StatisticalClassifierTest {
         }
     }
 
+    @Test
+    public void testAuthenticationAllocationFree() {
+        ThreadMXBean threadBean = (ThreadMXBean)ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+        long threadId = Thread.currentThread().getId();
+
+        for (int i = 0; i < EvaluationParams.acquisitionSetSize; i++) {
+            calcScore(i * 1000, 0, createRandomKeypresses());
+        }
+        for (int classificationFunction = 0; classificationFunction <= 3; classificationFunction++) {
+            EvaluationParams.classificationFunction = classificationFunction;
+            startInput(0, 0, createRandomKeypresses());
+
+            double expected = classifier.getSession().calcAuthentication();
+            for (int i = 0; i < 10000; i++) {  // Let the JIT compile the scoring path
+                classifier.getSession().calcAuthentication();
+            }
+
+            long overhead = threadBean.getThreadAllocatedBytes(threadId);
+            overhead = threadBean.getThreadAllocatedBytes(threadId) - overhead;
+            long allocated = threadBean.getThreadAllocatedBytes(threadId);
+            double score = 0;
+            for (int i = 0; i < 1000; i++) {
+                score = classifier.getSession().calcAuthentication();
+            }
+            allocated = threadBean.getThreadAllocatedBytes(threadId) - allocated - overhead;
+
+            assertEquals(expected, score, 0);
+            assertEquals("Bytes allocated by classification function " + classificationFunction, 0, allocated);
+            classifier.onFinishInput(true, true);
+        }
+    }
+
+    @Test
+    public void testDecisionMatchesScore() {
+        for (int i = 0; i < EvaluationParams.acquisitionSetSize; i++) {
+            calcScore(i * 1000, 0, createRandomKeypresses());
+        }
+
+        Keypress[] keypresses = createRandomKeypresses();
+        for (int classificationFunction = 0; classificationFunction <= 3; classificationFunction++) {
+            EvaluationParams.classificationFunction = classificationFunction;
+            startInput(0, 0, keypresses);
+            double score = classifier.getScore(true);
+
+            for (double threshold : new double[] { score / 10, score, score * 10 }) {
+                startInput(0, 0, keypresses);
+                ThresholdDecision decision = classifier.getDecision(threshold, true);
+                assertEquals(score < threshold, decision.isAccepted());
+                if (decision.isRejectedEarly()) {
+                    assertTrue(Double.isNaN(decision.getScore()));
+                } else {
+                    assertEquals(score, decision.getScore(), 0);
+                }
+            }
+
+            startInput(0, 0, keypresses);
+            ThresholdDecision decision = classifier.getDecision(0, true);
+            assertFalse(decision.isAccepted());
+            if (classificationFunction != 0) {  // MIN needs all templates of the first feature
+                assertEquals(BiometricsManager.SENSOR_TYPES.length + 5, decision.getSkippedFeatures());
+            }
+            assertTrue(decision.isRejectedEarly());
+        }
+    }
+
+    @Test
+    public void testBatchScoresMatchSingleScores() {
+        for (int i = 0; i < EvaluationParams.acquisitionSetSize; i++) {
+            calcScore(i * 1000, 0, createRandomKeypresses());
+        }
+
+        for (int classificationFunction = 0; classificationFunction <= 3; classificationFunction++) {
+            EvaluationParams.classificationFunction = classificationFunction;
+            List<BiometricsEntry[]> inputs = new ArrayList<>();
+            double[] expected = new double[20];
+            for (int i = 0; i < expected.length; i++) {
+                Keypress[] keypresses = createRandomKeypresses();
+                startInput(i * 1000, 0, keypresses);
+                expected[i] = classifier.getScore(true);
+                inputs.add(createEntries(i * 1000, 0, keypresses));
+            }
+
+            assertArrayEquals(expected, classifier.getScores(manager.getBiometricsContext(), inputs), 0);
+            assertArrayEquals(expected, classifier.getScores(manager.getBiometricsContext(), inputs, true), 0);
+        }
+    }
+
+    @Test
+    public void testParallelFeaturesMatchSequential() {
+        EvaluationParams.acquisitionSetSize = 61;
+        EvaluationParams.templateSetSize = 60;
+        EvaluationParams.templateSelectionFunction = 1;
+
+        List<Keypress[]> inputs = new ArrayList<>();
+        for (int i = 0; i < EvaluationParams.acquisitionSetSize + 5; i++) {
+            inputs.add(createRandomKeypresses());
+        }
+
+        // Locking the selected templates makes the next input recalculate all distances
+        double[] sequential = new double[inputs.size()];
+        for (int i = 0; i < inputs.size(); i++) {
+            sequential[i] = calcScore(i * 1000, 0, inputs.get(i));
+        }
+        double[] sequentialVariabilities = getVariabilities();
+        classifier.clearData();
+
+        EvaluationParams.parallelFeatures = true;
+        double[] parallel = new double[inputs.size()];
+        for (int i = 0; i < inputs.size(); i++) {
+            parallel[i] = calcScore(i * 1000, 0, inputs.get(i));
+        }
+        assertArrayEquals(sequential, parallel, 0);
+        assertArrayEquals(sequentialVariabilities, getVariabilities(), 0);
+    }
+
+    @Test
+    public void testConcurrentSessionsMatchSequential() throws Exception {
+        for (int i = 0; i < EvaluationParams.acquisitionSetSize; i++) {
+            calcScore(i * 1000, 0, createRandomKeypresses());
+        }
+
+        List<BiometricsEntry[]> inputs = new ArrayList<>();
+        double[] expected = new double[40];
+        for (int i = 0; i < expected.length; i++) {
+            Keypress[] keypresses = createRandomKeypresses();
+            startInput(i * 1000, 0, keypresses);
+            expected[i] = classifier.getScore(true);
+            inputs.add(createEntries(i * 1000, 0, keypresses));
+        }
+
+        TemplateModel model = classifier.getModel();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Double>> scores = new ArrayList<>(inputs.size());
+            for (BiometricsEntry[] input : inputs) {
+                scores.add(executor.submit(() -> {
+                    InputSession session = model.newSession();
+                    for (BiometricsEntry entry : input) {
+                        session.addEntry(entry);
+                    }
+                    return session.getScore();
+                }));
+            }
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals(expected[i], scores.get(i).get(), 0);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testSessionsEnrollToTheirTemplateSets() {
+        EvaluationParams.enableTemplateSelection = false;
+        for (int i = 0; i < 3; i++) {
+            // Starting the session of the second user doesn't redirect the input of the first one
+            InputSession first = classifier.newSession(1, 0), second = classifier.newSession(2, 1);
+            for (BiometricsEntry entry : createEntries(i * 1000, 0, createRandomKeypresses())) {
+                first.addEntry(entry);
+            }
+            classifier.enroll(first);
+            if (i == 0) {
+                for (BiometricsEntry entry : createEntries(i * 1000, 1, createRandomKeypresses())) {
+                    second.addEntry(entry);
+                }
+                classifier.enroll(second);
+            }
+        }
+
+        assertEquals(3, classifier.loadModel(1, 0).getTemplateCount());
+        assertEquals(1, classifier.loadModel(2, 1).getTemplateCount());
+        assertEquals(0, classifier.loadModel(2, 0).getTemplateCount());
+        classifier.getTemplateCache().clear();
+        assertEquals(3, classifier.loadModel(1, 0).getTemplateCount());
+        assertEquals(1, classifier.loadModel(2, 1).getTemplateCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testModelSessionsCantEnroll() {
+        classifier.enroll(classifier.loadModel(1, 0).newSession());
+    }
+
+    @Test
+    public void testLockDoesntCarryOverToOtherRuns() {
+        EvaluationParams.enableTemplateSelection = false;
+        List<Keypress[]> inputs = new ArrayList<>();
+        for (int i = 0; i <= EvaluationParams.acquisitionSetSize; i++) {
+            inputs.add(createRandomKeypresses());
+        }
+        double[] expected = new double[inputs.size()];
+        for (int i = 0; i < inputs.size(); i++) {
+            expected[i] = calcScore(i * 1000, 0, inputs.get(i));
+        }
+        classifier.clearData();
+
+        // Lock the selected templates of a run with template selection
+        EvaluationParams.enableTemplateSelection = true;
+        EvaluationParams.templateSelectionFunction = 1;
+        EvaluationParams.templateSetSize = 7;
+        for (int i = 0; i <= EvaluationParams.acquisitionSetSize; i++) {
+            calcScore(i * 1000, 0, createRandomKeypresses());
+        }
+        TemplateModel locked = classifier.getModel();
+        assertEquals(EvaluationParams.templateSetSize, locked.getTemplateCount());
+        assertTrue(locked.isComplete());
+        classifier.clearData();
+
+        // Without template selection, inputs are only scored once there are enough templates
+        EvaluationParams.enableTemplateSelection = false;
+        double[] scores = new double[inputs.size()];
+        for (int i = 0; i < inputs.size(); i++) {
+            scores[i] = calcScore(i * 1000, 0, inputs.get(i));
+        }
+        assertArrayEquals(expected, scores, 0);
+        for (int i = 0; i < EvaluationParams.acquisitionSetSize; i++) {
+            assertEquals(BiometricsManager.SCORE_NOT_ENOUGH_DATA, scores[i], 0);
+        }
+        assertNotEquals(BiometricsManager.SCORE_NOT_ENOUGH_DATA, scores[EvaluationParams.acquisitionSetSize], 0);
+    }
+
+    @Test
+    public void testMemoryStoreMatchesDatabase() {
+        EvaluationParams.templateSelectionFunction = 1;
+        EvaluationParams.templateSetSize = 7;
+
+        List<Keypress[]> inputs = new ArrayList<>();
+        for (int i = 0; i < EvaluationParams.acquisitionSetSize + 5; i++) {
+            inputs.add(createRandomKeypresses());
+        }
+
+        double[] memory = new double[inputs.size()];
+        for (int i = 0; i < inputs.size(); i++) {
+            memory[i] = calcScore(i * 1000, 0, inputs.get(i));
+        }
+
+        EvaluationParams.inMemoryTemplateStore = false;
+        double[] database = new double[inputs.size()];
+        for (int i = 0; i < inputs.size(); i++) {
+            database[i] = calcScore(i * 1000, 0, inputs.get(i));
+        }
+        assertArrayEquals(memory, database, 0);
+    }
+
+    @Test
+    public void testFailedEnrollmentIsRolledBack() {
+        EvaluationParams.enableTemplateSelection = false;
+        for (int i = 0; i < 3; i++) {
+            calcScore(i * 1000, 0, createRandomKeypresses());
+        }
+        TemplateModel model = classifier.loadModel(manager.getBiometricsContext(), 0);
+
+        // The sensor data doesn't fit the templates, so the in-memory store refuses the data row
+        Keypress[] keypresses = new Keypress[NUM_TEST_KEYPRESSES];
+        for (int i = 0; i < keypresses.length; i++) {
+            keypresses[i] = new Keypress(1, 1, 1, 1, 1, 1, 1, BiometricsManager.SENSOR_TYPES.length);
+            for (String SENSOR_TYPE : BiometricsManager.SENSOR_TYPES) {
+                keypresses[i].addSensorData(new float[2]);
+            }
+        }
+        try {
+            calcScore(3000, 0, keypresses);
+            fail("Data row with 2 sensor values was saved");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+
+        calcScore(4000, 0, createRandomKeypresses());
+        TemplateModel loaded = classifier.loadModel(manager.getBiometricsContext(), 0);
+        assertEquals(model.getTemplateCount() + 1, loaded.getTemplateCount());
+        classifier.getTemplateCache().clear();
+        assertArrayEquals(loaded.getVariability(), classifier.loadModel(manager.getBiometricsContext(), 0).getVariability(), 0);
+    }
+
+    @Test
+    public void testLockedTemplatesLoadFromCache() {
+        for (int i = 0; i <= EvaluationParams.acquisitionSetSize; i++) {
+            calcScore(i * 1000, 0, createRandomKeypresses());
+        }
+
+        TemplateCache cache = classifier.getTemplateCache();
+        TemplateModel model = classifier.getModel();
+        long hits = cache.getHitCount(), misses = cache.getMissCount();
+        for (int i = 0; i < 5; i++) {
+            calcScore(i * 1000, 0, createRandomKeypresses());
+            assertSame(model, classifier.getModel());
+        }
+        assertEquals(hits + 5, cache.getHitCount());
+        assertEquals(misses, cache.getMissCount());
+
+        cache.clear();
+        TemplateModel loaded = classifier.loadModel(manager.getBiometricsContext(), 0);
+        assertEquals(misses + 1, cache.getMissCount());
+        assertArrayEquals(loaded.getVariability(), model.getVariability(), 0);
+    }
+
+    @Test
+    public void testEnrollmentUpdatesCachedTemplates() {
+        EvaluationParams.enableTemplateSelection = false;
+
+        for (int i = 0; i < EvaluationParams.acquisitionSetSize + 5; i++) {
+            calcScore(i * 1000, 0, createRandomKeypresses());
+        }
+        TemplateModel model = classifier.loadModel(manager.getBiometricsContext(), 0);
+        TemplateCache cache = classifier.getTemplateCache();
+        assertEquals(1, cache.getMissCount());
+
+        cache.clear();
+        TemplateModel loaded = classifier.loadModel(manager.getBiometricsContext(), 0);
+        assertEquals(model.getTemplateCount(), loaded.getTemplateCount());
+        assertArrayEquals(loaded.getVariability(), model.getVariability(), 0);
+    }
+
+    @Test
+    public void testLockingInvalidatesOtherTemplateSets() {
+        EvaluationParams.templateSelectionFunction = 1;
+        EvaluationParams.templateSetSize = 7;
+
+        for (int i = 0; i < 5; i++) {
+            calcScore(i * 1000, 1, createRandomKeypresses());
+        }
+        assertEquals(5, classifier.loadModel(manager.getBiometricsContext(), 1).getTemplateCount());
+
+        // Locking the templates of one screen orientation deletes the templates of all others
+        for (int i = 0; i < EvaluationParams.acquisitionSetSize; i++) {
+            calcScore(i * 1000, 0, createRandomKeypresses());
+        }
+        assertEquals(EvaluationParams.templateSetSize, classifier.loadModel(manager.getBiometricsContext(), 0).getTemplateCount());
+        assertEquals(0, classifier.loadModel(manager.getBiometricsContext(), 1).getTemplateCount());
+    }
+
+    @Test
+    public void testTemplateCacheEviction() {
+        TemplateCache cache = classifier.getTemplateCache();
+        for (int context = 0; context <= StatisticalClassifier.TEMPLATE_CACHE_SIZE; context++) {
+            classifier.loadModel(context, 0);
+        }
+        assertEquals(StatisticalClassifier.TEMPLATE_CACHE_SIZE, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+
+        classifier.loadModel(StatisticalClassifier.TEMPLATE_CACHE_SIZE, 0);
+        classifier.loadModel(0, 0);     // Evicted as least recently used
+        assertEquals(1, cache.getHitCount());
+        assertEquals(StatisticalClassifier.TEMPLATE_CACHE_SIZE + 2, cache.getMissCount());
+
+        classifier.clearData();
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testUnusedSensorsAreIgnored() {
+        EvaluationParams.usedSensors = new HashSet<>(Arrays.asList(BiometricsManager.SENSOR_TYPES[0], BiometricsManager.SENSOR_TYPES[1]));
+        for (int i = 0; i <= EvaluationParams.acquisitionSetSize; i++) {
+            calcScore(i * 1000, 0, createRandomKeypresses());
+        }
+
+        TemplateModel model = classifier.loadModel(manager.getBiometricsContext(), 0);
+        for (int delta = 0; delta < model.getFeatureCount(); delta++) {
+            assertEquals(delta < StatisticalClassifier.INDEX_SENSOR_START + 2, model.isUsed(delta));
+            assertEquals(!model.isUsed(delta), model.getTemplates(delta).isEmpty());
+        }
+        assertTrue(calcScore(0, 0, createRandomKeypresses()) >= 0);
+
+        // Template sets read with all sensors are read again
+        EvaluationParams.usedSensors = new HashSet<>(Arrays.asList(BiometricsManager.SENSOR_TYPES));
+        assertTrue(classifier.loadModel(manager.getBiometricsContext(), 0).isUsed(model.getFeatureCount() - 1));
+    }
+
+    @Test
+    public void testSnapshotRestoresTemplateSets() throws Exception {
+        EvaluationParams.inMemoryTemplateStore = false;
+        for (int i = 0; i <= EvaluationParams.acquisitionSetSize; i++) {
+            calcScore(i * 1000, 0, createRandomKeypresses());
+        }
+        for (int i = 0; i < 3; i++) {
+            calcScore(i * 1000, 1, createRandomKeypresses());
+        }
+        TemplateModel model = classifier.loadModel(manager.getBiometricsContext(), 0);
+        TemplateModel other = classifier.loadModel(manager.getBiometricsContext(), 1);
+
+        File file = File.createTempFile("templates", ".snapshot");
+        try {
+            classifier.saveSnapshot(file);
+            classifier.getTemplateCache().clear();
+            assertTrue(classifier.loadSnapshot(file));
+
+            TemplateModel loaded = classifier.loadModel(manager.getBiometricsContext(), 0);
+            assertNotSame(model, loaded);
+            assertEquals(model.getTemplateCount(), loaded.getTemplateCount());
+            assertTrue(loaded.isComplete());
+            assertArrayEquals(model.getVariability(), loaded.getVariability(), 0);
+            for (int delta = 0; delta < model.getFeatureCount(); delta++) {
+                assertEquals(model.getTemplateDynamics(delta), loaded.getTemplateDynamics(delta));
+                FeatureTensor templates = model.getTemplates(delta), restored = loaded.getTemplates(delta);
+                for (int e = 0; e < templates.getRowCount(); e++) {
+                    assertEquals(templates.getSampleCount(e), restored.getSampleCount(e));
+                    for (int i = 0; i < templates.getSampleCount(e) * templates.getValueCount(); i++) {
+                        assertEquals(templates.getData()[templates.getOffset(e) + i], restored.getData()[restored.getOffset(e) + i], 0);
+                    }
+                }
+            }
+
+            // Template sets restored for another classification function only lack their variability
+            EvaluationParams.classificationFunction = 1;
+            loaded = classifier.loadModel(manager.getBiometricsContext(), 1);
+            assertEquals(other.getTemplateCount(), loaded.getTemplateCount());
+            classifier.getTemplateCache().clear();
+            EvaluationParams.classificationFunction = 2;
+            assertArrayEquals(other.getVariability(), classifier.loadModel(manager.getBiometricsContext(), 1).getVariability(), 0);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testOutdatedSnapshotIsIgnored() throws Exception {
+        EvaluationParams.inMemoryTemplateStore = false;
+        for (int i = 0; i < 3; i++) {
+            calcScore(i * 1000, 0, createRandomKeypresses());
+        }
+
+        File file = File.createTempFile("templates", ".snapshot");
+        try {
+            classifier.saveSnapshot(file);
+            StatisticalClassifierContract contract = (StatisticalClassifierContract)classifier.getDatabaseContract();
+            JdbcTemplateStore store = new JdbcTemplateStore(manager.getDb(), contract);
+            long storeId = store.getStoreId(), generation = store.getGeneration();
+            assertNotNull(TemplateSnapshot.open(file, contract.getVersion(), storeId, generation));
+            assertNull(TemplateSnapshot.open(file, contract.getVersion() + 1, storeId, generation));
+            assertNull(TemplateSnapshot.open(file, contract.getVersion(), storeId + 1, generation));
+
+            calcScore(3000, 0, createRandomKeypresses());
+            assertFalse(classifier.loadSnapshot(file));
+            assertEquals(4, classifier.loadModel(manager.getBiometricsContext(), 0).getTemplateCount());
+
+            // The same number of rows enrolled again after clearing the data get the same IDs, but not the same generation
+            classifier.saveSnapshot(file);
+            classifier.clearData();
+            for (int i = 0; i < 4; i++) {
+                calcScore(i * 1000, 0, createRandomKeypresses());
+            }
+            assertFalse(classifier.loadSnapshot(file));
+        } finally {
+            file.delete();
+        }
+    }
+
     private Keypress[] createRandomKeypresses() {
         Keypress[] keypresses = new Keypress[NUM_TEST_KEYPRESSES];
         Random random = new Random();
@@ -227,9 +692,22 @@ public class StatisticalClassifierTest {
     }
 
     private double calcScore(long timestamp, int screenOrientation, Keypress[] keypresses) {
+        startInput(timestamp, screenOrientation, keypresses);
+        classifier.onFinishInput(true);
+        return classifier.getScore();
+    }
+
+    private void startInput(long timestamp, int screenOrientation, Keypress[] keypresses) {
         manager.setScreenOrientation(screenOrientation);
 
         classifier.onStartInput(manager.getBiometricsContext(), false);
+        for (BiometricsEntry entry : createEntries(timestamp, screenOrientation, keypresses)) {
+            classifier.onKeyEvent(entry);
+        }
+    }
+
+    private BiometricsEntry[] createEntries(long timestamp, int screenOrientation, Keypress[] keypresses) {
+        BiometricsEntry[] entries = new BiometricsEntry[keypresses.length * 2];
         long entryTimestamp = timestamp;
         int sensorCount = keypresses[0].getSensorData().get(0).length;
         for (int i = 0; i < keypresses.length; i++) {
@@ -240,29 +718,13 @@ public class StatisticalClassifierTest {
                 BiometricsEntry entry = new BiometricsEntry(sensorCount);
                 entry.setProperties(i, downOrUp, entryTimestamp + (int)keypress.getUpDistance() * downOrUp, keypress.getX(), keypress.getY(), keypress.getSize(), keypress.getOrientation(), keypress.getPressure(), screenOrientation);
                 entry.setSensorData(keypress.getSensorData());
-                classifier.onKeyEvent(entry);
+                entries[i * 2 + downOrUp] = entry;
             }
         }
-        classifier.onFinishInput(true);
-        return classifier.getScore();
+        return entries;
     }
 
     private double[] getVariabilities() {
-        Class<?> c = classifier.getClass();
-        Field f = null;
-        try {
-            f = c.getDeclaredField("variability");
-        } catch (NoSuchFieldException e) {
-            e.printStackTrace();
-        }
-
-        f.setAccessible(true);
-        Object variability = new Object();
-        try {
-            variability = f.get(classifier);
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-        }
-        return (double[])variability;
+        return classifier.getModel().getVariability();
     }
 }
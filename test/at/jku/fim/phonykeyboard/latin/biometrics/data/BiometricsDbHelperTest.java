@@ -0,0 +1,363 @@
+package at.jku.fim.phonykeyboard.latin.biometrics.data;
+
+import at.jku.fim.phonykeyboard.latin.biometrics.BiometricsManager;
+import at.jku.fim.phonykeyboard.latin.utils.Log;
+import org.junit.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BiometricsDbHelperTest {
+    private static final String TAG = "BiometricsDbHelperTest";
+    private static final int NUM_TEST_ROWS = 2000, NUM_TEST_KEYPRESSES = 10;
+
+    private File dbFile;
+    private StatisticalClassifierContract contract;
+    private Random random;
+
+    /**
+     * Sets up the test fixture.
+     * (Called before every test case method.)
+     */
+    @Before
+    public void setUp() throws IOException {
+        dbFile = File.createTempFile("biometrics", ".db");
+        dbFile.delete();    // An existing file is treated as an existing database
+        contract = new StatisticalClassifierContract(BiometricsManager.SENSOR_TYPES);
+        random = new Random(42);
+    }
+
+    /**
+     * Tears down the test fixture.
+     * (Called after every test case method.)
+     */
+    @After
+    public void tearDown() {
+        for (String suffix : new String[] { "", "-wal", "-shm" }) {
+            new File(dbFile.getPath() + suffix).delete();
+        }
+    }
+
+    @Test
+    public void testMemoryRoundTrip() throws SQLException {
+        BiometricsDbHelper db = new BiometricsDbHelper(contract, BiometricsDbHelper.StorageMode.MEMORY, dbFile.getPath());
+        List<BiometricsDbHelper.ContentValues> rows = new ArrayList<>(NUM_TEST_ROWS);
+        for (int i = 0; i < NUM_TEST_ROWS; i++) {
+            rows.add(createRow());
+            db.insert(StatisticalClassifierContract.StatisticalClassifierData.TABLE_NAME, rows.get(i));
+        }
+        assertRowsEqual(rows, db);
+        db.close();
+        assertFalse(dbFile.exists());
+    }
+
+    @Test
+    public void testFileRoundTrip() throws SQLException {
+        BiometricsDbHelper db = new BiometricsDbHelper(contract, BiometricsDbHelper.StorageMode.FILE, dbFile.getPath());
+        Cursor c = db.query(false, "pragma_journal_mode", null, null, new String[0], null, null, null, null);
+        assertTrue(c.first());
+        assertEquals("wal", c.getString(0));
+        List<BiometricsDbHelper.ContentValues> rows = new ArrayList<>(NUM_TEST_ROWS);
+        for (int i = 0; i < NUM_TEST_ROWS; i++) {
+            rows.add(createRow());
+            db.insert(StatisticalClassifierContract.StatisticalClassifierData.TABLE_NAME, rows.get(i));
+        }
+        assertRowsEqual(rows, db);
+        db.close();
+
+        db = new BiometricsDbHelper(contract, BiometricsDbHelper.StorageMode.FILE, dbFile.getPath());
+        assertRowsEqual(rows, db);
+        db.close();
+    }
+
+    @Test
+    public void testMemoryThroughput() throws SQLException {
+        BiometricsDbHelper db = new BiometricsDbHelper(contract, BiometricsDbHelper.StorageMode.MEMORY, dbFile.getPath());
+        measureThroughput(db, BiometricsDbHelper.StorageMode.MEMORY);
+        db.close();
+        assertFalse(dbFile.exists());
+    }
+
+    @Test
+    public void testFileThroughput() throws SQLException {
+        BiometricsDbHelper db = new BiometricsDbHelper(contract, BiometricsDbHelper.StorageMode.FILE, dbFile.getPath());
+        long[] insertNanos = measureThroughput(db, BiometricsDbHelper.StorageMode.FILE);
+        db.close();
+
+        // Every single insert commits its own transaction to the file
+        assertTrue(String.format("Batch took %d ns, single inserts %d ns", insertNanos[1], insertNanos[0]), insertNanos[1] < insertNanos[0]);
+    }
+
+    /**
+     * Inserts NUM_TEST_ROWS rows one by one and NUM_TEST_ROWS rows in a single batch, then reads each of them with a
+     * prepared query and all of them with a streaming cursor, and logs the rates
+     * @return the nanoseconds taken by the single inserts and by the batch
+     */
+    private long[] measureThroughput(BiometricsDbHelper db, BiometricsDbHelper.StorageMode mode) throws SQLException {
+        List<BiometricsDbHelper.ContentValues> rows = new ArrayList<>(2 * NUM_TEST_ROWS);
+        for (int i = 0; i < 2 * NUM_TEST_ROWS; i++) {
+            rows.add(createRow());
+        }
+        List<String> columns = contract.getFeatureColumns();
+        BiometricsDbHelper.PreparedInsert insert = db.prepareInsert(StatisticalClassifierContract.StatisticalClassifierData.TABLE_NAME,
+                rows.get(0).keySet().toArray(new String[0]));
+        BiometricsDbHelper.PreparedQuery query = db.prepareQuery(false, StatisticalClassifierContract.StatisticalClassifierData.TABLE_NAME,
+                columns.toArray(new String[columns.size()]), StatisticalClassifierContract.StatisticalClassifierData._ID + " = ?", null, null, null, null);
+        BiometricsDbHelper.PreparedQuery queryAll = db.prepareQuery(false, StatisticalClassifierContract.StatisticalClassifierData.TABLE_NAME,
+                columns.toArray(new String[columns.size()]), null, null, null, StatisticalClassifierContract.StatisticalClassifierData._ID, null);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < NUM_TEST_ROWS; i++) {
+            db.insert(StatisticalClassifierContract.StatisticalClassifierData.TABLE_NAME, rows.get(i));
+        }
+        long inserted = System.nanoTime();
+        db.beginBatch();
+        for (int i = NUM_TEST_ROWS; i < rows.size(); i++) {
+            insert.addBatch(rows.get(i));
+        }
+        assertEquals(NUM_TEST_ROWS, insert.executeBatch());
+        db.commit();
+        long batched = System.nanoTime();
+        for (int i = 0; i < rows.size(); i++) {
+            Cursor c = query.query(i + 1);
+            assertTrue(c.first());
+            assertArrayEquals((byte[])rows.get(i).get(columns.get(0)), c.getBlob(0));
+        }
+        long queried = System.nanoTime();
+        int streamed = 0;
+        try (StreamingCursor c = queryAll.stream()) {
+            while (c.next()) {
+                assertArrayEquals((byte[])rows.get(streamed).get(columns.get(0)), c.getBlob(0));
+                streamed++;
+            }
+        }
+        long end = System.nanoTime();
+        assertEquals(rows.size(), streamed);
+
+        Log.i(TAG, String.format("%s: %.0f inserts/s, %.0f batched inserts/s, %.0f queries/s, %.0f streamed rows/s", mode,
+                NUM_TEST_ROWS / ((inserted - start) / 1e9), NUM_TEST_ROWS / ((batched - inserted) / 1e9),
+                rows.size() / ((queried - batched) / 1e9), rows.size() / ((end - queried) / 1e9)));
+        return new long[] { inserted - start, batched - inserted };
+    }
+
+    @Test
+    public void testPreparedStatements() throws SQLException {
+        BiometricsDbHelper db = new BiometricsDbHelper(contract, BiometricsDbHelper.StorageMode.MEMORY, dbFile.getPath());
+        BiometricsDbHelper.PreparedInsert insert = db.prepareInsert(StatisticalClassifierContract.StatisticalClassifierTemplates.TABLE_NAME,
+                StatisticalClassifierContract.StatisticalClassifierTemplates.COLUMN_DATA_ID, StatisticalClassifierContract.StatisticalClassifierTemplates.COLUMN_SCORE);
+        BiometricsDbHelper.PreparedQuery query = db.prepareQuery(false, StatisticalClassifierContract.StatisticalClassifierTemplates.TABLE_NAME,
+                new String[] { StatisticalClassifierContract.StatisticalClassifierTemplates.COLUMN_SCORE },
+                StatisticalClassifierContract.StatisticalClassifierTemplates.COLUMN_DATA_ID + " = ?", null, null, null, null);
+
+        BiometricsDbHelper.ContentValues values = new BiometricsDbHelper.ContentValues(2);
+        for (int i = 1; i <= 100; i++) {
+            values.put(StatisticalClassifierContract.StatisticalClassifierTemplates.COLUMN_DATA_ID, i);
+            values.put(StatisticalClassifierContract.StatisticalClassifierTemplates.COLUMN_SCORE, i / 10.0);
+            assertEquals(i, insert.insert(values));
+        }
+
+        values.clear();
+        values.put(StatisticalClassifierContract.StatisticalClassifierTemplates.COLUMN_SCORE, -1.0);
+        db.update(StatisticalClassifierContract.StatisticalClassifierTemplates.TABLE_NAME, values,
+                StatisticalClassifierContract.StatisticalClassifierTemplates.COLUMN_DATA_ID + " = ?", new String[] { "42" });
+        for (int i = 1; i <= 100; i++) {
+            Cursor c = query.query(i);
+            assertTrue(c.first());
+            assertEquals(i == 42 ? -1.0 : i / 10.0, c.getDouble(0), 0);
+        }
+        db.close();
+    }
+
+    @Test
+    public void testStreamingCursor() throws SQLException {
+        BiometricsDbHelper db = new BiometricsDbHelper(contract, BiometricsDbHelper.StorageMode.MEMORY, dbFile.getPath());
+        for (int i = 0; i < 10; i++) {
+            db.insert(StatisticalClassifierContract.StatisticalClassifierData.TABLE_NAME, createRow());
+        }
+
+        Cursor expected = queryData(db);
+        List<String> columns = contract.getFeatureColumns();
+        BiometricsDbHelper.PreparedQuery query = db.prepareQuery(false, StatisticalClassifierContract.StatisticalClassifierData.TABLE_NAME, columns.toArray(new String[columns.size()]),
+                StatisticalClassifierContract.StatisticalClassifierData.COLUMN_CONTEXT + " = ?", null, null, null, null);
+        try (StreamingCursor c = query.stream(0L)) {
+            assertEquals(columns.size(), c.getColumnCount());
+            assertEquals(columns.indexOf(StatisticalClassifierContract.StatisticalClassifierData.COLUMN_POSITION),
+                    c.getColumnIndex(StatisticalClassifierContract.StatisticalClassifierData.COLUMN_POSITION));
+            while (c.next()) {
+                assertTrue(expected.next());
+                for (int i = 0; i < columns.size(); i++) {
+                    assertArrayEquals(expected.getBlob(i), c.getBlob(i));
+                }
+            }
+            assertFalse(expected.next());
+        }
+        db.close();
+    }
+
+    @Test
+    public void testBatchInsert() throws SQLException {
+        BiometricsDbHelper db = new BiometricsDbHelper(contract, BiometricsDbHelper.StorageMode.FILE, dbFile.getPath());
+        BiometricsDbHelper.PreparedInsert insert = db.prepareInsert(StatisticalClassifierContract.StatisticalClassifierData.TABLE_NAME,
+                createRow().keySet().toArray(new String[0]));
+
+        List<BiometricsDbHelper.ContentValues> rows = new ArrayList<>(NUM_TEST_ROWS);
+        db.beginBatch();
+        for (int i = 0; i < NUM_TEST_ROWS; i++) {
+            rows.add(createRow());
+            insert.addBatch(rows.get(i));
+        }
+        assertEquals(NUM_TEST_ROWS, insert.executeBatch());
+        db.commit();
+        assertRowsEqual(rows, db);
+
+        db.beginBatch();
+        insert.insert(createRow());
+        db.delete(StatisticalClassifierContract.StatisticalClassifierData.TABLE_NAME, null, null);
+        assertEquals(0, queryData(db).getCount());
+        db.rollback();
+        assertEquals(NUM_TEST_ROWS, queryData(db).getCount());
+        db.close();
+
+        // The committed batch has been written to the file
+        db = new BiometricsDbHelper(contract, BiometricsDbHelper.StorageMode.FILE, dbFile.getPath());
+        assertRowsEqual(rows, db);
+        db.close();
+    }
+
+    @Test
+    public void testPinnedStatementsSurviveEviction() throws SQLException {
+        BiometricsDbHelper db = new BiometricsDbHelper(contract, BiometricsDbHelper.StorageMode.MEMORY, dbFile.getPath());
+        BiometricsDbHelper.PreparedInsert insert = db.prepareInsert(StatisticalClassifierContract.StatisticalClassifierData.TABLE_NAME,
+                createRow().keySet().toArray(new String[0]));
+        for (int i = 0; i < 10; i++) {
+            insert.addBatch(createRow());
+        }
+        prepareOtherStatements(db);
+        assertEquals(10, insert.executeBatch());
+        assertEquals(10, queryData(db).getCount());
+
+        BiometricsDbHelper.PreparedQuery query = db.prepareQuery(false, StatisticalClassifierContract.StatisticalClassifierData.TABLE_NAME,
+                new String[] { StatisticalClassifierContract.StatisticalClassifierData._ID }, null, null, null, null, null);
+        try (StreamingCursor c = query.stream()) {
+            assertTrue(c.next());
+            prepareOtherStatements(db);
+            int rows = 1;
+            while (c.next()) {
+                rows++;
+            }
+            assertEquals(10, rows);
+        }
+        db.close();
+    }
+
+    /**
+     * Executes more different statements than the statement cache holds, so that all other statements are evicted
+     */
+    private void prepareOtherStatements(BiometricsDbHelper db) throws SQLException {
+        for (int i = 0; i < 40; i++) {
+            db.query(false, StatisticalClassifierContract.StatisticalClassifierTemplates.TABLE_NAME, null,
+                    StatisticalClassifierContract.StatisticalClassifierTemplates._ID + " = " + i, new String[0], null, null, null, null);
+        }
+    }
+
+    @Test
+    public void testFailedUpgradeIsRetried() throws SQLException {
+        List<String> columns = contract.getFeatureColumns();
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + dbFile.getPath());
+             Statement statement = connection.createStatement()) {
+            statement.execute("PRAGMA user_version = " + BiometricsDbHelper.DATABASE_VERSION);
+            statement.execute(BiometricsContract.SQL_CREATE_CONTRACT_VERSIONS);
+            statement.execute(BiometricsContract.SQL_CREATE_CONTEXTS);
+            statement.execute("INSERT INTO " + BiometricsContract.ContractVersions.TABLE_NAME + " VALUES ('" + contract.getClass().getSimpleName() + "', 3)");
+
+            // The text format of version 3, with a value that can't be converted in the second row
+            StringBuilder create = new StringBuilder("CREATE TABLE " + StatisticalClassifierContract.StatisticalClassifierData.TABLE_NAME + " (_id INTEGER PRIMARY KEY, context INTEGER, screen_orientation INTEGER");
+            for (String column : columns) {
+                create.append(", ").append(column).append(" TEXT");
+            }
+            statement.execute(create.append(")").toString());
+            statement.execute("CREATE TABLE " + StatisticalClassifierContract.StatisticalClassifierTemplates.TABLE_NAME + " (_id INTEGER PRIMARY KEY, context INTEGER, screen_orientation INTEGER, data_id INTEGER, score REAL)");
+            statement.execute("CREATE TABLE " + StatisticalClassifierContract.StatisticalClassifierTemplateStatus.TABLE_NAME + " (_id INTEGER PRIMARY KEY, context INTEGER, screen_orientation INTEGER)");
+            statement.execute("INSERT INTO " + StatisticalClassifierContract.StatisticalClassifierData.TABLE_NAME + " (context, screen_orientation, " + columns.get(0) + ") VALUES (0, 0, '1.0;2.0')");
+            statement.execute("INSERT INTO " + StatisticalClassifierContract.StatisticalClassifierData.TABLE_NAME + " (context, screen_orientation, " + columns.get(0) + ") VALUES (0, 0, '1.0;x')");
+        }
+
+        new BiometricsDbHelper(contract, BiometricsDbHelper.StorageMode.FILE, dbFile.getPath()).close();
+        assertEquals(3, queryContractVersion());
+        assertEquals("text", queryFirstFeatureType());
+
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + dbFile.getPath());
+             Statement statement = connection.createStatement()) {
+            statement.execute("UPDATE " + StatisticalClassifierContract.StatisticalClassifierData.TABLE_NAME + " SET " + columns.get(0) + " = '3.0' WHERE _id = 2");
+        }
+        new BiometricsDbHelper(contract, BiometricsDbHelper.StorageMode.FILE, dbFile.getPath()).close();
+        assertEquals(StatisticalClassifierContract.DATABASE_VERSION, queryContractVersion());
+        assertEquals("blob", queryFirstFeatureType());
+    }
+
+    private int queryContractVersion() throws SQLException {
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + dbFile.getPath());
+             Statement statement = connection.createStatement();
+             ResultSet result = statement.executeQuery("SELECT " + BiometricsContract.ContractVersions.COLUMN_VERSION + " FROM " + BiometricsContract.ContractVersions.TABLE_NAME)) {
+            assertTrue(result.next());
+            return result.getInt(1);
+        }
+    }
+
+    private String queryFirstFeatureType() throws SQLException {
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + dbFile.getPath());
+             Statement statement = connection.createStatement();
+             ResultSet result = statement.executeQuery("SELECT typeof(" + contract.getFeatureColumns().get(0) + ") FROM " + StatisticalClassifierContract.StatisticalClassifierData.TABLE_NAME + " WHERE _id = 1")) {
+            assertTrue(result.next());
+            return result.getString(1);
+        }
+    }
+
+    /**
+     * Asserts that the data table contains exactly the feature blobs of the rows, in the order they were inserted
+     */
+    private void assertRowsEqual(List<BiometricsDbHelper.ContentValues> rows, BiometricsDbHelper db) throws SQLException {
+        List<String> columns = contract.getFeatureColumns();
+        Cursor c = queryData(db);
+        assertEquals(rows.size(), c.getCount());
+        for (BiometricsDbHelper.ContentValues row : rows) {
+            assertTrue(c.next());
+            for (int i = 0; i < columns.size(); i++) {
+                assertArrayEquals((byte[])row.get(columns.get(i)), c.getBlob(i));
+            }
+        }
+        assertFalse(c.next());
+    }
+
+    private Cursor queryData(BiometricsDbHelper db) throws SQLException {
+        List<String> columns = contract.getFeatureColumns();
+        return db.query(false, StatisticalClassifierContract.StatisticalClassifierData.TABLE_NAME, columns.toArray(new String[columns.size()]),
+                StatisticalClassifierContract.StatisticalClassifierData.COLUMN_CONTEXT + " = ? AND " + StatisticalClassifierContract.StatisticalClassifierData.COLUMN_SCREEN_ORIENTATION + " = ?",
+                new String[] { "0", "0" }, null, null, StatisticalClassifierContract.StatisticalClassifierData._ID, null);
+    }
+
+    private BiometricsDbHelper.ContentValues createRow() {
+        BiometricsDbHelper.ContentValues values = new BiometricsDbHelper.ContentValues();
+        values.put(StatisticalClassifierContract.StatisticalClassifierData.COLUMN_CONTEXT, 0);
+        values.put(StatisticalClassifierContract.StatisticalClassifierData.COLUMN_SCREEN_ORIENTATION, 0);
+        for (String column : contract.getFeatureColumns()) {
+            int valueCount = column.equals(StatisticalClassifierContract.StatisticalClassifierData.COLUMN_POSITION) ? 2 : 1;
+            List<double[]> samples = new ArrayList<>(NUM_TEST_KEYPRESSES);
+            for (int k = 0; k < NUM_TEST_KEYPRESSES; k++) {
+                double[] sample = new double[valueCount];
+                for (int i = 0; i < valueCount; i++) {
+                    sample[i] = random.nextDouble();
+                }
+                samples.add(sample);
+            }
+            values.put(column, FeatureBlob.encode(samples));
+        }
+        return values;
+    }
+}
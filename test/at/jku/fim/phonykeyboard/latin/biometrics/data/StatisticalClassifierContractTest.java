@@ -0,0 +1,156 @@
+package at.jku.fim.phonykeyboard.latin.biometrics.data;
+
+import org.junit.*;
+
+import java.sql.*;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class StatisticalClassifierContractTest {
+    private static final String[] SENSOR_TYPES = new String[] { "android.sensor.accelerometer" };
+
+    private Connection db;
+    private StatisticalClassifierContract contract;
+
+    /**
+     * Sets up the test fixture.
+     * (Called before every test case method.)
+     */
+    @Before
+    public void setUp() throws SQLException {
+        db = DriverManager.getConnection("jdbc:sqlite::memory:");
+        contract = new StatisticalClassifierContract(SENSOR_TYPES);
+    }
+
+    /**
+     * Tears down the test fixture.
+     * (Called after every test case method.)
+     */
+    @After
+    public void tearDown() throws SQLException {
+        db.close();
+    }
+
+    @Test
+    public void testBlobRoundTrip() {
+        List<double[]> samples = Arrays.asList(new double[] { 1.5, -2 }, new double[] { Math.PI, Double.MIN_VALUE });
+        byte[] blob = FeatureBlob.encode(samples);
+        assertEquals(FeatureBlob.HEADER_SIZE + 4 * 8, blob.length);
+        assertEquals(2, FeatureBlob.getSampleCount(blob));
+        assertEquals(2, FeatureBlob.getValueCount(blob));
+
+        double[] data = new double[5];
+        assertEquals(4, FeatureBlob.decode(blob, data, 1));
+        assertArrayEquals(new double[] { 0, 1.5, -2, Math.PI, Double.MIN_VALUE }, data, 0);
+
+        byte[] empty = FeatureBlob.encode(Arrays.asList());
+        assertEquals(0, FeatureBlob.getSampleCount(empty));
+        assertEquals(0, FeatureBlob.getSampleCount(null));
+    }
+
+    @Test
+    public void testUpgradeConvertsTextToBlobs() throws SQLException {
+        List<String> columns = contract.getFeatureColumns();
+        try (Statement statement = db.createStatement()) {
+            StringBuilder create = new StringBuilder("CREATE TABLE " + StatisticalClassifierContract.StatisticalClassifierData.TABLE_NAME + " (" +
+                    StatisticalClassifierContract.StatisticalClassifierData._ID + " INTEGER PRIMARY KEY, " +
+                    StatisticalClassifierContract.StatisticalClassifierData.COLUMN_CONTEXT + " INTEGER, " +
+                    StatisticalClassifierContract.StatisticalClassifierData.COLUMN_SCREEN_ORIENTATION + " INTEGER");
+            for (String column : columns) {
+                create.append(", ").append(column).append(" TEXT");
+            }
+            statement.execute(create.append(")").toString());
+            statement.execute("CREATE TABLE " + StatisticalClassifierContract.StatisticalClassifierTemplates.TABLE_NAME + " (_id INTEGER PRIMARY KEY, context INTEGER, screen_orientation INTEGER, data_id INTEGER, score REAL)");
+            statement.execute("CREATE TABLE " + StatisticalClassifierContract.StatisticalClassifierTemplateStatus.TABLE_NAME + " (_id INTEGER PRIMARY KEY, context INTEGER, screen_orientation INTEGER)");
+        }
+
+        try (PreparedStatement statement = db.prepareStatement("INSERT INTO " + StatisticalClassifierContract.StatisticalClassifierData.TABLE_NAME +
+                " (" + String.join(", ", columns) + ") VALUES (?, ?, ?, ?, ?, ?, ?)")) {
+            statement.setString(1, "120.0;0.1");
+            statement.setString(2, "");
+            statement.setString(3, "0.25");
+            statement.setString(4, "1.0E-5");
+            statement.setString(5, "0.5");
+            statement.setString(6, "10.5|20.0");
+            statement.setString(7, "0.1|0.2|0.30000000000000004;-1.0|-2.0|-3.0");
+            statement.execute();
+        }
+
+        contract.onUpgrade(db, 3, StatisticalClassifierContract.DATABASE_VERSION);
+
+        try (Statement statement = db.createStatement();
+             ResultSet result = statement.executeQuery("SELECT " + String.join(", ", columns) + " FROM " + StatisticalClassifierContract.StatisticalClassifierData.TABLE_NAME)) {
+            assertTrue(result.next());
+            assertFeature(result.getBytes(1), 2, 1, 120.0, 0.1);
+            assertFeature(result.getBytes(2), 0, 0);
+            assertFeature(result.getBytes(3), 1, 1, 0.25);
+            assertFeature(result.getBytes(4), 1, 1, 1.0E-5);
+            assertFeature(result.getBytes(5), 1, 1, 0.5);
+            assertFeature(result.getBytes(6), 1, 2, 10.5, 20.0);
+            assertFeature(result.getBytes(7), 2, 3, 0.1, 0.2, 0.30000000000000004, -1.0, -2.0, -3.0);
+            assertFalse(result.next());
+        }
+        assertIndexed("SELECT _id FROM " + StatisticalClassifierContract.StatisticalClassifierTemplateStatus.TABLE_NAME + " WHERE context = 0 AND screen_orientation = 0",
+                StatisticalClassifierContract.StatisticalClassifierTemplateStatus.INDEX_CONTEXT);
+
+        // The converted rows don't count as changes, but every change after the upgrade does
+        assertEquals(0, queryGeneration());
+        try (Statement statement = db.createStatement()) {
+            statement.execute("DELETE FROM " + StatisticalClassifierContract.StatisticalClassifierData.TABLE_NAME);
+            statement.execute("INSERT INTO " + StatisticalClassifierContract.StatisticalClassifierTemplateStatus.TABLE_NAME + " (context, screen_orientation) VALUES (0, 0)");
+        }
+        assertEquals(2, queryGeneration());
+    }
+
+    private long queryGeneration() throws SQLException {
+        try (Statement statement = db.createStatement();
+             ResultSet result = statement.executeQuery("SELECT " + StatisticalClassifierContract.StatisticalClassifierState.COLUMN_GENERATION + " FROM " + StatisticalClassifierContract.StatisticalClassifierState.TABLE_NAME)) {
+            assertTrue(result.next());
+            long generation = result.getLong(1);
+            assertFalse(result.next());
+            return generation;
+        }
+    }
+
+    @Test
+    public void testIndexes() throws SQLException {
+        contract.onCreate(db);
+
+        assertIndexed("SELECT _id FROM " + StatisticalClassifierContract.StatisticalClassifierData.TABLE_NAME + " WHERE context = 0 AND screen_orientation = 0",
+                StatisticalClassifierContract.StatisticalClassifierData.INDEX_CONTEXT);
+        assertIndexed("SELECT _id FROM " + StatisticalClassifierContract.StatisticalClassifierTemplateStatus.TABLE_NAME + " WHERE context = 0 AND screen_orientation = 0",
+                StatisticalClassifierContract.StatisticalClassifierTemplateStatus.INDEX_CONTEXT);
+
+        String plan = explain("SELECT d.key_downdown FROM " + StatisticalClassifierContract.StatisticalClassifierTemplates.TABLE_NAME + " t INNER JOIN " +
+                StatisticalClassifierContract.StatisticalClassifierData.TABLE_NAME + " d ON d._id = t.data_id WHERE t.context = 0 AND t.screen_orientation = 0 ORDER BY t.data_id");
+        assertTrue(plan, plan.contains("COVERING INDEX " + StatisticalClassifierContract.StatisticalClassifierTemplates.INDEX_CONTEXT));
+        assertTrue(plan, plan.contains("INTEGER PRIMARY KEY"));
+        assertFalse(plan, plan.contains("TEMP B-TREE"));    // The rows are already sorted by the index
+    }
+
+    private void assertIndexed(String sql, String index) throws SQLException {
+        String plan = explain(sql);
+        assertTrue(plan, plan.contains("INDEX " + index));
+    }
+
+    private String explain(String sql) throws SQLException {
+        StringBuilder plan = new StringBuilder();
+        try (Statement statement = db.createStatement();
+             ResultSet result = statement.executeQuery("EXPLAIN QUERY PLAN " + sql)) {
+            while (result.next()) {
+                plan.append(result.getString("detail")).append('\n');
+            }
+        }
+        return plan.toString();
+    }
+
+    private void assertFeature(byte[] blob, int samples, int values, double... expected) {
+        assertEquals(samples, FeatureBlob.getSampleCount(blob));
+        assertEquals(values, FeatureBlob.getValueCount(blob));
+        double[] data = new double[expected.length];
+        FeatureBlob.decode(blob, data, 0);
+        assertArrayEquals(expected, data, 0);
+    }
+}
@@ -0,0 +1,269 @@
+package at.jku.fim.phonykeyboard.latin.biometrics.data;
+
+import at.jku.fim.phonykeyboard.latin.biometrics.BiometricsManager;
+import org.junit.*;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class TemplateStoreTest {
+    private static final int NUM_TEST_ROWS = 20, NUM_TEST_KEYPRESSES = 10;
+
+    private StatisticalClassifierContract contract;
+    private BiometricsDbHelper db;
+    private TemplateStore jdbcStore, memoryStore;
+    private Random random;
+    private boolean[] allFeatures;
+
+    /**
+     * Sets up the test fixture.
+     * (Called before every test case method.)
+     */
+    @Before
+    public void setUp() {
+        contract = new StatisticalClassifierContract(BiometricsManager.SENSOR_TYPES);
+        db = new BiometricsDbHelper(contract);
+        jdbcStore = new JdbcTemplateStore(db, contract);
+        memoryStore = new InMemoryTemplateStore(contract.getFeatureColumns().size());
+        random = new Random(42);
+        allFeatures = new boolean[contract.getFeatureColumns().size()];
+        Arrays.fill(allFeatures, true);
+    }
+
+    /**
+     * Tears down the test fixture.
+     * (Called after every test case method.)
+     */
+    @After
+    public void tearDown() {
+        db.close();
+    }
+
+    @Test
+    public void testDataMatchesDatabase() throws SQLException {
+        for (int i = 0; i < NUM_TEST_ROWS; i++) {
+            List<List<double[]>> features = createFeatures(i == 0);
+            int context = i % 2;
+            assertEquals(jdbcStore.insertData(context, 0, features), memoryStore.insertData(context, 0, features));
+        }
+
+        for (int context = 0; context <= 2; context++) {
+            assertTensorsEqual(jdbcStore.readData(context, 0, allFeatures), memoryStore.readData(context, 0, allFeatures));
+        }
+        assertEquals(NUM_TEST_ROWS / 2, memoryStore.readData(1, 0, allFeatures).get(0).getRowCount());
+        assertTrue(memoryStore.readData(0, 0, allFeatures).get(contract.getFeatureColumns().size() - 1).isEmpty());
+
+        jdbcStore.clearData();
+        memoryStore.clearData();
+        assertEquals(0, memoryStore.readData(1, 0, allFeatures).get(0).getRowCount());
+        List<List<double[]>> features = createFeatures(false);
+        assertEquals(jdbcStore.insertData(0, 0, features), memoryStore.insertData(0, 0, features));
+    }
+
+    @Test
+    public void testTemplatesMatchDatabase() throws SQLException {
+        for (TemplateStore store : new TemplateStore[] { jdbcStore, memoryStore }) {
+            random = new Random(42);
+            for (int i = 0; i < NUM_TEST_ROWS; i++) {
+                int context = i % 2;
+                int dataId = store.insertData(context, 0, createFeatures(false));
+                store.insertTemplate(context, 0, dataId, i < 8 ? -1 : random.nextInt(3));    // Equal scores are ordered by ID
+            }
+        }
+
+        for (int context = 0; context <= 1; context++) {
+            int[] templateIds = jdbcStore.getTemplateIds(context, 0);
+            assertArrayEquals(templateIds, memoryStore.getTemplateIds(context, 0));
+            assertTensorsEqual(jdbcStore.readTemplateData(context, 0, allFeatures), memoryStore.readTemplateData(context, 0, allFeatures));
+            assertFalse(memoryStore.isLocked(context, 0));
+        }
+
+        int[] selected = new int[] { jdbcStore.getTemplateIds(0, 0)[1], jdbcStore.getTemplateIds(0, 0)[4] };
+        for (TemplateStore store : new TemplateStore[] { jdbcStore, memoryStore }) {
+            store.deleteTemplatesExcept(selected);
+            store.lock(0, 0);
+            assertTrue(store.isLocked(0, 0));
+            assertFalse(store.isLocked(1, 0));
+            assertEquals(0, store.getTemplateIds(1, 0).length);
+            assertEquals(2, store.readTemplateData(0, 0, allFeatures).get(0).getRowCount());
+            assertEquals(Math.max(selected[0], selected[1]) + 1, store.insertTemplate(1, 0, 1, 0));
+        }
+        assertTensorsEqual(jdbcStore.readTemplateData(0, 0, allFeatures), memoryStore.readTemplateData(0, 0, allFeatures));
+
+        jdbcStore.clearTemplates();
+        memoryStore.clearTemplates();
+        assertFalse(memoryStore.isLocked(0, 0));
+        assertEquals(jdbcStore.insertTemplate(0, 0, 1, 0), memoryStore.insertTemplate(0, 0, 1, 0));
+    }
+
+    @Test
+    public void testRollback() throws SQLException {
+        for (TemplateStore store : new TemplateStore[] { jdbcStore, memoryStore }) {
+            int dataId = store.insertData(0, 0, createFeatures(false));
+            store.insertTemplate(0, 0, dataId, 0);
+
+            store.beginBatch();
+            dataId = store.insertData(0, 0, createFeatures(false));
+            store.insertData(1, 0, createFeatures(false));
+            store.insertTemplate(0, 0, dataId, 1);
+            store.deleteTemplatesExcept(new int[0]);
+            store.lock(0, 0);
+            store.rollback();
+
+            assertEquals(1, store.readData(0, 0, allFeatures).get(0).getRowCount());
+            assertEquals(0, store.readData(1, 0, allFeatures).get(0).getRowCount());
+            assertEquals(1, store.getTemplateIds(0, 0).length);
+            assertFalse(store.isLocked(0, 0));
+
+            // Like SQLite, the IDs of the rolled back data rows are assigned again
+            assertEquals(2, store.insertData(1, 0, createFeatures(false)));
+            assertEquals(1, store.readData(1, 0, allFeatures).get(0).getRowCount());
+
+            store.beginBatch();
+            store.lock(0, 0);
+            store.commit();
+            assertTrue(store.isLocked(0, 0));
+        }
+    }
+
+    @Test
+    public void testGenerationsAreNeverRepeated() throws SQLException {
+        BiometricsDbHelper otherDb = new BiometricsDbHelper(contract);
+        try {
+            TemplateStore[] stores = new TemplateStore[] { jdbcStore, memoryStore, new JdbcTemplateStore(otherDb, contract), new InMemoryTemplateStore(allFeatures.length) };
+            Set<Long> storeIds = new HashSet<>();
+            for (TemplateStore store : stores) {
+                assertTrue(storeIds.add(store.getStoreId()));
+
+                Set<Long> generations = new HashSet<>();
+                generations.add(store.getGeneration());
+                for (int i = 0; i < 2; i++) {
+                    int dataId = store.insertData(0, 0, createFeatures(false));
+                    assertTrue(generations.add(store.getGeneration()));
+                    store.insertTemplate(0, 0, dataId, 0);
+                    assertTrue(generations.add(store.getGeneration()));
+                    store.lock(0, 0);
+                    assertTrue(generations.add(store.getGeneration()));
+
+                    // Clearing and inserting the same rows again assigns the same IDs
+                    store.clearData();
+                    assertTrue(generations.add(store.getGeneration()));
+                    store.clearTemplates();
+                    assertTrue(generations.add(store.getGeneration()));
+                }
+
+                long generation = store.getGeneration();
+                store.beginBatch();
+                store.insertData(0, 0, createFeatures(false));
+                store.rollback();
+                assertTrue(store.getGeneration() >= generation);
+                store.insertData(0, 0, createFeatures(false));
+                assertTrue(generations.add(store.getGeneration()));
+            }
+        } finally {
+            otherDb.close();
+        }
+    }
+
+    @Test
+    public void testInvalidRowIsNotInserted() throws SQLException {
+        memoryStore.insertData(0, 0, createFeatures(false));
+
+        List<List<double[]>> features = createFeatures(false);
+        features.set(features.size() - 1, Collections.singletonList(new double[2]));
+        memoryStore.beginBatch();
+        try {
+            memoryStore.insertData(0, 0, features);
+            fail("Row with 2 sensor values was inserted");
+        } catch (IllegalArgumentException e) {
+            memoryStore.rollback();
+        }
+
+        // No tensor got the row, so the next row is aligned in all of them
+        memoryStore.beginBatch();
+        assertEquals(2, memoryStore.insertData(0, 0, createFeatures(false)));
+        memoryStore.commit();
+        for (FeatureTensor tensor : memoryStore.readData(0, 0, allFeatures)) {
+            assertEquals(2, tensor.getRowCount());
+        }
+    }
+
+    @Test
+    public void testUnusedFeaturesAreNotRead() throws SQLException {
+        for (TemplateStore store : new TemplateStore[] { jdbcStore, memoryStore }) {
+            random = new Random(42);
+            for (int i = 0; i < NUM_TEST_ROWS; i++) {
+                int dataId = store.insertData(0, 0, createFeatures(false));
+                store.insertTemplate(0, 0, dataId, 0);
+            }
+        }
+
+        boolean[] usedFeatures = new boolean[allFeatures.length];
+        Arrays.fill(usedFeatures, 0, 8, true);
+        for (TemplateStore store : new TemplateStore[] { jdbcStore, memoryStore }) {
+            List<FeatureTensor> all = store.readData(0, 0, allFeatures), used = store.readData(0, 0, usedFeatures);
+            assertTensorsEqual(all.subList(0, 8), used.subList(0, 8));
+            for (int i = 8; i < allFeatures.length; i++) {
+                assertEquals(NUM_TEST_ROWS, used.get(i).getRowCount());
+                assertTrue(used.get(i).isEmpty());
+            }
+            assertTensorsEqual(used, store.readTemplateData(0, 0, usedFeatures));
+
+            List<FeatureTensor> none = store.readTemplateData(0, 0, new boolean[allFeatures.length]);
+            assertEquals(NUM_TEST_ROWS, none.get(0).getRowCount());
+            assertTrue(none.get(0).isEmpty());
+        }
+    }
+
+    private void assertTensorsEqual(List<FeatureTensor> expected, List<FeatureTensor> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            FeatureTensor e = expected.get(i), a = actual.get(i);
+            assertEquals(e.getRowCount(), a.getRowCount());
+            assertEquals(e.getValueCount(), a.getValueCount());
+            for (int row = 0; row < e.getRowCount(); row++) {
+                assertEquals(e.getSampleCount(row), a.getSampleCount(row));
+                assertEquals(e.getOffset(row), a.getOffset(row));
+            }
+            int length = e.getRowCount() > 0 ? e.getOffset(e.getRowCount() - 1) + e.getSampleCount(e.getRowCount() - 1) * e.getValueCount() : 0;
+            for (int j = 0; j < length; j++) {
+                assertEquals(e.getData()[j], a.getData()[j], 0);
+            }
+        }
+    }
+
+    /**
+     * @param emptySensors whether the sensor features have no samples, like unavailable sensors
+     */
+    private List<List<double[]>> createFeatures(boolean emptySensors) {
+        List<String> columns = contract.getFeatureColumns();
+        List<List<double[]>> features = new ArrayList<>(columns.size());
+        for (String column : columns) {
+            boolean sensor = columns.indexOf(column) >= 6;
+            if (sensor && emptySensors) {
+                features.add(Collections.emptyList());
+                continue;
+            }
+
+            int valueCount = column.equals(StatisticalClassifierContract.StatisticalClassifierData.COLUMN_POSITION) ? 2 : sensor ? 3 : 1;
+            List<double[]> samples = new ArrayList<>(NUM_TEST_KEYPRESSES);
+            for (int k = 0; k < NUM_TEST_KEYPRESSES; k++) {
+                double[] sample = new double[valueCount];
+                for (int v = 0; v < valueCount; v++) {
+                    sample[v] = random.nextDouble();
+                }
+                samples.add(sample);
+            }
+            features.add(samples);
+        }
+        return features;
+    }
+}